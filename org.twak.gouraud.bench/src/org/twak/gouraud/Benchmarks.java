@@ -0,0 +1,23 @@
+package org.twak.gouraud;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the benchmarks through the JMH command line, writing JSON results to
+ * jmh-result.json unless a result format or file is given.
+ *
+ * usage: java -jar benchmarks.jar [JMH options]
+ */
+public class Benchmarks {
+
+	public static void main(String[] args) throws Exception {
+		List<String> options = new ArrayList<>(Arrays.asList(args));
+		if (!options.contains("-rf"))
+			options.addAll(Arrays.asList("-rf", "json"));
+		if (!options.contains("-rff"))
+			options.addAll(Arrays.asList("-rff", "jmh-result.json"));
+		org.openjdk.jmh.Main.main(options.toArray(new String[options.size()]));
+	}
+}
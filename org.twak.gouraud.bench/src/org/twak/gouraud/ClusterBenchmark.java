@@ -0,0 +1,91 @@
+package org.twak.gouraud;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.joml.Matrix4f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link LightClusters} binning lights scattered around ObjLoader's default
+ * camera, on one thread and on every core. {@link #moving} alternates the
+ * view and the number of lights, so each call bins a different number of
+ * lights and cluster entries into buffers sized by an earlier call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ClusterBenchmark {
+
+	@Param({ "1000", "10000" })
+	int lights;
+
+	/* of each light, in a 40 unit cube around the origin */
+	@Param({ "1", "4" })
+	float radius;
+
+	@Param({ "1", "0" })
+	int threads;
+
+	ForkJoinPool pool;
+	LightClusters clusters;
+	List<LightClusters.Light> list = new ArrayList<>();
+	int frame;
+
+	Matrix4f viewMatrix = new Matrix4f().setLookAt(10f, 2f, 0f, 0f, 0f, 0f, 0f, 1f, 0f);
+	Matrix4f turnedMatrix = new Matrix4f().setLookAt(0f, 2f, 10f, 0f, 0f, 0f, 0f, 1f, 0f);
+	Matrix4f projectionMatrix = new Matrix4f().setPerspective((float) Math.toRadians(60), 4f / 3, 0.01f, 100.0f);
+
+	@Setup
+	public void setup() {
+		/* 0 threads is every core */
+		pool = threads > 0 ? new ForkJoinPool(threads) : ForkJoinPool.commonPool();
+		clusters = new LightClusters(16, 8, 24, pool);
+
+		Random random = new Random(lights);
+		for (int i = 0; i < lights; i++) {
+			LightClusters.Light light = new LightClusters.Light();
+			light.position.set((random.nextFloat() * 2 - 1) * 20, (random.nextFloat() * 2 - 1) * 20,
+					(random.nextFloat() * 2 - 1) * 20);
+			light.colour.set(random.nextFloat(), random.nextFloat(), random.nextFloat());
+			light.radius = radius;
+			list.add(light);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (pool != ForkJoinPool.commonPool())
+			pool.shutdown();
+	}
+
+	@Benchmark
+	public LightClusters bin() {
+		clusters.bin(list, viewMatrix, projectionMatrix);
+		return clusters;
+	}
+
+	@Benchmark
+	public LightClusters moving() {
+		boolean odd = (frame++ & 1) != 0;
+		clusters.bin(odd ? list : list.subList(0, lights / 2), odd ? turnedMatrix : viewMatrix, projectionMatrix);
+		return clusters;
+	}
+}
@@ -0,0 +1,74 @@
+package org.twak.gouraud;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.joml.Vector3f;
+import org.lwjgl.BufferUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DemoUtilsBenchmark {
+
+	/* size of the file read by ioResourceToByteBuffer */
+	@Param({ "65536", "16777216" })
+	int bytes;
+
+	File file;
+	Vector3f min = new Vector3f(-1, -2, -3);
+	Vector3f max = new Vector3f(1, 2, 3);
+	FloatBuffer box = BufferUtils.createFloatBuffer(6 * 6 * 6);
+
+	@Setup
+	public void setup() throws IOException {
+		file = File.createTempFile("gouraud-bench", ".bin");
+		byte[] data = new byte[bytes];
+		new Random(bytes).nextBytes(data);
+		try (FileOutputStream fos = new FileOutputStream(file)) {
+			fos.write(data);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public FloatBuffer triangulateBox() {
+		box.clear();
+		DemoUtils.triangulateBox(min, max, box);
+		return box;
+	}
+
+	/* maps the file; touching every page makes the read itself part of the measurement */
+	@Benchmark
+	public long ioResourceToByteBuffer() throws IOException {
+		ByteBuffer buffer = DemoUtils.ioResourceToByteBuffer(file.getAbsolutePath(), 1024);
+		long sum = 0;
+		for (int i = 0; i < buffer.limit(); i += 4096)
+			sum += buffer.get(i);
+		return sum;
+	}
+}
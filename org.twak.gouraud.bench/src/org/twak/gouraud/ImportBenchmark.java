@@ -0,0 +1,80 @@
+package org.twak.gouraud;
+
+import static org.lwjgl.assimp.Assimp.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.lwjgl.assimp.AIScene;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The import half of ObjLoader.loadModel(): Assimp, the streaming obj
+ * parser and the binary mesh cache, on the same generated file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ImportBenchmark {
+
+	@Param({ "20000", "200000" })
+	int triangles;
+
+	File obj, cache;
+	long hash;
+
+	@Setup
+	public void setup() throws IOException {
+		obj = File.createTempFile("gouraud-bench", ".obj");
+		MeshGenerator.writeObj(MeshGenerator.grid(triangles), obj);
+
+		cache = MeshCache.cacheFile(obj);
+		MeshCache.load(obj, 1, false);
+		hash = MeshCache.hash(obj);
+	}
+
+	@TearDown
+	public void tearDown() {
+		obj.delete();
+		cache.delete();
+	}
+
+	@Benchmark
+	public int assimp() {
+		AIScene scene = aiImportFile(obj.getAbsolutePath(), aiProcess_JoinIdenticalVertices | aiProcess_Triangulate);
+		if (scene == null)
+			throw new IllegalStateException(aiGetErrorString());
+		Model model = new Model(scene, false);
+		int vertices = model.meshes.get(0).vertexCount;
+		model.free();
+		return vertices;
+	}
+
+	@Benchmark
+	public Model.Mesh objParser() throws IOException {
+		return ObjParser.parse(obj, false);
+	}
+
+	@Benchmark
+	public int meshCache() throws IOException {
+		Model model = MeshCache.read(cache, hash, 1, false);
+		int vertices = model.meshes.get(0).vertexCount;
+		model.free();
+		return vertices;
+	}
+}
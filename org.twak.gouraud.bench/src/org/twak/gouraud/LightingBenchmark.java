@@ -0,0 +1,78 @@
+package org.twak.gouraud;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The CPU transform and lighting kernels of {@link VertexLighting}, per
+ * vertex, over component arrays with scalar loops and with the Vector API,
+ * on one thread and on every core. The vector kernel needs JDK 16+ and
+ * -jvmArgsAppend --add-modules=jdk.incubator.vector; without them it fails
+ * rather than measuring the scalar loops.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LightingBenchmark {
+
+	@Param({ "200000", "2000000" })
+	int triangles;
+
+	@Param({ "arrays", "vector", "perVertex" })
+	String kernel;
+
+	@Param({ "1", "0" })
+	int threads;
+
+	ForkJoinPool pool;
+	VertexLighting lighting;
+	VertexLighting.Vertices vertices;
+	VertexLighting.Lit lit = new VertexLighting.Lit();
+
+	Matrix4f modelMatrix = new Matrix4f().rotateY(0.5f * (float) Math.PI).scale(1.5f, 1.5f, 1.5f);
+	Matrix4f viewMatrix = new Matrix4f().setLookAt(10f, 2f, 0f, 0f, 0f, 0f, 0f, 1f, 0f);
+	Matrix4f projectionMatrix = new Matrix4f().setPerspective((float) Math.toRadians(60), 4f / 3, 0.01f, 100.0f);
+	Vector3f lightPosition = new Vector3f(10f, 5f, 10f);
+
+	@Setup
+	public void setup() {
+		/* 0 threads is every core */
+		pool = threads > 0 ? new ForkJoinPool(threads) : ForkJoinPool.commonPool();
+		lighting = new VertexLighting(pool);
+		lighting.perVertex = kernel.equals("perVertex");
+		lighting.vector = kernel.equals("vector");
+		if (lighting.vector && VertexLighting.VECTOR == null)
+			throw new IllegalStateException("the Vector API kernels need JDK 16+ and --add-modules=jdk.incubator.vector");
+		vertices = VertexLighting.Vertices.of(MeshGenerator.grid(triangles));
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (pool != ForkJoinPool.commonPool())
+			pool.shutdown();
+	}
+
+	@Benchmark
+	public VertexLighting.Lit light() {
+		lighting.light(vertices, lit, modelMatrix, viewMatrix, projectionMatrix, lightPosition);
+		return lit;
+	}
+}
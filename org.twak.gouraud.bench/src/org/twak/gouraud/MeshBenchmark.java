@@ -0,0 +1,70 @@
+package org.twak.gouraud;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CPU side preparation of a {@link Model.Mesh} before upload: construction
+ * (bounds, colours), vertex cache optimisation, simplification and packing
+ * into a {@link DrawBatch}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MeshBenchmark {
+
+	@Param({ "20000", "200000" })
+	int triangles;
+
+	Model.Mesh mesh;
+	Model.Mesh scratch;
+
+	@Setup
+	public void setup() {
+		mesh = MeshGenerator.grid(triangles);
+	}
+
+	/* optimize() reorders in place, so it gets a fresh copy each call */
+	@Setup(Level.Invocation)
+	public void copy() {
+		scratch = MeshGenerator.copy(mesh);
+	}
+
+	@Benchmark
+	public Model.Mesh construct() {
+		return new Model.Mesh(mesh.vertices.duplicate(), mesh.normals.duplicate(), mesh.colours.duplicate(),
+				mesh.elements.duplicate(), 0, false);
+	}
+
+	@Benchmark
+	public Model.Mesh optimize() {
+		MeshOptimizer.optimize(scratch);
+		return scratch;
+	}
+
+	@Benchmark
+	public Model.Mesh simplify() {
+		return MeshSimplifier.simplify(mesh, triangles / 2);
+	}
+
+	@Benchmark
+	public DrawBatch pack() {
+		return new DrawBatch(Collections.singletonList(mesh));
+	}
+}
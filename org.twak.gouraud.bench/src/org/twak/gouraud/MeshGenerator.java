@@ -0,0 +1,101 @@
+package org.twak.gouraud;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * Synthetic meshes of a requested size for the benchmarks: a rolling height
+ * field over the unit square, so that there is real curvature for the
+ * simplifier and real depth complexity for the rasterizer.
+ */
+public class MeshGenerator {
+
+	/**
+	 * @return a mesh with close to the given number of triangles, not
+	 *         uploaded
+	 */
+	public static Model.Mesh grid(int triangles) {
+
+		int n = Math.max(2, (int) Math.sqrt(triangles / 2) + 1);
+		int vertexCount = n * n;
+
+		FloatBuffer vertices = BufferUtils.createFloatBuffer(vertexCount * 3);
+		FloatBuffer normals = BufferUtils.createFloatBuffer(vertexCount * 3);
+		for (int j = 0; j < n; j++)
+			for (int i = 0; i < n; i++) {
+				float x = 2f * i / (n - 1) - 1, z = 2f * j / (n - 1) - 1;
+				vertices.put(x).put(height(x, z)).put(z);
+
+				float e = 1e-3f;
+				float dx = (height(x + e, z) - height(x - e, z)) / (2 * e);
+				float dz = (height(x, z + e) - height(x, z - e)) / (2 * e);
+				float l = (float) Math.sqrt(dx * dx + 1 + dz * dz);
+				normals.put(-dx / l).put(1 / l).put(-dz / l);
+			}
+		vertices.flip();
+		normals.flip();
+
+		FloatBuffer colours = BufferUtils.createFloatBuffer(vertexCount * 3);
+		Random random = new Random(vertexCount);
+		while (colours.hasRemaining())
+			colours.put(random.nextFloat());
+		colours.flip();
+
+		IntBuffer elements = BufferUtils.createIntBuffer((n - 1) * (n - 1) * 6);
+		for (int j = 0; j < n - 1; j++)
+			for (int i = 0; i < n - 1; i++) {
+				int a = j * n + i, b = a + 1, c = a + n, d = c + 1;
+				elements.put(a).put(c).put(b);
+				elements.put(b).put(c).put(d);
+			}
+		elements.flip();
+
+		return new Model.Mesh(vertices, normals, colours, elements, 0, false);
+	}
+
+	private static float height(float x, float z) {
+		return 0.1f * (float) (Math.sin(x * 7) * Math.cos(z * 5) + 0.5 * Math.sin((x + z) * 13));
+	}
+
+	/**
+	 * Copies a mesh's CPU side data, for benchmarks that modify it in place.
+	 */
+	public static Model.Mesh copy(Model.Mesh mesh) {
+		return new Model.Mesh(copy(mesh.vertices), copy(mesh.normals), copy(mesh.colours), copy(mesh.elements),
+				mesh.materialIndex, false);
+	}
+
+	private static FloatBuffer copy(FloatBuffer src) {
+		FloatBuffer dst = BufferUtils.createFloatBuffer(src.remaining());
+		dst.put(src.duplicate()).flip();
+		return dst;
+	}
+
+	private static IntBuffer copy(IntBuffer src) {
+		IntBuffer dst = BufferUtils.createIntBuffer(src.remaining());
+		dst.put(src.duplicate()).flip();
+		return dst;
+	}
+
+	/** Writes the mesh as a Wavefront obj with positions and normals. */
+	public static void writeObj(Model.Mesh mesh, File file) throws IOException {
+		try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file), 1 << 16))) {
+			for (int i = 0; i < mesh.vertexCount * 3; i += 3)
+				out.println("v " + mesh.vertices.get(i) + " " + mesh.vertices.get(i + 1) + " " + mesh.vertices.get(i + 2));
+			for (int i = 0; i < mesh.vertexCount * 3; i += 3)
+				out.println("vn " + mesh.normals.get(i) + " " + mesh.normals.get(i + 1) + " " + mesh.normals.get(i + 2));
+			for (int i = 0; i < mesh.elementCount; i += 3) {
+				int a = mesh.elements.get(i) + 1, b = mesh.elements.get(i + 1) + 1, c = mesh.elements.get(i + 2) + 1;
+				out.println("f " + a + "//" + a + " " + b + "//" + b + " " + c + "//" + c);
+			}
+		}
+	}
+}
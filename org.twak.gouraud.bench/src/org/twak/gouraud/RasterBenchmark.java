@@ -0,0 +1,68 @@
+package org.twak.gouraud;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One frame of the CPU transform and raster path, {@link SoftwareRasterizer},
+ * with the camera ObjLoader starts with.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RasterBenchmark {
+
+	@Param({ "20000", "200000" })
+	int triangles;
+
+	@Param({ "1024x768" })
+	String resolution;
+
+	@Param({ "true" })
+	boolean lit;
+
+	SoftwareRasterizer rasterizer;
+	Model model;
+	Matrix4f modelMatrix = new Matrix4f().rotateY(0.5f * (float) Math.PI).scale(1.5f, 1.5f, 1.5f);
+	Matrix4f viewMatrix = new Matrix4f().setLookAt(10f, 2f, 0f, 0f, 0f, 0f, 0f, 1f, 0f);
+	Matrix4f projectionMatrix = new Matrix4f();
+	Vector3f lightPosition = new Vector3f(10f, 5f, 10f);
+
+	@Setup
+	public void setup() {
+		String[] size = resolution.split("x");
+		int width = Integer.parseInt(size[0]), height = Integer.parseInt(size[1]);
+		rasterizer = new SoftwareRasterizer(width, height);
+		rasterizer.lit = lit;
+		projectionMatrix.setPerspective((float) Math.toRadians(60), (float) width / height, 0.01f, 100.0f);
+
+		List<Model.Mesh> meshes = new ArrayList<>();
+		meshes.add(MeshGenerator.grid(triangles));
+		model = new Model(meshes, new ArrayList<Model.Material>());
+	}
+
+	@Benchmark
+	public SoftwareRasterizer frame() {
+		rasterizer.clear();
+		rasterizer.render(model, modelMatrix, viewMatrix, projectionMatrix, lightPosition);
+		return rasterizer;
+	}
+}
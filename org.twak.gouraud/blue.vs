@@ -2,12 +2,33 @@
 
 in vec4 aVertex;
 
+#ifdef INSTANCED
+/* per instance, from an InstanceBuffer */
+in mat4 aModelMatrix;
+#define MODEL_MATRIX aModelMatrix
+#else
 uniform mat4 uModelMatrix;
-uniform mat4 uViewMatrix;
-uniform mat4 uProjectionMatrix;
+#define MODEL_MATRIX uModelMatrix
+#endif
+
+#ifdef COMPRESSED_VERTICES
+/* positions are unsigned shorts across the mesh's bounding box */
+uniform vec3 uPositionOffset;
+uniform vec3 uPositionScale;
+#define POSITION vec4(uPositionOffset + aVertex.xyz * uPositionScale, 1)
+#else
+#define POSITION aVertex
+#endif
+
+layout (std140) uniform Frame {
+    mat4 uViewMatrix;
+    mat4 uProjectionMatrix;
+    vec3 uLightPosition;
+    vec3 uViewPosition;
+};
 
 void main() {
-    vec4 modelPosition = uModelMatrix * aVertex;
+    vec4 modelPosition = MODEL_MATRIX * POSITION;
     vec4 viewPosition = uViewMatrix * modelPosition;
     gl_Position = uProjectionMatrix * viewPosition;
 }
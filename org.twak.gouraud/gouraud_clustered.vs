@@ -0,0 +1,105 @@
+#version 430
+
+in vec4 aVertex;
+in vec3 aNormal;
+
+#ifdef INSTANCED
+/* per instance, from an InstanceBuffer */
+in mat4 aModelMatrix;
+in mat3 aNormalMatrix;
+#define MODEL_MATRIX aModelMatrix
+#define NORMAL_MATRIX aNormalMatrix
+#else
+uniform mat4 uModelMatrix;
+uniform mat3 uNormalMatrix;
+#define MODEL_MATRIX uModelMatrix
+#define NORMAL_MATRIX uNormalMatrix
+#endif
+
+layout (std140) uniform Frame {
+    mat4 uViewMatrix;
+    mat4 uProjectionMatrix;
+    vec3 uLightPosition;
+    vec3 uViewPosition;
+};
+
+#ifdef COMPRESSED_VERTICES
+/* positions are unsigned shorts across the mesh's bounding box, normals octahedral */
+uniform vec3 uPositionOffset;
+uniform vec3 uPositionScale;
+
+vec3 octDecode(vec2 e) {
+    vec3 n = vec3(e, 1.0 - abs(e.x) - abs(e.y));
+    if (n.z < 0.0)
+        n.xy = (1.0 - abs(n.yx)) * vec2(e.x >= 0.0 ? 1.0 : -1.0, e.y >= 0.0 ? 1.0 : -1.0);
+    return normalize(n);
+}
+
+#define POSITION vec4(uPositionOffset + aVertex.xyz * uPositionScale, 1)
+#define NORMAL octDecode(aNormal.xy)
+#else
+#define POSITION aVertex
+#define NORMAL aNormal
+#endif
+
+/* written each frame by LightClusters, world space point lights */
+struct Light {
+    vec4 positionRadius;
+    vec4 colour;
+};
+
+layout (std430, binding = 1) buffer Lights {
+    Light lights[];
+};
+
+/* grid is (x, y, z, light count), depth is (near, far, slices per log depth, guard) */
+layout (std430, binding = 2) buffer Clusters {
+    uvec4 uClusterGrid;
+    vec4 uClusterDepth;
+    uvec2 clusters[];
+};
+
+layout (std430, binding = 3) buffer LightIndices {
+    uint lightIndices[];
+};
+
+out vec4 vColour;
+
+vec3 pointLight(uint index, vec3 position, vec3 normal) {
+    Light light = lights[index];
+    vec3 toLight = light.positionRadius.xyz - position;
+    float distance2 = dot(toLight, toLight);
+    float falloff = max(1.0 - distance2 / (light.positionRadius.w * light.positionRadius.w), 0.0);
+    float diffuseCo = max(dot(toLight * inversesqrt(max(distance2, 1e-12)), normal), 0.0);
+    return diffuseCo * falloff * falloff * light.colour.rgb;
+}
+
+void main() {
+
+    vec4 modelPosition = MODEL_MATRIX * POSITION;
+    vec4 viewPosition = uViewMatrix * modelPosition;
+    gl_Position = uProjectionMatrix * viewPosition;
+
+    vec4 normal = vec4 ( NORMAL_MATRIX * NORMAL, 1);
+    vec4 lightPosition = MODEL_MATRIX * vec4 ( uLightPosition, 1);
+    vec4 lightDirection = normalize( lightPosition - modelPosition);
+    float diffuseCo = dot ( lightDirection, normal );
+    vec3 colour = vec3(diffuseCo, 0, 0);
+
+    /* the cluster this vertex is in; outside the grid every light is evaluated */
+    vec2 ndc = gl_Position.xy / (gl_Position.w * uClusterDepth.w);
+    float depth = -viewPosition.z;
+    vec3 n = normalize(normal.xyz);
+    if (gl_Position.w > 0.0 && all(lessThan(abs(ndc), vec2(1))) && depth >= uClusterDepth.x && depth <= uClusterDepth.y) {
+        uvec3 cell = min(uvec3(vec3((ndc * 0.5 + 0.5) * vec2(uClusterGrid.xy), log(depth / uClusterDepth.x) * uClusterDepth.z)),
+                uClusterGrid.xyz - 1u);
+        uvec2 cluster = clusters[(cell.z * uClusterGrid.y + cell.y) * uClusterGrid.x + cell.x];
+        for (uint i = 0u; i < cluster.y; i++)
+            colour += pointLight(lightIndices[cluster.x + i], modelPosition.xyz, n);
+    } else {
+        for (uint i = 0u; i < uClusterGrid.w; i++)
+            colour += pointLight(i, modelPosition.xyz, n);
+    }
+
+    vColour = vec4(colour, 1);
+}
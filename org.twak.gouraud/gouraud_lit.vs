@@ -3,24 +3,56 @@
 in vec4 aVertex;
 in vec3 aNormal;
 
+#ifdef INSTANCED
+/* per instance, from an InstanceBuffer */
+in mat4 aModelMatrix;
+in mat3 aNormalMatrix;
+#define MODEL_MATRIX aModelMatrix
+#define NORMAL_MATRIX aNormalMatrix
+#else
 uniform mat4 uModelMatrix;
-uniform mat4 uViewMatrix;
-uniform mat4 uProjectionMatrix;
-
 uniform mat3 uNormalMatrix;
-uniform vec3 uLightPosition;
+#define MODEL_MATRIX uModelMatrix
+#define NORMAL_MATRIX uNormalMatrix
+#endif
+
+layout (std140) uniform Frame {
+    mat4 uViewMatrix;
+    mat4 uProjectionMatrix;
+    vec3 uLightPosition;
+    vec3 uViewPosition;
+};
+
+#ifdef COMPRESSED_VERTICES
+/* positions are unsigned shorts across the mesh's bounding box, normals octahedral */
+uniform vec3 uPositionOffset;
+uniform vec3 uPositionScale;
+
+vec3 octDecode(vec2 e) {
+    vec3 n = vec3(e, 1.0 - abs(e.x) - abs(e.y));
+    if (n.z < 0.0)
+        n.xy = (1.0 - abs(n.yx)) * vec2(e.x >= 0.0 ? 1.0 : -1.0, e.y >= 0.0 ? 1.0 : -1.0);
+    return normalize(n);
+}
+
+#define POSITION vec4(uPositionOffset + aVertex.xyz * uPositionScale, 1)
+#define NORMAL octDecode(aNormal.xy)
+#else
+#define POSITION aVertex
+#define NORMAL aNormal
+#endif
 
 out vec4 vColour;
 
 void main() {
 
-    vec4 modelPosition = uModelMatrix * aVertex;
+    vec4 modelPosition = MODEL_MATRIX * POSITION;
     vec4 viewPosition = uViewMatrix * modelPosition;
     gl_Position = uProjectionMatrix * viewPosition;
     
     vec4 viewDir = normalize ( viewPosition );
-    vec4 normal = vec4 ( uNormalMatrix * aNormal, 1);
-    vec4 lightPosition = uModelMatrix * vec4 ( uLightPosition, 1);
+    vec4 normal = vec4 ( NORMAL_MATRIX * NORMAL, 1);
+    vec4 lightPosition = MODEL_MATRIX * vec4 ( uLightPosition, 1);
     vec4 lightDirection = normalize( lightPosition - modelPosition);
     float diffuseCo = dot ( lightDirection, normal );
     vec4 diffuse = diffuseCo * vec4 (1,0,0, 1);
@@ -0,0 +1,9 @@
+#version 430
+
+in vec4 vColour;
+
+out vec4 fragColour;
+
+void main() {
+    fragColour = vColour;
+}
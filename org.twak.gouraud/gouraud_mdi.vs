@@ -0,0 +1,40 @@
+#version 430
+#extension GL_ARB_shader_draw_parameters : require
+
+in vec4 aVertex;
+in vec3 aNormal;
+
+struct Draw {
+    mat4 model;
+    mat3 normal;
+    vec4 colour;
+};
+
+layout (std430, binding = 0) buffer Draws {
+    Draw draws[];
+};
+
+layout (std140) uniform Frame {
+    mat4 uViewMatrix;
+    mat4 uProjectionMatrix;
+    vec3 uLightPosition;
+    vec3 uViewPosition;
+};
+
+out vec4 vColour;
+
+void main() {
+
+    Draw draw = draws[gl_DrawIDARB];
+
+    vec4 modelPosition = draw.model * aVertex;
+    vec4 viewPosition = uViewMatrix * modelPosition;
+    gl_Position = uProjectionMatrix * viewPosition;
+
+    vec4 normal = vec4 ( draw.normal * aNormal, 1);
+    vec4 lightPosition = draw.model * vec4 ( uLightPosition, 1);
+    vec4 lightDirection = normalize( lightPosition - modelPosition);
+    float diffuseCo = dot ( lightDirection, normal );
+
+    vColour = diffuseCo * draw.colour;
+}
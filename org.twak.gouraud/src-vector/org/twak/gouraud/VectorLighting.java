@@ -0,0 +1,89 @@
+package org.twak.gouraud;
+
+import org.joml.Matrix3f;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The array stages of {@link VertexLighting} written with the Vector API,
+ * so they run several vertices per instruction at the widest width the CPU
+ * has, rather than depending on the JIT to vectorise the scalar loops. The
+ * operations are those of the scalar loops in the same order, so the
+ * results are identical; the tail of a range too short for a whole vector
+ * goes through the scalar loops.
+ * <p>
+ * Needs JDK 16 or later run with --add-modules jdk.incubator.vector. This
+ * source set is only compiled by the vector-api profile, and VertexLighting
+ * loads the class by reflection, falling back to its scalar loops when it
+ * cannot.
+ */
+class VectorLighting implements VertexLighting.Kernel {
+
+	static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+	@Override
+	public void transform(float[] x, float[] y, float[] z, float[] cx, float[] cy, float[] cz, float[] cw, Matrix4f m,
+			int from, int to) {
+		final float m00 = m.m00(), m01 = m.m01(), m02 = m.m02(), m03 = m.m03();
+		final float m10 = m.m10(), m11 = m.m11(), m12 = m.m12(), m13 = m.m13();
+		final float m20 = m.m20(), m21 = m.m21(), m22 = m.m22(), m23 = m.m23();
+		final float m30 = m.m30(), m31 = m.m31(), m32 = m.m32(), m33 = m.m33();
+
+		int i = from, bound = from + SPECIES.loopBound(to - from);
+		for (; i < bound; i += SPECIES.length()) {
+			FloatVector px = FloatVector.fromArray(SPECIES, x, i);
+			FloatVector py = FloatVector.fromArray(SPECIES, y, i);
+			FloatVector pz = FloatVector.fromArray(SPECIES, z, i);
+			px.mul(m00).add(py.mul(m10)).add(pz.mul(m20)).add(m30).intoArray(cx, i);
+			px.mul(m01).add(py.mul(m11)).add(pz.mul(m21)).add(m31).intoArray(cy, i);
+			px.mul(m02).add(py.mul(m12)).add(pz.mul(m22)).add(m32).intoArray(cz, i);
+			px.mul(m03).add(py.mul(m13)).add(pz.mul(m23)).add(m33).intoArray(cw, i);
+		}
+		VertexLighting.transform(x, y, z, cx, cy, cz, cw, m, i, to);
+	}
+
+	@Override
+	public void diffuse(float[] x, float[] y, float[] z, float[] nx, float[] ny, float[] nz, float[] diffuse,
+			Matrix4f m, Matrix3f n, Vector3f light, int from, int to) {
+		final float m00 = m.m00(), m01 = m.m01(), m02 = m.m02();
+		final float m10 = m.m10(), m11 = m.m11(), m12 = m.m12();
+		final float m20 = m.m20(), m21 = m.m21(), m22 = m.m22();
+		final float m30 = m.m30(), m31 = m.m31(), m32 = m.m32();
+		final float n00 = n.m00(), n01 = n.m01(), n02 = n.m02();
+		final float n10 = n.m10(), n11 = n.m11(), n12 = n.m12();
+		final float n20 = n.m20(), n21 = n.m21(), n22 = n.m22();
+		final FloatVector lightX = FloatVector.broadcast(SPECIES, light.x);
+		final FloatVector lightY = FloatVector.broadcast(SPECIES, light.y);
+		final FloatVector lightZ = FloatVector.broadcast(SPECIES, light.z);
+		final FloatVector one = FloatVector.broadcast(SPECIES, 1f);
+
+		int i = from, bound = from + SPECIES.loopBound(to - from);
+		for (; i < bound; i += SPECIES.length()) {
+			FloatVector px = FloatVector.fromArray(SPECIES, x, i);
+			FloatVector py = FloatVector.fromArray(SPECIES, y, i);
+			FloatVector pz = FloatVector.fromArray(SPECIES, z, i);
+			FloatVector lx = lightX.sub(px.mul(m00).add(py.mul(m10)).add(pz.mul(m20)).add(m30));
+			FloatVector ly = lightY.sub(px.mul(m01).add(py.mul(m11)).add(pz.mul(m21)).add(m31));
+			FloatVector lz = lightZ.sub(px.mul(m02).add(py.mul(m12)).add(pz.mul(m22)).add(m32));
+
+			FloatVector qx = FloatVector.fromArray(SPECIES, nx, i);
+			FloatVector qy = FloatVector.fromArray(SPECIES, ny, i);
+			FloatVector qz = FloatVector.fromArray(SPECIES, nz, i);
+			FloatVector tx = qx.mul(n00).add(qy.mul(n10)).add(qz.mul(n20));
+			FloatVector ty = qx.mul(n01).add(qy.mul(n11)).add(qz.mul(n21));
+			FloatVector tz = qx.mul(n02).add(qy.mul(n12)).add(qz.mul(n22));
+
+			FloatVector inverseLength = one.div(lx.mul(lx).add(ly.mul(ly)).add(lz.mul(lz)).max(Float.MIN_NORMAL).sqrt());
+			lx.mul(tx).add(ly.mul(ty)).add(lz.mul(tz)).mul(inverseLength).intoArray(diffuse, i);
+		}
+		VertexLighting.diffuse(x, y, z, nx, ny, nz, diffuse, m, n, light, i, to);
+	}
+
+	@Override
+	public String toString() {
+		return "Vector API, " + SPECIES.length() + " floats";
+	}
+}
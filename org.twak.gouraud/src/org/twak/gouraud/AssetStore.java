@@ -0,0 +1,419 @@
+package org.twak.gouraud;
+
+import static org.lwjgl.system.MemoryUtil.NULL;
+import static org.lwjgl.util.lmdb.LMDB.*;
+import static org.lwjgl.util.lz4.LZ4.*;
+import static org.lwjgl.util.lz4.LZ4HC.*;
+import static org.lwjgl.util.zstd.Zstd.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.util.lmdb.MDBVal;
+
+/**
+ * Many models in one LMDB environment, looked up by asset name. Each entry
+ * is a model prepared as for {@link MeshCache}, imported and optimised with
+ * {@link #lodLevels} levels of detail, and compressed with LZ4 or Zstd.
+ * <p>
+ * A load reads the entry straight out of LMDB's memory map and decompresses
+ * it into the new model's {@link MeshArena}, whose buffers the meshes view
+ * and upload from; there is no other copy. The environment is opened with
+ * MDB_NOTLS, so any number of threads can load at once, each in its own
+ * read transaction. Writes are serialised by LMDB.
+ *
+ * Entry layout (native byte order): magic, version, codec, uncompressed
+ * size, then the compressed MeshCache data.
+ */
+public class AssetStore {
+
+	static final int MAGIC = 0x54534147; // "GAST"
+	static final int VERSION = 1;
+	static final int HEADER = 16;
+	/* LMDB's default limit */
+	static final int MAX_KEY = 511;
+
+	public static final int LZ4 = 0, ZSTD = 1;
+
+	/* the map grows by doubling when an import fills it */
+	public static long mapSize = 1L << 30;
+	public static int maxReaders = 126;
+	/* levels of detail built for each imported mesh */
+	public static int lodLevels = 4;
+
+	final long env;
+	final int dbi;
+
+	public AssetStore(File directory) {
+		this(directory, false);
+	}
+
+	public AssetStore(File directory, boolean readOnly) {
+		PointerBuffer pointer = BufferUtils.createPointerBuffer(1);
+		check(mdb_env_create(pointer), "mdb_env_create");
+		env = pointer.get(0);
+
+		try {
+			check(mdb_env_set_mapsize(env, mapSize), "mdb_env_set_mapsize");
+			check(mdb_env_set_maxreaders(env, maxReaders), "mdb_env_set_maxreaders");
+			if (!readOnly)
+				directory.mkdirs();
+			check(mdb_env_open(env, directory.getAbsolutePath(), MDB_NOTLS | (readOnly ? MDB_RDONLY : 0), 0664),
+					"mdb_env_open " + directory);
+
+			long txn = begin(readOnly ? MDB_RDONLY : 0);
+			IntBuffer handle = BufferUtils.createIntBuffer(1);
+			try {
+				check(mdb_dbi_open(txn, null, 0, handle), "mdb_dbi_open");
+			} catch (IllegalStateException e) {
+				mdb_txn_abort(txn);
+				throw e;
+			}
+			check(mdb_txn_commit(txn), "mdb_txn_commit");
+			dbi = handle.get(0);
+		} catch (IllegalStateException e) {
+			mdb_env_close(env);
+			throw e;
+		}
+	}
+
+	private long begin(int flags) {
+		PointerBuffer txn = BufferUtils.createPointerBuffer(1);
+		check(mdb_txn_begin(env, NULL, flags, txn), "mdb_txn_begin");
+		return txn.get(0);
+	}
+
+	private static void check(int result, String call) {
+		if (result != MDB_SUCCESS)
+			throw new IllegalStateException(call + ": " + mdb_strerror(result));
+	}
+
+	/**
+	 * Loads a model. Safe to call from any number of threads.
+	 *
+	 * @param upload
+	 *            whether to create GL buffers for the meshes, on the calling
+	 *            thread
+	 * @return the model, or null if there is no entry called name
+	 */
+	public Model load(String name, boolean upload) {
+
+		Model model = new Model(new ArrayList<Model.Mesh>(), new ArrayList<Model.Material>());
+		long txn = begin(MDB_RDONLY);
+		try {
+			MDBVal key = MDBVal.create().mv_data(key(name)), value = MDBVal.create();
+			int result = mdb_get(txn, dbi, key, value);
+			if (result == MDB_NOTFOUND) {
+				model.free();
+				return null;
+			}
+			check(result, "mdb_get " + name);
+
+			/* a view of the memory map, valid until the transaction ends */
+			ByteBuffer entry = value.mv_data().order(ByteOrder.nativeOrder());
+			if (entry.remaining() < HEADER || entry.getInt(0) != MAGIC || entry.getInt(4) != VERSION)
+				throw new IllegalStateException(name + " is not an asset of version " + VERSION + ", re-import it");
+
+			ByteBuffer data = model.arena.bytes(entry.getInt(12));
+			entry.position(HEADER);
+			decompress(entry.getInt(8), entry, data);
+
+			if (MeshCache.parse(model, data, data.getLong(8), -1, false) == null)
+				throw new IllegalStateException(name + " holds mesh data of an older version, re-import it");
+		} catch (RuntimeException e) {
+			model.free();
+			throw e;
+		} finally {
+			mdb_txn_abort(txn);
+		}
+
+		if (upload)
+			for (Model.Mesh mesh : model.meshes)
+				for (Model.Mesh level : mesh.lods)
+					level.upload();
+		return model;
+	}
+
+	/** @return the names of all entries, in key order */
+	public List<String> names() {
+		List<String> names = new ArrayList<>();
+		long txn = begin(MDB_RDONLY);
+		try {
+			PointerBuffer pointer = BufferUtils.createPointerBuffer(1);
+			check(mdb_cursor_open(txn, dbi, pointer), "mdb_cursor_open");
+			long cursor = pointer.get(0);
+			MDBVal key = MDBVal.create(), value = MDBVal.create();
+			for (int op = MDB_FIRST; mdb_cursor_get(cursor, key, value, op) == MDB_SUCCESS; op = MDB_NEXT) {
+				byte[] bytes = new byte[(int) key.mv_size()];
+				key.mv_data().get(bytes);
+				names.add(new String(bytes, StandardCharsets.UTF_8));
+			}
+			mdb_cursor_close(cursor);
+		} finally {
+			mdb_txn_abort(txn);
+		}
+		return names;
+	}
+
+	private static ByteBuffer key(String name) {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length == 0 || bytes.length > MAX_KEY)
+			throw new IllegalArgumentException("asset names must be 1 to " + MAX_KEY + " bytes: " + name);
+		ByteBuffer key = BufferUtils.createByteBuffer(bytes.length);
+		key.put(bytes).flip();
+		return key;
+	}
+
+	static void decompress(int codec, ByteBuffer source, ByteBuffer destination) {
+		long size;
+		if (codec == LZ4)
+			size = LZ4_decompress_safe(source, destination);
+		else if (codec == ZSTD) {
+			size = ZSTD_decompress(destination, source);
+			if (ZSTD_isError(size))
+				throw new IllegalStateException("ZSTD_decompress: " + ZSTD_getErrorName(size));
+		} else
+			throw new IllegalStateException("unknown codec " + codec);
+
+		if (size != destination.remaining())
+			throw new IllegalStateException("asset decompressed to " + size + " bytes, expected " + destination.remaining());
+	}
+
+	/** A compressed model waiting to be written, and the arena holding it. */
+	static class Entry {
+		String name;
+		ByteBuffer data;
+		MeshArena arena = new MeshArena();
+		long uncompressed;
+	}
+
+	/**
+	 * Serialises and compresses a model into a new entry.
+	 *
+	 * @param level
+	 *            the LZ4HC or Zstd compression level
+	 */
+	static Entry compress(String name, Model model, long hash, int codec, int level) {
+		key(name);
+		Entry entry = new Entry();
+		entry.name = name;
+		try {
+			int size = MeshCache.size(model);
+			ByteBuffer raw = entry.arena.bytes(size);
+			MeshCache.serialize(model, hash, lodLevels, raw);
+			raw.flip();
+
+			int bound = codec == ZSTD ? (int) Math.min(ZSTD_compressBound(size), Integer.MAX_VALUE - HEADER)
+					: LZ4_compressBound(size);
+			ByteBuffer data = entry.arena.bytes(HEADER + bound);
+			data.putInt(MAGIC).putInt(VERSION).putInt(codec).putInt(size);
+			ByteBuffer compressed = data.slice();
+
+			long written;
+			if (codec == ZSTD) {
+				written = ZSTD_compress(compressed, raw, level);
+				if (ZSTD_isError(written))
+					throw new IllegalStateException("ZSTD_compress: " + ZSTD_getErrorName(written));
+			} else {
+				written = LZ4_compress_HC(raw, compressed, level);
+				if (written <= 0)
+					throw new IllegalStateException("LZ4_compress_HC failed for " + name);
+			}
+
+			data.limit(HEADER + (int) written).position(0);
+			entry.data = data;
+			entry.uncompressed = size;
+			return entry;
+		} catch (RuntimeException e) {
+			entry.arena.free();
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes entries in one transaction, doubling the map and retrying if it
+	 * is full. No other transaction may be open in this process while the
+	 * map is resized.
+	 */
+	void put(List<Entry> entries) {
+		while (true) {
+			long txn = begin(0);
+			int result = MDB_SUCCESS;
+			for (Entry entry : entries) {
+				MDBVal key = MDBVal.create().mv_data(key(entry.name)), value = MDBVal.create().mv_data(entry.data);
+				if ((result = mdb_put(txn, dbi, key, value, 0)) != MDB_SUCCESS)
+					break;
+			}
+			if (result == MDB_SUCCESS)
+				result = mdb_txn_commit(txn);
+			else
+				mdb_txn_abort(txn);
+
+			if (result != MDB_MAP_FULL) {
+				check(result, "mdb_put");
+				return;
+			}
+			mapSize *= 2;
+			check(mdb_env_set_mapsize(env, mapSize), "mdb_env_set_mapsize");
+			System.out.println("asset store map grown to " + (mapSize >> 20) + "MB");
+		}
+	}
+
+	/**
+	 * Imports files on a pool of threads and writes them from the calling
+	 * thread, a batch per transaction. Each is stored under its path relative
+	 * to root, with '/' separators. Files that fail to import are reported and
+	 * skipped.
+	 *
+	 * @return the number of models stored
+	 */
+	public int importAll(List<File> files, final File root, int threads, final int codec, final int level)
+			throws InterruptedException {
+
+		final Entry failed = new Entry();
+		/* bounded, so compressed models do not pile up faster than they are written */
+		final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(threads * 4);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+		for (final File file : files)
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					Entry entry = failed;
+					Model model = null;
+					try {
+						model = MeshCache.prepare(file);
+						model.buildLods(lodLevels);
+						entry = compress(name(root, file), model, MeshCache.hash(file), codec, level);
+					} catch (Throwable t) {
+						System.err.println("Could not import " + file + ": " + t.getMessage());
+					} finally {
+						if (model != null)
+							model.free();
+					}
+					try {
+						queue.put(entry);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		pool.shutdown();
+
+		long start = System.nanoTime(), uncompressed = 0, compressed = 0;
+		int stored = 0;
+		List<Entry> batch = new ArrayList<>();
+		try {
+			for (int taken = 0; taken < files.size();) {
+				batch.add(queue.take());
+				taken++;
+				/* write whatever is ready in one transaction */
+				taken += queue.drainTo(batch);
+
+				List<Entry> ready = new ArrayList<>();
+				for (Entry entry : batch)
+					if (entry != failed)
+						ready.add(entry);
+				put(ready);
+
+				for (Entry entry : ready) {
+					uncompressed += entry.uncompressed;
+					compressed += entry.data.remaining();
+					entry.arena.free();
+				}
+				stored += ready.size();
+				batch.clear();
+				System.out.println(taken + "/" + files.size());
+			}
+		} finally {
+			for (Entry entry : batch)
+				entry.arena.free();
+			pool.shutdownNow();
+			pool.awaitTermination(1, TimeUnit.MINUTES);
+		}
+
+		System.out.println(String.format("stored %d models in %.1fs, %.1fMB compressed to %.1fMB", stored,
+				(System.nanoTime() - start) / 1e9, uncompressed / 1048576.0, compressed / 1048576.0));
+		return stored;
+	}
+
+	static String name(File root, File file) {
+		return root.getAbsoluteFile().toPath().relativize(file.getAbsoluteFile().toPath()).toString()
+				.replace(File.separatorChar, '/');
+	}
+
+	public void close() {
+		mdb_env_close(env);
+	}
+
+	private static void find(File file, List<File> out) {
+		if (file.isDirectory()) {
+			File[] children = file.listFiles();
+			if (children != null)
+				for (File child : children)
+					find(child, out);
+		} else if (file.getName().toLowerCase().endsWith(".obj"))
+			out.add(file);
+	}
+
+	/**
+	 * Imports obj files, found recursively under the inputs, into a store;
+	 * names are relative to each input directory. With -list, prints the
+	 * names in a store instead.
+	 *
+	 * usage: AssetStore store [-zstd] [-level n] [-lods n] [-threads n] [-objparser] input... | AssetStore store -list
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		File directory = new File(args[0]);
+		int codec = LZ4, level = -1, threads = Runtime.getRuntime().availableProcessors();
+		List<File> inputs = new ArrayList<>();
+		boolean list = false;
+
+		for (int i = 1; i < args.length; i++)
+			if (args[i].equals("-zstd"))
+				codec = ZSTD;
+			else if (args[i].equals("-level"))
+				level = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-lods"))
+				lodLevels = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-threads"))
+				threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-objparser"))
+				MeshCache.objParser = true;
+			else if (args[i].equals("-list"))
+				list = true;
+			else
+				inputs.add(new File(args[i]));
+
+		if (level < 0)
+			level = codec == ZSTD ? 19 : LZ4HC_CLEVEL_DEFAULT;
+
+		AssetStore store = new AssetStore(directory, list);
+		try {
+			if (list)
+				for (String name : store.names())
+					System.out.println(name);
+			else
+				for (File input : inputs) {
+					List<File> files = new ArrayList<>();
+					find(input, files);
+					store.importAll(files, input.isDirectory() ? input : input.getAbsoluteFile().getParentFile(),
+							threads, codec, level);
+				}
+		} finally {
+			store.close();
+		}
+	}
+}
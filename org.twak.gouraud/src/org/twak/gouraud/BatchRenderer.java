@@ -0,0 +1,105 @@
+package org.twak.gouraud;
+
+import static org.lwjgl.opengl.ARBDrawIndirect.GL_DRAW_INDIRECT_BUFFER;
+import static org.lwjgl.opengl.ARBMultiDrawIndirect.glMultiDrawElementsIndirect;
+import static org.lwjgl.opengl.ARBShaderStorageBufferObject.GL_SHADER_STORAGE_BUFFER;
+import static org.lwjgl.opengl.ARBUniformBufferObject.glBindBufferBase;
+import static org.lwjgl.opengl.ARBVertexArrayObject.glBindVertexArray;
+import static org.lwjgl.opengl.ARBVertexArrayObject.glDeleteVertexArrays;
+import static org.lwjgl.opengl.ARBVertexArrayObject.glGenVertexArrays;
+import static org.lwjgl.opengl.ARBVertexBufferObject.*;
+import static org.lwjgl.opengl.ARBVertexShader.glEnableVertexAttribArrayARB;
+import static org.lwjgl.opengl.ARBVertexShader.glVertexAttribPointerARB;
+import static org.lwjgl.opengl.GL11.GL_FLOAT;
+import static org.lwjgl.opengl.GL11.GL_TRIANGLES;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_INT;
+
+import java.nio.FloatBuffer;
+
+import org.lwjgl.opengl.GLCapabilities;
+
+/**
+ * Submits a {@link DrawBatch} with a single glMultiDrawElementsIndirect. The
+ * packed geometry is uploaded once into a vertex array object; the commands
+ * and the per-draw storage buffer (bound at {@link #DRAW_BINDING}, indexed
+ * by gl_DrawIDARB in the shader) are re-uploaded each frame.
+ */
+public class BatchRenderer {
+
+	public static final int DRAW_BINDING = 0;
+
+	int vertexArrayObject;
+	int vertexArrayBuffer;
+	int normalArrayBuffer;
+	int colourArrayBuffer;
+	int elementArrayBuffer;
+	int commandBuffer;
+	int drawBuffer;
+
+	public static boolean supported(GLCapabilities caps) {
+		return caps.GL_ARB_vertex_array_object && caps.GL_ARB_multi_draw_indirect
+				&& caps.GL_ARB_shader_storage_buffer_object && caps.GL_ARB_shader_draw_parameters;
+	}
+
+	/**
+	 * Uploads the packed geometry of the batch. Attributes that are -1 are not
+	 * bound.
+	 */
+	public BatchRenderer(DrawBatch batch, int vertexAttribute, int normalAttribute, int colourAttribute) {
+
+		vertexArrayObject = glGenVertexArrays();
+		glBindVertexArray(vertexArrayObject);
+
+		vertexArrayBuffer = attribute(vertexAttribute, batch.vertices);
+		normalArrayBuffer = attribute(normalAttribute, batch.normals);
+		colourArrayBuffer = attribute(colourAttribute, batch.colours);
+
+		elementArrayBuffer = glGenBuffersARB();
+		glBindBufferARB(GL_ELEMENT_ARRAY_BUFFER_ARB, elementArrayBuffer);
+		glBufferDataARB(GL_ELEMENT_ARRAY_BUFFER_ARB, batch.elements, GL_STATIC_DRAW_ARB);
+
+		glBindVertexArray(0);
+
+		commandBuffer = glGenBuffersARB();
+		drawBuffer = glGenBuffersARB();
+	}
+
+	private static int attribute(int attribute, FloatBuffer data) {
+		if (attribute == -1)
+			return 0;
+		int buffer = glGenBuffersARB();
+		glBindBufferARB(GL_ARRAY_BUFFER_ARB, buffer);
+		glBufferDataARB(GL_ARRAY_BUFFER_ARB, data, GL_STATIC_DRAW_ARB);
+		glEnableVertexAttribArrayARB(attribute);
+		glVertexAttribPointerARB(attribute, 3, GL_FLOAT, false, 0, 0);
+		return buffer;
+	}
+
+	/** Draws the commands added to the batch since it was last cleared. */
+	public void draw(DrawBatch batch) {
+
+		if (batch.drawCount == 0)
+			return;
+
+		glBindBufferARB(GL_SHADER_STORAGE_BUFFER, drawBuffer);
+		glBufferDataARB(GL_SHADER_STORAGE_BUFFER, batch.drawData(), GL_STREAM_DRAW_ARB);
+		glBindBufferBase(GL_SHADER_STORAGE_BUFFER, DRAW_BINDING, drawBuffer);
+
+		glBindBufferARB(GL_DRAW_INDIRECT_BUFFER, commandBuffer);
+		glBufferDataARB(GL_DRAW_INDIRECT_BUFFER, batch.commandData(), GL_STREAM_DRAW_ARB);
+
+		glBindVertexArray(vertexArrayObject);
+		glMultiDrawElementsIndirect(GL_TRIANGLES, GL_UNSIGNED_INT, 0, batch.drawCount, 0);
+		glBindVertexArray(0);
+
+		glBindBufferARB(GL_DRAW_INDIRECT_BUFFER, 0);
+	}
+
+	public void free() {
+		for (int buffer : new int[] { vertexArrayBuffer, normalArrayBuffer, colourArrayBuffer, elementArrayBuffer,
+				commandBuffer, drawBuffer })
+			if (buffer != 0)
+				glDeleteBuffersARB(buffer);
+		glDeleteVertexArrays(vertexArrayObject);
+	}
+}
@@ -0,0 +1,235 @@
+package org.twak.gouraud;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.joml.FrustumIntersection;
+import org.joml.Vector3f;
+
+/**
+ * Keeps the chunks of a {@link MeshChunks} file that matter to the camera
+ * on the GPU, within {@link #budget} bytes. Each frame the chunks in the
+ * frustum are ranked by distance and the nearest that fit the budget are
+ * wanted; missing ones are read from disk on a background thread and
+ * uploaded up to {@link #uploadBytesPerFrame} a frame. When room is needed
+ * the least recently drawn chunks are evicted, never one drawn this frame.
+ * <p>
+ * Chunks keep no CPU copy once uploaded, so neither host nor GPU memory
+ * grows with the size of the model.
+ */
+public class ChunkResidency {
+
+	/* reads queued but not yet uploaded, so requests track a moving camera */
+	static final int MAX_IN_FLIGHT = 16;
+
+	public long budget;
+	public long uploadBytesPerFrame;
+
+	/* for reporting */
+	public long residentBytes;
+	public long peakBytes;
+	public int loads;
+	public int evictions;
+
+	final MeshChunks chunks;
+
+	/* in access order, so iteration starts at the least recently drawn; GL thread only */
+	private final LinkedHashMap<MeshChunks.Chunk, Model.Mesh> resident = new LinkedHashMap<>(16, 0.75f, true);
+	private final Set<MeshChunks.Chunk> requested = new HashSet<>();
+	private final ConcurrentLinkedQueue<Loaded> loaded = new ConcurrentLinkedQueue<>();
+	private final ExecutorService reader;
+
+	private final List<MeshChunks.Chunk> ranked = new ArrayList<>();
+	private long frame;
+
+	private static class Loaded {
+		MeshChunks.Chunk chunk;
+		Model.Mesh mesh;
+		MeshArena arena;
+	}
+
+	public ChunkResidency(MeshChunks chunks, long budget, long uploadBytesPerFrame) {
+		this.chunks = chunks;
+		this.budget = budget;
+		this.uploadBytesPerFrame = uploadBytesPerFrame;
+		reader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "chunk reader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Uploads chunks that have been read, requests the ones now wanted and
+	 * adds the resident chunks in the frustum to visible. Call once a frame
+	 * on the GL thread.
+	 *
+	 * @param frustum
+	 *            in the model space the chunks were split in
+	 * @param eye
+	 *            the camera position, in the same space
+	 * @return the number of chunks culled
+	 */
+	public int update(FrustumIntersection frustum, Vector3f eye, List<Model.Mesh> visible) {
+		frame++;
+
+		ranked.clear();
+		for (MeshChunks.Chunk chunk : chunks.chunks)
+			if (frustum.testSphere(chunk.centre.x, chunk.centre.y, chunk.centre.z, chunk.radius)
+					&& frustum.testAab(chunk.min, chunk.max)) {
+				chunk.distance = Math.max(0, eye.distance(chunk.centre) - chunk.radius);
+				ranked.add(chunk);
+			}
+		Collections.sort(ranked, new Comparator<MeshChunks.Chunk>() {
+			@Override
+			public int compare(MeshChunks.Chunk a, MeshChunks.Chunk b) {
+				return Float.compare(a.distance, b.distance);
+			}
+		});
+
+		/* the nearest chunks that fit are used this frame, resident or not */
+		long wanted = 0;
+		int end = 0;
+		while (end < ranked.size() && wanted + ranked.get(end).bytes() <= budget)
+			wanted += ranked.get(end++).bytes();
+		for (int i = 0; i < end; i++)
+			ranked.get(i).lastUsed = frame;
+
+		upload();
+
+		for (int i = 0; i < end; i++) {
+			MeshChunks.Chunk chunk = ranked.get(i);
+			Model.Mesh mesh = resident.get(chunk);
+			if (mesh != null)
+				visible.add(mesh);
+			else if (!requested.contains(chunk) && requested.size() < MAX_IN_FLIGHT)
+				request(chunk);
+		}
+
+		/* resident chunks beyond the budget's reach are still drawn, nearest missing ones are not */
+		for (int i = end; i < ranked.size(); i++) {
+			Model.Mesh mesh = resident.get(ranked.get(i));
+			if (mesh != null)
+				visible.add(mesh);
+		}
+
+		return chunks.chunks.length - ranked.size();
+	}
+
+	private void request(final MeshChunks.Chunk chunk) {
+		requested.add(chunk);
+		reader.execute(new Runnable() {
+			@Override
+			public void run() {
+				Loaded done = new Loaded();
+				done.chunk = chunk;
+				done.arena = new MeshArena();
+				try {
+					done.mesh = chunks.read(chunk, done.arena);
+				} catch (IOException | RuntimeException e) {
+					System.err.println("Could not read chunk " + chunk.index + ": " + e.getMessage());
+					done.arena.free();
+					done.arena = null;
+				}
+				loaded.add(done);
+			}
+		});
+	}
+
+	/**
+	 * Uploads read chunks until the frame's byte allowance is spent, making
+	 * room for each by evicting.
+	 */
+	private void upload() {
+		long allowance = uploadBytesPerFrame;
+		Loaded done;
+		while (allowance > 0 && (done = loaded.poll()) != null) {
+			requested.remove(done.chunk);
+			if (done.mesh == null)
+				continue;
+
+			long bytes = done.chunk.bytes();
+			if (evict(bytes)) {
+				done.mesh.upload();
+				/* the GPU has the data, drop the CPU copy */
+				done.mesh.vertices = done.mesh.normals = done.mesh.colours = null;
+				done.mesh.elements = null;
+				resident.put(done.chunk, done.mesh);
+				residentBytes += bytes;
+				peakBytes = Math.max(peakBytes, residentBytes);
+				allowance -= bytes;
+				loads++;
+			}
+			done.arena.free();
+		}
+	}
+
+	/**
+	 * Evicts least recently used chunks until bytes more fit in the budget.
+	 *
+	 * @return false if they cannot fit without evicting a chunk used this
+	 *         frame; nothing is evicted then
+	 */
+	private boolean evict(long bytes) {
+		long free = budget - residentBytes;
+		if (free >= bytes)
+			return true;
+
+		for (MeshChunks.Chunk chunk : resident.keySet())
+			if (chunk.lastUsed != frame && (free += chunk.bytes()) >= bytes)
+				break;
+		if (free < bytes)
+			return false;
+
+		Iterator<Map.Entry<MeshChunks.Chunk, Model.Mesh>> entries = resident.entrySet().iterator();
+		while (budget - residentBytes < bytes) {
+			Map.Entry<MeshChunks.Chunk, Model.Mesh> entry = entries.next();
+			if (entry.getKey().lastUsed == frame)
+				continue;
+			entry.getValue().deleteBuffers();
+			residentBytes -= entry.getKey().bytes();
+			entries.remove();
+			evictions++;
+		}
+		return true;
+	}
+
+	public String report() {
+		return String.format("chunks: %d of %d resident, %.1fMB of %.1fMB budget (peak %.1fMB), %d loads, %d evictions",
+				resident.size(), chunks.chunks.length, residentBytes / 1048576.0, budget / 1048576.0,
+				peakBytes / 1048576.0, loads, evictions);
+	}
+
+	/** Deletes every resident chunk's buffers and stops the reader. */
+	public void free() {
+		reader.shutdownNow();
+		for (Model.Mesh mesh : resident.values())
+			mesh.deleteBuffers();
+		resident.clear();
+		residentBytes = 0;
+		Loaded done;
+		while ((done = loaded.poll()) != null)
+			if (done.arena != null)
+				done.arena.free();
+		try {
+			chunks.close();
+		} catch (IOException e) {
+			System.err.println("Could not close chunk file: " + e.getMessage());
+		}
+	}
+}
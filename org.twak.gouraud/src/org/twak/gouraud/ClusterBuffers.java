@@ -0,0 +1,64 @@
+package org.twak.gouraud;
+
+import static org.lwjgl.opengl.ARBShaderStorageBufferObject.GL_SHADER_STORAGE_BUFFER;
+import static org.lwjgl.opengl.ARBUniformBufferObject.glBindBufferBase;
+import static org.lwjgl.opengl.ARBVertexBufferObject.*;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.opengl.GLCapabilities;
+
+/**
+ * Uploads {@link LightClusters} each frame into three storage buffers,
+ * bound at {@link #LIGHT_BINDING}, {@link #CLUSTER_BINDING} and
+ * {@link #INDEX_BINDING} for a gouraud_clustered style shader.
+ */
+public class ClusterBuffers {
+
+	public static final int LIGHT_BINDING = 1;
+	public static final int CLUSTER_BINDING = 2;
+	public static final int INDEX_BINDING = 3;
+
+	int lightBuffer;
+	int clusterBuffer;
+	int indexBuffer;
+
+	/* bytes sent to GL by the last upload */
+	public long uploadedBytes;
+
+	public static boolean supported(GLCapabilities caps) {
+		return caps.GL_ARB_shader_storage_buffer_object;
+	}
+
+	public ClusterBuffers() {
+		lightBuffer = glGenBuffersARB();
+		clusterBuffer = glGenBuffersARB();
+		indexBuffer = glGenBuffersARB();
+	}
+
+	public void upload(LightClusters clusters) {
+		uploadedBytes = 0;
+		upload(lightBuffer, LIGHT_BINDING, clusters.lightData);
+		upload(clusterBuffer, CLUSTER_BINDING, clusters.clusterData);
+		upload(indexBuffer, INDEX_BINDING, clusters.indexData);
+	}
+
+	/**
+	 * Orphans and refills a buffer. Empty storage blocks are not allowed,
+	 * so an empty list still gets a few bytes.
+	 */
+	private void upload(int buffer, int binding, ByteBuffer data) {
+		glBindBufferARB(GL_SHADER_STORAGE_BUFFER, buffer);
+		if (data.remaining() == 0)
+			glBufferDataARB(GL_SHADER_STORAGE_BUFFER, 16, GL_STREAM_DRAW_ARB);
+		else
+			glBufferDataARB(GL_SHADER_STORAGE_BUFFER, data, GL_STREAM_DRAW_ARB);
+		glBindBufferBase(GL_SHADER_STORAGE_BUFFER, binding, buffer);
+		uploadedBytes += data.remaining();
+	}
+
+	public void free() {
+		for (int buffer : new int[] { lightBuffer, clusterBuffer, indexBuffer })
+			glDeleteBuffersARB(buffer);
+	}
+}
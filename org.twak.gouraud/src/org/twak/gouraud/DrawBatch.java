@@ -0,0 +1,161 @@
+package org.twak.gouraud;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joml.Matrix3f;
+import org.joml.Matrix4f;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.assimp.AIColor4D;
+
+/**
+ * The CPU side of batched drawing: all meshes of a model, and all their
+ * levels of detail, packed into shared position/normal/colour/element
+ * buffers, and per frame a list of indirect draw commands with one block of
+ * per-draw data each. Needs no GL context; {@link BatchRenderer} uploads
+ * and submits it.
+ *
+ * Each command is a DrawElementsIndirectCommand (count, instanceCount,
+ * firstIndex, baseVertex, baseInstance). The per-draw data is laid out for
+ * a std430 storage buffer as
+ *
+ * <pre>
+ * struct Draw { mat4 model; mat3 normal; vec4 colour; };
+ * </pre>
+ */
+public class DrawBatch {
+
+	public static final int COMMAND_SIZE = 5 * 4;
+	public static final int DRAW_SIZE = 16 * 4 + 12 * 4 + 4 * 4;
+
+	public FloatBuffer vertices;
+	public FloatBuffer normals;
+	public FloatBuffer colours;
+	public IntBuffer elements;
+	public int vertexCount;
+	public int elementCount;
+
+	/* per packed mesh: first element, base vertex, element count */
+	int[] firstIndex;
+	int[] baseVertex;
+	int[] count;
+	Map<Model.Mesh, Integer> slots = new IdentityHashMap<>();
+
+	public ByteBuffer commands = BufferUtils.createByteBuffer(64 * COMMAND_SIZE);
+	public ByteBuffer draws = BufferUtils.createByteBuffer(64 * DRAW_SIZE);
+	public int drawCount;
+
+	public DrawBatch(List<Model.Mesh> meshes) {
+
+		int slotCount = 0;
+		for (Model.Mesh mesh : meshes)
+			for (Model.Mesh level : mesh.lods) {
+				vertexCount += level.vertexCount;
+				elementCount += level.elementCount;
+				slotCount++;
+			}
+
+		vertices = BufferUtils.createFloatBuffer(vertexCount * 3);
+		normals = BufferUtils.createFloatBuffer(vertexCount * 3);
+		colours = BufferUtils.createFloatBuffer(vertexCount * 3);
+		elements = BufferUtils.createIntBuffer(elementCount);
+		firstIndex = new int[slotCount];
+		baseVertex = new int[slotCount];
+		count = new int[slotCount];
+
+		int slot = 0;
+		for (Model.Mesh mesh : meshes)
+			for (Model.Mesh level : mesh.lods) {
+				firstIndex[slot] = elements.position();
+				baseVertex[slot] = vertices.position() / 3;
+				count[slot] = level.elementCount;
+				slots.put(level, slot++);
+
+				put(vertices, level.vertices, level.vertexCount * 3);
+				put(normals, level.normals, level.vertexCount * 3);
+				put(colours, level.colours, level.vertexCount * 3);
+				for (int i = 0; i < level.elementCount; i++)
+					elements.put(level.elements.get(i));
+			}
+
+		vertices.flip();
+		normals.flip();
+		colours.flip();
+		elements.flip();
+	}
+
+	private static void put(FloatBuffer dst, FloatBuffer src, int count) {
+		for (int i = 0; i < count; i++)
+			dst.put(src.get(i));
+	}
+
+	/** Starts a new list of draws. */
+	public void clear() {
+		drawCount = 0;
+		commands.clear();
+		draws.clear();
+	}
+
+	/**
+	 * Appends a draw of one packed mesh.
+	 *
+	 * @param mesh
+	 *            a mesh, or one of its levels of detail, that the batch was
+	 *            built with
+	 * @param colour
+	 *            the material colour, may be null for white
+	 */
+	public void add(Model.Mesh mesh, Matrix4f modelMatrix, Matrix3f normalMatrix, AIColor4D colour) {
+
+		Integer slot = slots.get(mesh);
+		if (slot == null)
+			throw new IllegalStateException("mesh is not part of this batch");
+
+		if (commands.remaining() < COMMAND_SIZE)
+			commands = grow(commands);
+		if (draws.remaining() < DRAW_SIZE)
+			draws = grow(draws);
+
+		commands.putInt(count[slot]).putInt(1).putInt(firstIndex[slot]).putInt(baseVertex[slot]).putInt(drawCount);
+
+		int o = draws.position();
+		modelMatrix.get(o, draws);
+		o += 16 * 4;
+		draws.putFloat(o, normalMatrix.m00()).putFloat(o + 4, normalMatrix.m01()).putFloat(o + 8, normalMatrix.m02());
+		draws.putFloat(o + 16, normalMatrix.m10()).putFloat(o + 20, normalMatrix.m11()).putFloat(o + 24, normalMatrix.m12());
+		draws.putFloat(o + 32, normalMatrix.m20()).putFloat(o + 36, normalMatrix.m21()).putFloat(o + 40, normalMatrix.m22());
+		o += 12 * 4;
+		if (colour == null)
+			draws.putFloat(o, 1).putFloat(o + 4, 1).putFloat(o + 8, 1).putFloat(o + 12, 1);
+		else
+			draws.putFloat(o, colour.r()).putFloat(o + 4, colour.g()).putFloat(o + 8, colour.b()).putFloat(o + 12, colour.a());
+		draws.position(draws.position() + DRAW_SIZE);
+
+		drawCount++;
+	}
+
+	/** @return the commands added since {@link #clear()}, ready to upload */
+	public ByteBuffer commandData() {
+		ByteBuffer data = commands.duplicate();
+		data.flip();
+		return data;
+	}
+
+	/** @return the per-draw data added since {@link #clear()}, ready to upload */
+	public ByteBuffer drawData() {
+		ByteBuffer data = draws.duplicate();
+		data.flip();
+		return data;
+	}
+
+	private static ByteBuffer grow(ByteBuffer buffer) {
+		ByteBuffer bigger = BufferUtils.createByteBuffer(buffer.capacity() * 2);
+		buffer.flip();
+		bigger.put(buffer);
+		return bigger;
+	}
+}
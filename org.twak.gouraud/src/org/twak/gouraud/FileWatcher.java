@@ -0,0 +1,109 @@
+package org.twak.gouraud;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports files that are created or modified in a set of directories, on a
+ * daemon thread. Editors tend to write a file in several steps, so events
+ * are gathered until the directories have been quiet for
+ * {@link #SETTLE_MS} and each changed file is reported once.
+ */
+public class FileWatcher {
+
+	public interface Listener {
+		/** Called on the watcher thread. */
+		void changed(File file);
+	}
+
+	static final long SETTLE_MS = 100;
+
+	private final WatchService service;
+	private final Listener listener;
+	private final Map<WatchKey, Path> directories = new HashMap<>();
+	private final Thread thread;
+
+	public FileWatcher(Listener listener) throws IOException {
+		this.listener = listener;
+		service = FileSystems.getDefault().newWatchService();
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				poll();
+			}
+		}, "file watcher");
+		thread.setDaemon(true);
+	}
+
+	/** Watches the directory containing file, or file itself if it is a directory. */
+	public synchronized void watch(File file) throws IOException {
+		File directory = file.isDirectory() ? file : file.getAbsoluteFile().getParentFile();
+		Path path = directory.toPath().toAbsolutePath().normalize();
+		if (directories.containsValue(path))
+			return;
+		directories.put(path.register(service, ENTRY_CREATE, ENTRY_MODIFY), path);
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	private void poll() {
+		try {
+			while (true) {
+				Set<File> changed = new LinkedHashSet<>();
+				WatchKey key = service.take();
+				do {
+					collect(key, changed);
+				} while ((key = service.poll(SETTLE_MS, TimeUnit.MILLISECONDS)) != null);
+
+				for (File file : changed) {
+					try {
+						listener.changed(file);
+					} catch (Throwable t) {
+						t.printStackTrace();
+					}
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// closed
+		}
+	}
+
+	private void collect(WatchKey key, Set<File> changed) {
+		Path directory;
+		synchronized (this) {
+			directory = directories.get(key);
+		}
+		for (WatchEvent<?> event : key.pollEvents())
+			if (event.kind() != OVERFLOW && directory != null)
+				changed.add(directory.resolve((Path) event.context()).toFile());
+		key.reset();
+	}
+
+	/** Whether two paths name the same file, after making them absolute. */
+	public static boolean same(File a, File b) {
+		return a.toPath().toAbsolutePath().normalize().equals(b.toPath().toAbsolutePath().normalize());
+	}
+
+	public void close() {
+		try {
+			service.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package org.twak.gouraud;
+
+import static org.lwjgl.opengl.ARBFramebufferObject.*;
+import static org.lwjgl.opengl.ARBPixelBufferObject.GL_PIXEL_PACK_BUFFER_ARB;
+import static org.lwjgl.opengl.ARBSync.*;
+import static org.lwjgl.opengl.ARBVertexBufferObject.*;
+import static org.lwjgl.opengl.GL11.*;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An offscreen framebuffer whose frames are read back through a ring of
+ * pixel buffer objects. {@link #readback} only queues the copy into the
+ * next buffer in the ring; a frame is mapped and handed to the consumer
+ * once its fence has passed, or when its buffer is needed again, so the
+ * transfer of one frame overlaps rendering of the following ones.
+ */
+public class FrameReader {
+
+	public interface Consumer {
+		/**
+		 * @param pixels
+		 *            RGBA8, bottom row first; only valid during the call
+		 */
+		void frame(long frame, ByteBuffer pixels, int width, int height);
+	}
+
+	public final int width;
+	public final int height;
+
+	int framebuffer;
+	int colourBuffer;
+	int depthBuffer;
+
+	int[] pixelBuffers;
+	long[] fences;
+	long[] frames;
+	/* next ring slot to write, and the number of slots waiting to be read */
+	int head;
+	int pending;
+
+	public FrameReader(int width, int height, int ringSize) {
+		this.width = width;
+		this.height = height;
+
+		framebuffer = glGenFramebuffers();
+		glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+
+		colourBuffer = glGenRenderbuffers();
+		glBindRenderbuffer(GL_RENDERBUFFER, colourBuffer);
+		glRenderbufferStorage(GL_RENDERBUFFER, GL_RGBA8, width, height);
+		glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_RENDERBUFFER, colourBuffer);
+
+		depthBuffer = glGenRenderbuffers();
+		glBindRenderbuffer(GL_RENDERBUFFER, depthBuffer);
+		glRenderbufferStorage(GL_RENDERBUFFER, GL_DEPTH_COMPONENT24, width, height);
+		glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_RENDERBUFFER, depthBuffer);
+
+		int status = glCheckFramebufferStatus(GL_FRAMEBUFFER);
+		if (status != GL_FRAMEBUFFER_COMPLETE)
+			throw new IllegalStateException("Incomplete framebuffer: 0x" + Integer.toHexString(status));
+		glBindFramebuffer(GL_FRAMEBUFFER, 0);
+
+		pixelBuffers = new int[ringSize];
+		fences = new long[ringSize];
+		frames = new long[ringSize];
+		for (int i = 0; i < ringSize; i++) {
+			pixelBuffers[i] = glGenBuffersARB();
+			glBindBufferARB(GL_PIXEL_PACK_BUFFER_ARB, pixelBuffers[i]);
+			glBufferDataARB(GL_PIXEL_PACK_BUFFER_ARB, width * height * 4, GL_STREAM_READ_ARB);
+		}
+		glBindBufferARB(GL_PIXEL_PACK_BUFFER_ARB, 0);
+	}
+
+	/** Directs rendering into the offscreen framebuffer. */
+	public void bind() {
+		glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+		glViewport(0, 0, width, height);
+	}
+
+	/**
+	 * Queues a copy of the framebuffer, then delivers any earlier frames
+	 * that have arrived. Blocks only if the ring is full.
+	 */
+	public void readback(long frame, Consumer consumer) {
+
+		if (pending == pixelBuffers.length)
+			deliver(consumer, true);
+
+		glBindFramebuffer(GL_READ_FRAMEBUFFER, framebuffer);
+		glBindBufferARB(GL_PIXEL_PACK_BUFFER_ARB, pixelBuffers[head]);
+		glReadPixels(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, 0L);
+		glBindBufferARB(GL_PIXEL_PACK_BUFFER_ARB, 0);
+		fences[head] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+		frames[head] = frame;
+		head = (head + 1) % pixelBuffers.length;
+		pending++;
+
+		while (pending > 0 && deliver(consumer, false))
+			;
+	}
+
+	/** Waits for and delivers all queued frames. */
+	public void finish(Consumer consumer) {
+		while (pending > 0)
+			deliver(consumer, true);
+	}
+
+	/**
+	 * Hands over the oldest queued frame if its copy has completed.
+	 *
+	 * @param wait
+	 *            block until it has
+	 * @return whether a frame was delivered
+	 */
+	private boolean deliver(Consumer consumer, boolean wait) {
+		int tail = (head - pending + pixelBuffers.length) % pixelBuffers.length;
+
+		int result = glClientWaitSync(fences[tail], GL_SYNC_FLUSH_COMMANDS_BIT, wait ? GL_TIMEOUT_IGNORED : 0);
+		if (result == GL_TIMEOUT_EXPIRED)
+			return false;
+		if (result == GL_WAIT_FAILED)
+			throw new IllegalStateException("glClientWaitSync failed");
+		glDeleteSync(fences[tail]);
+
+		glBindBufferARB(GL_PIXEL_PACK_BUFFER_ARB, pixelBuffers[tail]);
+		ByteBuffer pixels = glMapBufferARB(GL_PIXEL_PACK_BUFFER_ARB, GL_READ_ONLY_ARB);
+		if (pixels == null)
+			throw new IllegalStateException("Unable to map pixel buffer");
+		try {
+			consumer.frame(frames[tail], pixels, width, height);
+		} finally {
+			glUnmapBufferARB(GL_PIXEL_PACK_BUFFER_ARB);
+			glBindBufferARB(GL_PIXEL_PACK_BUFFER_ARB, 0);
+		}
+
+		pending--;
+		return true;
+	}
+
+	/**
+	 * Copies a frame as delivered to a {@link Consumer} into image, top row
+	 * first as image writers expect, and flips image for reading.
+	 */
+	public static void flip(ByteBuffer pixels, ByteBuffer image, int width, int height) {
+		for (int y = 0; y < height; y++) {
+			pixels.limit((height - y) * width * 4).position((height - y - 1) * width * 4);
+			image.put(pixels);
+		}
+		image.flip();
+	}
+
+	public void free() {
+		for (int i = 0; i < pending; i++)
+			glDeleteSync(fences[(head - pending + i + pixelBuffers.length) % pixelBuffers.length]);
+		pending = 0;
+		for (int buffer : pixelBuffers)
+			glDeleteBuffersARB(buffer);
+		glDeleteRenderbuffers(colourBuffer);
+		glDeleteRenderbuffers(depthBuffer);
+		glDeleteFramebuffers(framebuffer);
+	}
+}
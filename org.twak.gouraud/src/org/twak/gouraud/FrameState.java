@@ -0,0 +1,21 @@
+package org.twak.gouraud;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+/**
+ * What the input thread decided a frame should show: the camera and the
+ * framebuffer size, with the time of the input it reflects. Written by one
+ * thread and then only read by the render thread, once passed through a
+ * {@link TripleBuffer}.
+ */
+public class FrameState {
+
+	public final Matrix4f projectionMatrix = new Matrix4f();
+	public final Matrix4f viewMatrix = new Matrix4f();
+	public final Vector3f viewPosition = new Vector3f();
+	public int fbWidth, fbHeight;
+
+	/* the earliest input event first shown by this frame, from System.nanoTime(), or 0 */
+	public long inputNanos;
+}
@@ -0,0 +1,297 @@
+package org.twak.gouraud;
+
+import static org.lwjgl.opengl.ARBTimerQuery.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.util.remotery.Remotery.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.opengl.GLCapabilities;
+
+/**
+ * Per-frame timings: CPU time for each stage of the frame, GPU time for
+ * rendering from timer queries, draw call and triangle counts, and the
+ * latency from an input event to the swap of the first frame showing it. The
+ * last {@link #HISTORY} frames are kept for p50/p95/p99 statistics, which
+ * are written to {@link #output} every {@link #interval} seconds, as a
+ * JSON summary or, if the name ends in .csv, an appended row.
+ * <p>
+ * Until {@link #enable} is called every method returns immediately, so the
+ * calls can stay in the render loop.
+ */
+public class FrameStats {
+
+	public static final int UPDATE = 0, UPLOAD = 1, RENDER = 2, SWAP = 3, FRAME = 4;
+	static final String[] NAMES = { "update", "upload", "render", "swap", "frame" };
+
+	public static final int HISTORY = 1024;
+	/* frames a timer query may lag before its result is waited for */
+	static final int QUERY_FRAMES = 4;
+
+	public File output = new File("frames.json");
+	public float interval = 5;
+
+	private boolean enabled;
+	private long frame;
+	private long[] started = new long[NAMES.length];
+	private long[][] cpu = new long[NAMES.length][HISTORY];
+	private long[] gpu = new long[HISTORY];
+	private int[] draws = new int[HISTORY];
+	private long[] triangles = new long[HISTORY];
+	private long gpuFrames;
+	private long[] latency = new long[HISTORY];
+	private long latencies;
+	private long lastDump;
+
+	private int frameDraws;
+	private long frameTriangles;
+
+	private int[] queries;
+	private long[] queryFrames;
+
+	private long remotery;
+	private IntBuffer[] sampleHashes;
+
+	/**
+	 * Starts measuring.
+	 *
+	 * @param caps
+	 *            GPU times are recorded if ARB_timer_query is present
+	 * @param remotery
+	 *            also send samples to a Remotery profiler, viewed by opening
+	 *            vis/index.html from the Remotery sources in a browser
+	 */
+	public void enable(GLCapabilities caps, boolean remotery) {
+		if (caps.GL_ARB_timer_query) {
+			queries = new int[QUERY_FRAMES];
+			queryFrames = new long[QUERY_FRAMES];
+			for (int i = 0; i < QUERY_FRAMES; i++) {
+				queries[i] = glGenQueries();
+				queryFrames[i] = -1;
+			}
+		}
+
+		if (remotery) {
+			PointerBuffer instance = BufferUtils.createPointerBuffer(1);
+			if (rmt_CreateGlobalInstance(instance) != RMT_ERROR_NONE)
+				System.err.println("Could not start Remotery");
+			else {
+				this.remotery = instance.get(0);
+				rmt_BindOpenGL();
+				sampleHashes = new IntBuffer[NAMES.length + 1];
+				for (int i = 0; i < sampleHashes.length; i++)
+					sampleHashes[i] = BufferUtils.createIntBuffer(1);
+			}
+		}
+
+		lastDump = System.nanoTime();
+		enabled = true;
+	}
+
+	public boolean enabled() {
+		return enabled;
+	}
+
+	public void beginFrame() {
+		if (!enabled)
+			return;
+		frameDraws = 0;
+		frameTriangles = 0;
+		begin(FRAME);
+	}
+
+	public void begin(int stage) {
+		if (!enabled)
+			return;
+		if (remotery != 0)
+			rmt_BeginCPUSample(NAMES[stage], RMTSF_None, sampleHashes[stage]);
+		if (stage == RENDER) {
+			if (queries != null)
+				beginQuery();
+			if (remotery != 0)
+				rmt_BeginOpenGLSample("gpu", sampleHashes[NAMES.length]);
+		}
+		started[stage] = System.nanoTime();
+	}
+
+	public void end(int stage) {
+		if (!enabled)
+			return;
+		cpu[stage][(int) (frame % HISTORY)] = System.nanoTime() - started[stage];
+		if (stage == RENDER) {
+			if (queries != null)
+				glEndQuery(GL_TIME_ELAPSED);
+			if (remotery != 0)
+				rmt_EndOpenGLSample();
+		}
+		if (remotery != 0)
+			rmt_EndCPUSample();
+	}
+
+	/** Records the time from an input event until a frame showing it was swapped. */
+	public void latency(long nanos) {
+		if (!enabled)
+			return;
+		latency[(int) (latencies++ % HISTORY)] = nanos;
+	}
+
+	/** Counts draw calls and the triangles they submit. */
+	public void draw(int calls, long triangles) {
+		if (!enabled)
+			return;
+		frameDraws += calls;
+		frameTriangles += triangles;
+	}
+
+	public void endFrame() {
+		if (!enabled)
+			return;
+		end(FRAME);
+		draws[(int) (frame % HISTORY)] = frameDraws;
+		triangles[(int) (frame % HISTORY)] = frameTriangles;
+		frame++;
+
+		long now = System.nanoTime();
+		if (now - lastDump >= interval * 1e9) {
+			lastDump = now;
+			dump();
+		}
+	}
+
+	/**
+	 * Reuses the oldest query in the ring, collecting its result first. By
+	 * then it is several frames old and the wait is normally free.
+	 */
+	private void beginQuery() {
+		int slot = (int) (frame % QUERY_FRAMES);
+		if (queryFrames[slot] >= 0) {
+			gpu[(int) (queryFrames[slot] % HISTORY)] = glGetQueryObjectui64(queries[slot], GL_QUERY_RESULT);
+			gpuFrames++;
+		}
+		queryFrames[slot] = frame;
+		glBeginQuery(GL_TIME_ELAPSED, queries[slot]);
+	}
+
+	/**
+	 * @return the given percentile of a stage's CPU time over recent frames,
+	 *         in milliseconds
+	 */
+	public double cpuPercentile(int stage, double percentile) {
+		return percentile(cpu[stage], (int) Math.min(frame, HISTORY), percentile);
+	}
+
+	/** As {@link #cpuPercentile}, for input latency. */
+	public double latencyPercentile(double percentile) {
+		return percentile(latency, (int) Math.min(latencies, HISTORY), percentile);
+	}
+
+	/** As {@link #cpuPercentile}, for the GPU time of the render stage. */
+	public double gpuPercentile(double percentile) {
+		return percentile(gpu, (int) Math.min(gpuFrames, HISTORY), percentile);
+	}
+
+	private static double percentile(long[] nanos, int count, double percentile) {
+		if (count == 0)
+			return 0;
+		long[] sorted = Arrays.copyOf(nanos, count);
+		Arrays.sort(sorted);
+		return sorted[Math.min(count - 1, (int) (percentile / 100 * count))] / 1e6;
+	}
+
+	private double mean(int[] values) {
+		int count = (int) Math.min(frame, HISTORY);
+		long sum = 0;
+		for (int i = 0; i < count; i++)
+			sum += values[i];
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	private double mean(long[] values) {
+		int count = (int) Math.min(frame, HISTORY);
+		double sum = 0;
+		for (int i = 0; i < count; i++)
+			sum += values[i];
+		return count == 0 ? 0 : sum / count;
+	}
+
+	/** Writes the current statistics to {@link #output}. */
+	public void dump() {
+		if (!enabled || frame == 0)
+			return;
+		try {
+			if (output.getName().endsWith(".csv"))
+				writeCsv();
+			else
+				writeJson();
+		} catch (IOException e) {
+			System.err.println("Could not write " + output + ": " + e.getMessage());
+		}
+	}
+
+	private void writeJson() throws IOException {
+		try (PrintWriter out = new PrintWriter(new FileWriter(output))) {
+			out.println("{");
+			out.println("  \"frames\": " + frame + ",");
+			out.println("  \"cpu\": {");
+			for (int stage = 0; stage < NAMES.length; stage++)
+				out.println("    \"" + NAMES[stage] + "\": " + json(cpuPercentile(stage, 50), cpuPercentile(stage, 95),
+						cpuPercentile(stage, 99)) + (stage < NAMES.length - 1 ? "," : ""));
+			out.println("  },");
+			out.println("  \"gpu\": " + json(gpuPercentile(50), gpuPercentile(95), gpuPercentile(99)) + ",");
+			out.println("  \"latency\": " + json(latencyPercentile(50), latencyPercentile(95), latencyPercentile(99)) + ",");
+			out.println(String.format(Locale.ROOT, "  \"draws\": %.1f,", mean(draws)));
+			out.println(String.format(Locale.ROOT, "  \"triangles\": %.0f", mean(triangles)));
+			out.println("}");
+		}
+	}
+
+	private static String json(double p50, double p95, double p99) {
+		return String.format(Locale.ROOT, "{ \"p50\": %.3f, \"p95\": %.3f, \"p99\": %.3f }", p50, p95, p99);
+	}
+
+	private void writeCsv() throws IOException {
+		boolean header = !output.isFile();
+		try (PrintWriter out = new PrintWriter(new FileWriter(output, true))) {
+			if (header) {
+				StringBuilder names = new StringBuilder("time,frames");
+				for (String name : NAMES)
+					names.append(',').append(name).append("_p50,").append(name).append("_p95,").append(name).append("_p99");
+				out.println(names + ",gpu_p50,gpu_p95,gpu_p99,draws,triangles,latency_p50,latency_p95,latency_p99");
+			}
+			StringBuilder row = new StringBuilder().append(System.currentTimeMillis()).append(',').append(frame);
+			for (int stage = 0; stage < NAMES.length; stage++)
+				row.append(String.format(Locale.ROOT, ",%.3f,%.3f,%.3f", cpuPercentile(stage, 50), cpuPercentile(stage, 95), cpuPercentile(stage, 99)));
+			row.append(String.format(Locale.ROOT, ",%.3f,%.3f,%.3f,%.1f,%.0f", gpuPercentile(50), gpuPercentile(95), gpuPercentile(99), mean(draws), mean(triangles)));
+			row.append(String.format(Locale.ROOT, ",%.3f,%.3f,%.3f", latencyPercentile(50), latencyPercentile(95), latencyPercentile(99)));
+			out.println(row);
+		}
+	}
+
+	/** Writes a last dump and releases the queries and profiler. */
+	public void free() {
+		if (!enabled)
+			return;
+		dump();
+		System.out.println(String.format(Locale.ROOT, "frame time p50 %.2fms p95 %.2fms p99 %.2fms", cpuPercentile(FRAME, 50),
+				cpuPercentile(FRAME, 95), cpuPercentile(FRAME, 99)));
+		if (latencies > 0)
+			System.out.println(String.format(Locale.ROOT, "input latency p50 %.2fms p95 %.2fms p99 %.2fms",
+					latencyPercentile(50), latencyPercentile(95), latencyPercentile(99)));
+		if (queries != null)
+			for (int query : queries)
+				glDeleteQueries(query);
+		if (remotery != 0) {
+			rmt_UnbindOpenGL();
+			rmt_DestroyGlobalInstance(remotery);
+		}
+		enabled = false;
+	}
+}
@@ -0,0 +1,89 @@
+package org.twak.gouraud;
+
+import static org.lwjgl.egl.EGL10.*;
+import static org.lwjgl.egl.EGL12.EGL_RENDERABLE_TYPE;
+import static org.lwjgl.egl.EGL12.eglBindAPI;
+import static org.lwjgl.egl.EGL14.EGL_OPENGL_API;
+import static org.lwjgl.egl.EGL14.EGL_OPENGL_BIT;
+import static org.lwjgl.system.MemoryUtil.memAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.system.Configuration;
+import org.lwjgl.system.FunctionProvider;
+
+/**
+ * A desktop OpenGL context on an EGL pbuffer, for rendering without a
+ * window or display server. Frames are drawn into a {@link FrameReader}'s
+ * framebuffer; the pbuffer itself is only a token surface.
+ * <p>
+ * With Mesa, EGL_PLATFORM=surfaceless and LIBGL_ALWAYS_SOFTWARE=1 give a
+ * llvmpipe context on machines with no GPU at all.
+ * <p>
+ * GL functions are resolved through eglGetProcAddress, so this must be
+ * created before anything touches {@link GL}.
+ */
+public class HeadlessContext {
+
+	long display;
+	long surface;
+	long context;
+
+	public HeadlessContext() {
+
+		Configuration.OPENGL_EXPLICIT_INIT.set(true);
+
+		display = eglGetDisplay(EGL_DEFAULT_DISPLAY);
+		IntBuffer major = BufferUtils.createIntBuffer(1), minor = BufferUtils.createIntBuffer(1);
+		if (display == EGL_NO_DISPLAY || !eglInitialize(display, major, minor))
+			throw new IllegalStateException("Unable to initialize EGL: 0x" + Integer.toHexString(eglGetError()));
+		System.out.println("EGL " + major.get(0) + "." + minor.get(0) + " " + eglQueryString(display, EGL_VENDOR));
+
+		IntBuffer configAttributes = BufferUtils.createIntBuffer(15);
+		configAttributes.put(EGL_SURFACE_TYPE).put(EGL_PBUFFER_BIT);
+		configAttributes.put(EGL_RENDERABLE_TYPE).put(EGL_OPENGL_BIT);
+		configAttributes.put(EGL_RED_SIZE).put(8).put(EGL_GREEN_SIZE).put(8).put(EGL_BLUE_SIZE).put(8);
+		configAttributes.put(EGL_DEPTH_SIZE).put(24);
+		configAttributes.put(EGL_NONE).flip();
+
+		PointerBuffer configs = BufferUtils.createPointerBuffer(1);
+		IntBuffer configCount = BufferUtils.createIntBuffer(1);
+		if (!eglChooseConfig(display, configAttributes, configs, configCount) || configCount.get(0) == 0)
+			throw new IllegalStateException("No EGL config for desktop OpenGL on a pbuffer");
+		long config = configs.get(0);
+
+		IntBuffer surfaceAttributes = BufferUtils.createIntBuffer(5);
+		surfaceAttributes.put(EGL_WIDTH).put(1).put(EGL_HEIGHT).put(1).put(EGL_NONE).flip();
+		surface = eglCreatePbufferSurface(display, config, surfaceAttributes);
+		if (surface == EGL_NO_SURFACE)
+			throw new IllegalStateException("Unable to create EGL pbuffer: 0x" + Integer.toHexString(eglGetError()));
+
+		if (!eglBindAPI(EGL_OPENGL_API))
+			throw new IllegalStateException("EGL does not support desktop OpenGL");
+		context = eglCreateContext(display, config, EGL_NO_CONTEXT, null);
+		if (context == EGL_NO_CONTEXT)
+			throw new IllegalStateException("Unable to create EGL context: 0x" + Integer.toHexString(eglGetError()));
+
+		if (!eglMakeCurrent(display, surface, surface, context))
+			throw new IllegalStateException("Unable to make EGL context current");
+
+		GL.create(new FunctionProvider() {
+			@Override
+			public long getFunctionAddress(ByteBuffer functionName) {
+				return neglGetProcAddress(memAddress(functionName));
+			}
+		});
+	}
+
+	public void free() {
+		eglMakeCurrent(display, EGL_NO_SURFACE, EGL_NO_SURFACE, EGL_NO_CONTEXT);
+		eglDestroyContext(display, context);
+		eglDestroySurface(display, surface);
+		eglTerminate(display);
+		GL.destroy();
+	}
+}
@@ -0,0 +1,245 @@
+package org.twak.gouraud;
+
+import static org.lwjgl.opengl.ARBInstancedArrays.glVertexAttribDivisorARB;
+import static org.lwjgl.opengl.ARBShaderObjects.*;
+import static org.lwjgl.opengl.ARBVertexBufferObject.*;
+import static org.lwjgl.opengl.ARBVertexShader.*;
+import static org.lwjgl.opengl.GL11.GL_FLOAT;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.joml.Matrix3f;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GLCapabilities;
+
+/**
+ * Every placement of one mesh in the scene, drawn with a single instanced
+ * call. Each instance's model matrix and normal matrix are stored in an
+ * instanced vertex buffer, read by the shaders as
+ *
+ * <pre>
+ * in mat4 aModelMatrix;
+ * in mat3 aNormalMatrix;
+ * </pre>
+ *
+ * when compiled with {@link #DEFINE}. Changed instances are marked and only
+ * they are uploaded by {@link #update()}, as a few glBufferSubData ranges;
+ * the whole buffer is sent again only when it has to grow.
+ */
+public class InstanceBuffer {
+
+	public static final int STRIDE = 16 * 4 + 9 * 4;
+	public static final String DEFINE = "#define INSTANCED\n";
+	/* dirty runs closer than this many instances are uploaded as one range */
+	static final int MERGE_GAP = 16;
+
+	public final Model.Mesh mesh;
+	public int count;
+
+	/* ranges and bytes sent by update(), for reporting */
+	public int uploadedRanges;
+	public long uploadedBytes;
+
+	int buffer;
+	private int capacity;
+	private ByteBuffer data;
+	private Matrix4f[] transforms;
+	/* world space bounding sphere of each instance: centre xyz, radius */
+	private float[] spheres;
+	private BitSet dirty = new BitSet();
+	private boolean reallocate = true;
+
+	private Matrix3f normalMatrix = new Matrix3f();
+	private Vector3f centre = new Vector3f();
+
+	public InstanceBuffer(Model.Mesh mesh) {
+		this(mesh, 16);
+	}
+
+	public InstanceBuffer(Model.Mesh mesh, int capacity) {
+		this.mesh = mesh;
+		this.capacity = Math.max(capacity, 1);
+		data = BufferUtils.createByteBuffer(this.capacity * STRIDE);
+		transforms = new Matrix4f[this.capacity];
+		spheres = new float[this.capacity * 4];
+	}
+
+	public static boolean supported(GLCapabilities caps) {
+		return caps.GL_ARB_instanced_arrays && caps.GL_ARB_draw_instanced;
+	}
+
+	/**
+	 * @return the new instance's index
+	 */
+	public int add(Matrix4f transform) {
+		if (count == capacity)
+			grow(capacity * 2);
+		transforms[count] = new Matrix4f();
+		set(count++, transform);
+		return count - 1;
+	}
+
+	/** Moves an instance; it is uploaded by the next {@link #update()}. */
+	public void set(int index, Matrix4f transform) {
+		if (index >= count)
+			throw new IndexOutOfBoundsException(index + " of " + count);
+
+		Matrix4f m = transforms[index].set(transform);
+		normalMatrix.set(m).invert().transpose();
+
+		int o = index * STRIDE;
+		m.get(o, data);
+		o += 16 * 4;
+		data.putFloat(o, normalMatrix.m00()).putFloat(o + 4, normalMatrix.m01()).putFloat(o + 8, normalMatrix.m02());
+		data.putFloat(o + 12, normalMatrix.m10()).putFloat(o + 16, normalMatrix.m11()).putFloat(o + 20, normalMatrix.m12());
+		data.putFloat(o + 24, normalMatrix.m20()).putFloat(o + 28, normalMatrix.m21()).putFloat(o + 32, normalMatrix.m22());
+
+		m.transformPosition(mesh.centre, centre);
+		spheres[index * 4] = centre.x;
+		spheres[index * 4 + 1] = centre.y;
+		spheres[index * 4 + 2] = centre.z;
+		spheres[index * 4 + 3] = mesh.radius * scale(m);
+
+		dirty.set(index);
+	}
+
+	/**
+	 * @return the largest factor m scales an axis by, to carry bounding
+	 *         spheres through it
+	 */
+	public static float scale(Matrix4f m) {
+		return (float) Math.sqrt(Math.max(Math.max(
+				m.m00() * m.m00() + m.m01() * m.m01() + m.m02() * m.m02(),
+				m.m10() * m.m10() + m.m11() * m.m11() + m.m12() * m.m12()),
+				m.m20() * m.m20() + m.m21() * m.m21() + m.m22() * m.m22()));
+	}
+
+	/** @return a copy of an instance's transform */
+	public Matrix4f get(int index) {
+		if (index >= count)
+			throw new IndexOutOfBoundsException(index + " of " + count);
+		return new Matrix4f(transforms[index]);
+	}
+
+	/**
+	 * Removes an instance. The last instance takes its index.
+	 */
+	public void remove(int index) {
+		if (index >= count)
+			throw new IndexOutOfBoundsException(index + " of " + count);
+		count--;
+		if (index < count)
+			set(index, transforms[count]);
+		transforms[count] = null;
+		dirty.clear(count);
+	}
+
+	/** The bounding sphere of an instance in world space, in out as xyz radius. */
+	public float[] sphere(int index, float[] out) {
+		System.arraycopy(spheres, index * 4, out, 0, 4);
+		return out;
+	}
+
+	private void grow(int capacity) {
+		ByteBuffer bigger = BufferUtils.createByteBuffer(capacity * STRIDE);
+		data.limit(count * STRIDE).position(0);
+		bigger.put(data).clear();
+		data = bigger;
+		transforms = Arrays.copyOf(transforms, capacity);
+		spheres = Arrays.copyOf(spheres, capacity * 4);
+		this.capacity = capacity;
+		reallocate = true;
+	}
+
+	/**
+	 * Sends changed instances to GL, creating or growing the buffer as
+	 * needed. Leaves the buffer bound to GL_ARRAY_BUFFER.
+	 */
+	public void update() {
+		if (buffer == 0)
+			buffer = glGenBuffersARB();
+		glBindBufferARB(GL_ARRAY_BUFFER_ARB, buffer);
+
+		if (reallocate) {
+			data.clear();
+			glBufferDataARB(GL_ARRAY_BUFFER_ARB, data, GL_DYNAMIC_DRAW_ARB);
+			uploadedRanges++;
+			uploadedBytes += data.capacity();
+			reallocate = false;
+			dirty.clear();
+			return;
+		}
+
+		int start = dirty.nextSetBit(0);
+		while (start >= 0 && start < count) {
+			/* extend the run over short gaps, one call is cheaper than several */
+			int end = dirty.nextClearBit(start), next;
+			while ((next = dirty.nextSetBit(end)) >= 0 && next - end < MERGE_GAP)
+				end = dirty.nextClearBit(next);
+			end = Math.min(end, count);
+
+			ByteBuffer range = data.duplicate();
+			range.limit(end * STRIDE).position(start * STRIDE);
+			glBufferSubDataARB(GL_ARRAY_BUFFER_ARB, start * STRIDE, range);
+			uploadedRanges++;
+			uploadedBytes += (end - start) * STRIDE;
+
+			start = next;
+		}
+		dirty.clear();
+	}
+
+	/**
+	 * Points the instanced attributes at this buffer, which must be bound.
+	 * A mat4 attribute takes four consecutive locations, one per column, and
+	 * a mat3 three.
+	 *
+	 * @param modelAttribute
+	 *            aModelMatrix's location, or -1
+	 * @param normalAttribute
+	 *            aNormalMatrix's location, or -1
+	 */
+	public static void bind(int modelAttribute, int normalAttribute) {
+		if (modelAttribute != -1)
+			for (int column = 0; column < 4; column++) {
+				glEnableVertexAttribArrayARB(modelAttribute + column);
+				glVertexAttribPointerARB(modelAttribute + column, 4, GL_FLOAT, false, STRIDE, column * 16);
+				glVertexAttribDivisorARB(modelAttribute + column, 1);
+			}
+		if (normalAttribute != -1)
+			for (int column = 0; column < 3; column++) {
+				glEnableVertexAttribArrayARB(normalAttribute + column);
+				glVertexAttribPointerARB(normalAttribute + column, 3, GL_FLOAT, false, STRIDE, 64 + column * 12);
+				glVertexAttribDivisorARB(normalAttribute + column, 1);
+			}
+	}
+
+	/**
+	 * Undoes {@link #bind}, so the locations can be reused by a program
+	 * with ordinary attributes there.
+	 */
+	public static void unbind(int modelAttribute, int normalAttribute) {
+		if (modelAttribute != -1)
+			for (int column = 0; column < 4; column++) {
+				glVertexAttribDivisorARB(modelAttribute + column, 0);
+				glDisableVertexAttribArrayARB(modelAttribute + column);
+			}
+		if (normalAttribute != -1)
+			for (int column = 0; column < 3; column++) {
+				glVertexAttribDivisorARB(normalAttribute + column, 0);
+				glDisableVertexAttribArrayARB(normalAttribute + column);
+			}
+	}
+
+	public void free() {
+		if (buffer != 0)
+			glDeleteBuffersARB(buffer);
+		buffer = 0;
+		reallocate = true;
+		dirty.set(0, count);
+	}
+}
@@ -0,0 +1,338 @@
+package org.twak.gouraud;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.lwjgl.BufferUtils;
+
+/**
+ * Bins point lights into view space clusters so each vertex only evaluates
+ * the lights that can reach it. The view frustum is cut into
+ * {@link #gridX} x {@link #gridY} screen tiles and {@link #gridZ} depth
+ * slices, spaced exponentially between {@link #near} and {@link #far}. Each
+ * light's sphere is tested against the tiles' side planes and the slices'
+ * depths, and the clusters it touches list its index. Needs no GL context;
+ * {@link ClusterBuffers} uploads the result.
+ * <p>
+ * Binning runs on a fork-join pool in three passes: the lights' cluster
+ * ranges, split between threads by light; the number of lights per cluster,
+ * split by depth slice; and, after a prefix sum gives each cluster its
+ * offset, the index lists, again by slice. No two threads write the same
+ * cluster, and each slice only visits the lights listed for it.
+ * <p>
+ * The buffers are laid out for std430 storage blocks as
+ *
+ * <pre>
+ * struct Light { vec4 positionRadius; vec4 colour; };
+ * buffer Lights { Light lights[]; };
+ * buffer Clusters { uvec4 uClusterGrid; vec4 uClusterDepth; uvec2 clusters[]; };
+ * buffer LightIndices { uint lightIndices[]; };
+ * </pre>
+ *
+ * where uClusterGrid is (gridX, gridY, gridZ, light count), uClusterDepth
+ * is (near, far, slices per log depth, guard), and each cluster is an
+ * (offset, count) into lightIndices, x fastest, then y, then z.
+ */
+public class LightClusters {
+
+	public static final int LIGHT_SIZE = 8 * 4;
+	public static final int HEADER_SIZE = 8 * 4;
+	public static final int CLUSTER_SIZE = 2 * 4;
+
+	/* below this many lights the ranges are not split between threads */
+	private static final int LIGHT_SPLIT = 1024;
+
+	/** A point light in world space, falling off to nothing at radius. */
+	public static class Light {
+		public Vector3f position = new Vector3f();
+		public Vector3f colour = new Vector3f(1, 1, 1);
+		public float radius = 1;
+
+		public Light() {
+		}
+
+		public Light(Vector3f position, Vector3f colour, float radius) {
+			this.position.set(position);
+			this.colour.set(colour);
+			this.radius = radius;
+		}
+	}
+
+	public final int gridX, gridY, gridZ;
+	/* as ObjLoader's projection */
+	public float near = 0.01f, far = 100f;
+	/* the tiles cover this multiple of the screen, so vertices just off it still find their lights */
+	public float guard = 1.25f;
+
+	/* for reporting, the last call to bin */
+	public int lightCount;
+	public int binnedLights;
+	public int indexCount;
+	public long nanos;
+
+	ForkJoinPool pool;
+
+	public ByteBuffer lightData = BufferUtils.createByteBuffer(64 * LIGHT_SIZE);
+	public ByteBuffer clusterData;
+	public ByteBuffer indexData = BufferUtils.createByteBuffer(1024 * 4);
+
+	private List<Light> lights;
+	/* per light: view space x, y, z */
+	private float[] view = new float[0];
+	/* per light: first and last tile x, tile y and slice; x0 > x1 if it touches no cluster */
+	private int[] ranges = new int[0];
+	private int[] counts, offsets;
+	/* the lights touching each slice, from sliceLights[sliceStart[z]] to sliceLights[sliceStart[z + 1]] */
+	private int[] sliceStart, sliceLights = new int[0];
+	/* tile boundary planes through the eye, nx and nz for columns, ny and nz for rows, normalized */
+	private float[] columns, rows;
+	private float sliceScale;
+
+	public LightClusters() {
+		this(16, 8, 24, ForkJoinPool.commonPool());
+	}
+
+	public LightClusters(int gridX, int gridY, int gridZ, ForkJoinPool pool) {
+		this.gridX = gridX;
+		this.gridY = gridY;
+		this.gridZ = gridZ;
+		this.pool = pool;
+		int clusters = gridX * gridY * gridZ;
+		counts = new int[clusters];
+		offsets = new int[clusters];
+		sliceStart = new int[gridZ + 1];
+		clusterData = BufferUtils.createByteBuffer(HEADER_SIZE + clusters * CLUSTER_SIZE);
+		columns = new float[(gridX + 1) * 2];
+		rows = new float[(gridY + 1) * 2];
+	}
+
+	/**
+	 * Bins lights for a camera and fills {@link #lightData},
+	 * {@link #clusterData} and {@link #indexData}.
+	 *
+	 * @param projectionMatrix
+	 *            a perspective projection with the same near and far as
+	 *            {@link #near} and {@link #far}
+	 */
+	public void bin(List<Light> lights, Matrix4f viewMatrix, Matrix4f projectionMatrix) {
+		long start = System.nanoTime();
+		this.lights = lights;
+		lightCount = lights.size();
+		/* the last call's limits would fail the absolute puts below */
+		lightData.clear();
+		indexData.clear();
+		if (view.length < lightCount * 3) {
+			view = new float[lightCount * 3];
+			ranges = new int[lightCount * 6];
+		}
+		if (lightData.capacity() < lightCount * LIGHT_SIZE)
+			lightData = BufferUtils.createByteBuffer(Math.max(lightCount, lightData.capacity() / LIGHT_SIZE * 2) * LIGHT_SIZE);
+
+		planes(projectionMatrix);
+		pool.invoke(new Ranges(viewMatrix, 0, lightCount));
+
+		listSlices();
+		Arrays.fill(counts, 0);
+		pool.invoke(new Slices(false, 0, gridZ));
+
+		int total = 0;
+		for (int c = 0; c < counts.length; c++) {
+			offsets[c] = total;
+			total += counts[c];
+		}
+		indexCount = total;
+		if (indexData.capacity() < total * 4)
+			indexData = BufferUtils.createByteBuffer(Math.max(total, indexData.capacity() / 4 * 2) * 4);
+
+		pool.invoke(new Slices(true, 0, gridZ));
+
+		clusterData.putInt(0, gridX).putInt(4, gridY).putInt(8, gridZ).putInt(12, lightCount);
+		clusterData.putFloat(16, near).putFloat(20, far).putFloat(24, sliceScale).putFloat(28, guard);
+		for (int c = 0; c < counts.length; c++)
+			clusterData.putInt(HEADER_SIZE + c * CLUSTER_SIZE, offsets[c]).putInt(HEADER_SIZE + c * CLUSTER_SIZE + 4, counts[c]);
+
+		lightData.limit(lightCount * LIGHT_SIZE);
+		indexData.limit(total * 4);
+
+		int binned = 0;
+		for (int l = 0; l < lightCount; l++)
+			if (ranges[l * 6] <= ranges[l * 6 + 1])
+				binned++;
+		binnedLights = binned;
+		nanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * The planes through the eye at each tile boundary. A point at view
+	 * position v is right of the boundary at ndc x when
+	 * p00 vx + (p20 + x) vz > 0, and likewise above a row boundary.
+	 */
+	private void planes(Matrix4f p) {
+		for (int i = 0; i <= gridX; i++) {
+			float boundary = guard * (2f * i / gridX - 1);
+			float nx = p.m00(), nz = p.m20() + boundary;
+			float length = (float) Math.sqrt(nx * nx + nz * nz);
+			columns[i * 2] = nx / length;
+			columns[i * 2 + 1] = nz / length;
+		}
+		for (int i = 0; i <= gridY; i++) {
+			float boundary = guard * (2f * i / gridY - 1);
+			float ny = p.m11(), nz = p.m21() + boundary;
+			float length = (float) Math.sqrt(ny * ny + nz * nz);
+			rows[i * 2] = ny / length;
+			rows[i * 2 + 1] = nz / length;
+		}
+		sliceScale = gridZ / (float) Math.log(far / near);
+	}
+
+	private class Ranges extends RecursiveAction {
+
+		Matrix4f viewMatrix;
+		int from, to;
+
+		Ranges(Matrix4f viewMatrix, int from, int to) {
+			this.viewMatrix = viewMatrix;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > LIGHT_SPLIT) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Ranges(viewMatrix, from, mid), new Ranges(viewMatrix, mid, to));
+				return;
+			}
+			Matrix4f m = viewMatrix;
+			for (int l = from; l < to; l++) {
+				Light light = lights.get(l);
+				float x = light.position.x, y = light.position.y, z = light.position.z;
+				view[l * 3] = m.m00() * x + m.m10() * y + m.m20() * z + m.m30();
+				view[l * 3 + 1] = m.m01() * x + m.m11() * y + m.m21() * z + m.m31();
+				view[l * 3 + 2] = m.m02() * x + m.m12() * y + m.m22() * z + m.m32();
+				range(l, light.radius);
+
+				int o = l * LIGHT_SIZE;
+				lightData.putFloat(o, x).putFloat(o + 4, y).putFloat(o + 8, z).putFloat(o + 12, light.radius);
+				lightData.putFloat(o + 16, light.colour.x).putFloat(o + 20, light.colour.y)
+						.putFloat(o + 24, light.colour.z).putFloat(o + 28, 0);
+			}
+		}
+	}
+
+	/**
+	 * The tiles and slices a light's sphere may touch. Each axis is tested
+	 * on its own, so the range is conservative: it can include clusters
+	 * near the sphere's corners that it misses.
+	 */
+	private void range(int l, float radius) {
+		float vx = view[l * 3], vy = view[l * 3 + 1], vz = view[l * 3 + 2];
+		int[] r = ranges;
+		r[l * 6] = 0;
+		r[l * 6 + 1] = -1;
+
+		float depth = -vz;
+		if (depth + radius < near || depth - radius > far)
+			return;
+		int z0 = depth - radius <= near ? 0 : (int) (Math.log((depth - radius) / near) * sliceScale);
+		int z1 = depth + radius >= far ? gridZ - 1 : (int) (Math.log((depth + radius) / near) * sliceScale);
+
+		int x0 = gridX, x1 = -1;
+		for (int i = 0; i < gridX; i++)
+			if (columns[i * 2] * vx + columns[i * 2 + 1] * vz > -radius
+					&& columns[i * 2 + 2] * vx + columns[i * 2 + 3] * vz < radius) {
+				x0 = Math.min(x0, i);
+				x1 = i;
+			}
+		int y0 = gridY, y1 = -1;
+		for (int i = 0; i < gridY; i++)
+			if (rows[i * 2] * vy + rows[i * 2 + 1] * vz > -radius
+					&& rows[i * 2 + 2] * vy + rows[i * 2 + 3] * vz < radius) {
+				y0 = Math.min(y0, i);
+				y1 = i;
+			}
+		if (x0 > x1 || y0 > y1)
+			return;
+
+		r[l * 6] = x0;
+		r[l * 6 + 1] = x1;
+		r[l * 6 + 2] = y0;
+		r[l * 6 + 3] = y1;
+		r[l * 6 + 4] = Math.max(0, z0);
+		r[l * 6 + 5] = Math.min(gridZ - 1, z1);
+	}
+
+	/** A counting sort of the lights by the slices they touch, in light order. */
+	private void listSlices() {
+		Arrays.fill(sliceStart, 0);
+		int[] r = ranges;
+		for (int l = 0; l < lightCount; l++)
+			if (r[l * 6] <= r[l * 6 + 1])
+				for (int z = r[l * 6 + 4]; z <= r[l * 6 + 5]; z++)
+					sliceStart[z + 1]++;
+		for (int z = 0; z < gridZ; z++)
+			sliceStart[z + 1] += sliceStart[z];
+		if (sliceLights.length < sliceStart[gridZ])
+			sliceLights = new int[sliceStart[gridZ] * 2];
+
+		int[] next = Arrays.copyOf(sliceStart, gridZ);
+		for (int l = 0; l < lightCount; l++)
+			if (r[l * 6] <= r[l * 6 + 1])
+				for (int z = r[l * 6 + 4]; z <= r[l * 6 + 5]; z++)
+					sliceLights[next[z]++] = l;
+	}
+
+	/**
+	 * Counts the lights in each cluster of a range of slices, or writes
+	 * their indices once the offsets are known.
+	 */
+	private class Slices extends RecursiveAction {
+
+		boolean fill;
+		int from, to;
+
+		Slices(boolean fill, int from, int to) {
+			this.fill = fill;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Slices(fill, from, mid), new Slices(fill, mid, to));
+				return;
+			}
+
+			int z = from, slice = z * gridX * gridY;
+			int[] r = ranges;
+			for (int i = sliceStart[z]; i < sliceStart[z + 1]; i++) {
+				int l = sliceLights[i], o = l * 6;
+				for (int y = r[o + 2]; y <= r[o + 3]; y++)
+					for (int x = r[o]; x <= r[o + 1]; x++) {
+						int cluster = slice + y * gridX + x;
+						if (fill)
+							indexData.putInt((offsets[cluster] + --counts[cluster]) * 4, l);
+						else
+							counts[cluster]++;
+					}
+			}
+
+			/* filling counted each cluster back down to zero, restore it */
+			if (fill)
+				for (int c = slice; c < slice + gridX * gridY; c++)
+					counts[c] = c + 1 < counts.length ? offsets[c + 1] - offsets[c] : indexCount - offsets[c];
+		}
+	}
+
+	public String report() {
+		return String.format("lights: %d of %d in view, %d cluster entries, %.2fms", binnedLights, lightCount,
+				indexCount, nanos / 1e6);
+	}
+}
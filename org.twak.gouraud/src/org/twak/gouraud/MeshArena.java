@@ -0,0 +1,109 @@
+package org.twak.gouraud;
+
+import static org.lwjgl.system.jemalloc.JEmalloc.je_free;
+import static org.lwjgl.system.jemalloc.JEmalloc.je_malloc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Off-heap storage for a model's mesh data. Buffers are carved out of large
+ * jemalloc chunks and are never freed singly; {@link #free()} returns every
+ * chunk at once, so loading and dropping models in a long-running process
+ * does not leave native memory waiting for the garbage collector.
+ * <p>
+ * Allocation is thread safe, so meshes can be prepared in parallel.
+ */
+public class MeshArena {
+
+	public static final int CHUNK_SIZE = 16 << 20;
+	static final int ALIGNMENT = 16;
+
+	/* bytes handed out, for reporting */
+	public long allocated;
+
+	private final List<ByteBuffer> chunks = new ArrayList<>();
+	private ByteBuffer current;
+
+	/**
+	 * @return size bytes, native order, valid until {@link #free()}
+	 */
+	public synchronized ByteBuffer bytes(int size) {
+		int aligned = (size + ALIGNMENT - 1) & -ALIGNMENT;
+		ByteBuffer chunk;
+
+		if (aligned > CHUNK_SIZE / 4) {
+			/* large buffers get a chunk of their own, leaving current to fill */
+			chunk = allocate(aligned);
+		} else {
+			if (current == null || current.remaining() < aligned)
+				current = allocate(CHUNK_SIZE);
+			chunk = current;
+		}
+
+		ByteBuffer slice = chunk.slice();
+		slice.limit(size);
+		chunk.position(chunk.position() + aligned);
+		allocated += size;
+		return slice.order(ByteOrder.nativeOrder());
+	}
+
+	private ByteBuffer allocate(int size) {
+		ByteBuffer chunk = je_malloc(size);
+		if (chunk == null)
+			throw new OutOfMemoryError("je_malloc(" + size + ")");
+		/* freed through the original, whose position is still the base address */
+		chunks.add(chunk);
+		return chunk.duplicate();
+	}
+
+	public FloatBuffer floats(int count) {
+		return bytes(count * 4).asFloatBuffer();
+	}
+
+	public IntBuffer ints(int count) {
+		return bytes(count * 4).asIntBuffer();
+	}
+
+	public FloatBuffer copy(FloatBuffer source) {
+		FloatBuffer copy = floats(source.remaining());
+		copy.put(source.duplicate()).flip();
+		return copy;
+	}
+
+	/**
+	 * Takes over other's chunks, so they are released with this arena's.
+	 */
+	public void absorb(MeshArena other) {
+		if (other == this)
+			return;
+		List<ByteBuffer> taken;
+		long bytes;
+		synchronized (other) {
+			taken = new ArrayList<>(other.chunks);
+			bytes = other.allocated;
+			other.chunks.clear();
+			other.current = null;
+			other.allocated = 0;
+		}
+		synchronized (this) {
+			chunks.addAll(taken);
+			allocated += bytes;
+		}
+	}
+
+	/**
+	 * Releases all chunks; every buffer from this arena is invalid after.
+	 */
+	public synchronized void free() {
+		for (ByteBuffer chunk : chunks)
+			je_free(chunk);
+		chunks.clear();
+		current = null;
+		allocated = 0;
+	}
+}
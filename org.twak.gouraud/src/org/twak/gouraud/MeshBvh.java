@@ -0,0 +1,148 @@
+package org.twak.gouraud;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.joml.FrustumIntersection;
+
+/**
+ * A bounding volume hierarchy over the axis aligned boxes of a model's
+ * meshes, in model space. Built once at load time; {@link #cull} walks it
+ * against a frustum and collects the meshes that may be visible, skipping
+ * whole subtrees that are outside and testing nothing below a node that is
+ * entirely inside.
+ */
+public class MeshBvh {
+
+	public static final int LEAF_SIZE = 4;
+
+	/* per node: minX, minY, minZ, maxX, maxY, maxZ */
+	float[] bounds;
+	/* inner nodes: index of the second child (the first follows the node); leaves: -1 - first mesh */
+	int[] child;
+	/* leaves: number of meshes */
+	int[] count;
+	int nodeCount;
+
+	/* meshes in leaf order */
+	Model.Mesh[] meshes;
+
+	private int[] stack = new int[64];
+
+	public MeshBvh(List<Model.Mesh> meshes) {
+		this.meshes = meshes.toArray(new Model.Mesh[meshes.size()]);
+		int maxNodes = Math.max(1, 2 * this.meshes.length);
+		bounds = new float[maxNodes * 6];
+		child = new int[maxNodes];
+		count = new int[maxNodes];
+		build(0, this.meshes.length);
+	}
+
+	private int build(int start, int end) {
+
+		int node = nodeCount++;
+		float[] b = bounds;
+		int o = node * 6;
+		b[o] = b[o + 1] = b[o + 2] = Float.MAX_VALUE;
+		b[o + 3] = b[o + 4] = b[o + 5] = -Float.MAX_VALUE;
+		for (int i = start; i < end; i++) {
+			Model.Mesh m = meshes[i];
+			b[o] = Math.min(b[o], m.min.x);
+			b[o + 1] = Math.min(b[o + 1], m.min.y);
+			b[o + 2] = Math.min(b[o + 2], m.min.z);
+			b[o + 3] = Math.max(b[o + 3], m.max.x);
+			b[o + 4] = Math.max(b[o + 4], m.max.y);
+			b[o + 5] = Math.max(b[o + 5], m.max.z);
+		}
+
+		if (end - start <= LEAF_SIZE) {
+			child[node] = -1 - start;
+			count[node] = end - start;
+			return node;
+		}
+
+		/* median split on the longest axis of the box centres */
+		float ex = b[o + 3] - b[o], ey = b[o + 4] - b[o + 1], ez = b[o + 5] - b[o + 2];
+		final int axis = ex >= ey && ex >= ez ? 0 : ey >= ez ? 1 : 2;
+		Arrays.sort(meshes, start, end, new Comparator<Model.Mesh>() {
+			@Override
+			public int compare(Model.Mesh a, Model.Mesh b) {
+				return Float.compare(centre(a, axis), centre(b, axis));
+			}
+		});
+
+		int mid = (start + end) >>> 1;
+		build(start, mid);
+		child[node] = build(mid, end);
+		return node;
+	}
+
+	private static float centre(Model.Mesh m, int axis) {
+		switch (axis) {
+		case 0:
+			return m.min.x + m.max.x;
+		case 1:
+			return m.min.y + m.max.y;
+		default:
+			return m.min.z + m.max.z;
+		}
+	}
+
+	/**
+	 * Adds the meshes that intersect the frustum to visible.
+	 *
+	 * @param frustum
+	 *            set from the projection * view * model matrix, so that it is
+	 *            in the model space the boxes were built in
+	 * @return the number of meshes culled
+	 */
+	public int cull(FrustumIntersection frustum, List<Model.Mesh> visible) {
+
+		if (meshes.length == 0)
+			return 0;
+
+		int before = visible.size();
+		int top = 0;
+		stack[top++] = 0;
+
+		while (top > 0) {
+			int node = stack[--top];
+			int o = node * 6;
+			int result = frustum.intersectAab(bounds[o], bounds[o + 1], bounds[o + 2], bounds[o + 3], bounds[o + 4],
+					bounds[o + 5]);
+
+			if (result == FrustumIntersection.INSIDE) {
+				addAll(node, visible);
+			} else if (result == FrustumIntersection.INTERSECT) {
+				if (child[node] < 0) {
+					int first = -1 - child[node];
+					for (int i = first; i < first + count[node]; i++) {
+						Model.Mesh m = meshes[i];
+						if (frustum.testSphere(m.centre.x, m.centre.y, m.centre.z, m.radius)
+								&& frustum.testAab(m.min, m.max))
+							visible.add(m);
+					}
+				} else {
+					if (top + 2 > stack.length)
+						stack = Arrays.copyOf(stack, stack.length * 2);
+					stack[top++] = child[node];
+					stack[top++] = node + 1;
+				}
+			}
+		}
+
+		return meshes.length - (visible.size() - before);
+	}
+
+	private void addAll(int node, List<Model.Mesh> visible) {
+		if (child[node] < 0) {
+			int first = -1 - child[node];
+			for (int i = first; i < first + count[node]; i++)
+				visible.add(meshes[i]);
+		} else {
+			addAll(node + 1, visible);
+			addAll(child[node], visible);
+		}
+	}
+}
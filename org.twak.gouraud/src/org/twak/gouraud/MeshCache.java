@@ -0,0 +1,308 @@
+package org.twak.gouraud;
+
+import static org.lwjgl.assimp.Assimp.*;
+import static org.lwjgl.system.MemoryUtil.memAddress;
+import static org.lwjgl.system.MemoryUtil.memByteBuffer;
+import static org.lwjgl.util.xxhash.XXHash.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.assimp.AIColor4D;
+import org.lwjgl.assimp.AIScene;
+import org.lwjgl.util.xxhash.XXH64State;
+
+/**
+ * A binary copy of a model's prepared mesh data, written next to the source
+ * file after the first Assimp import and read straight into the model's
+ * {@link MeshArena} on later runs, so startup skips aiImportFile. The cache records an xxHash of the source file
+ * contents; if the source changes the cache is ignored and rebuilt.
+ *
+ * Layout (native byte order): magic, version, source hash, levels of detail
+ * asked for, mesh count, material count; then ambient/diffuse/specular rgba
+ * per material; then per mesh its number of levels and, for each level from
+ * the full mesh down, the vertex, colour and element counts, material index,
+ * positions, normals, colours and elements. The levels are stored so later
+ * runs do not simplify again.
+ */
+public class MeshCache {
+
+	static final int MAGIC = 0x48534D47; // "GMSH"
+	static final int VERSION = 3;
+	static final int HEADER = 28;
+
+	/* import .obj sources with ObjParser rather than Assimp, which cannot
+	 * read multi-GB scans; it reads only positions, normals and faces */
+	public static boolean objParser = false;
+
+	public static File cacheFile(File source) {
+		return new File(source.getAbsoluteFile().getParentFile(), source.getName() + ".meshcache");
+	}
+
+	/**
+	 * Loads the model from its cache if that is present and up to date,
+	 * otherwise imports it with Assimp, builds its levels of detail and
+	 * writes a new cache.
+	 *
+	 * @param levels
+	 *            levels of detail per mesh, see {@link Model#buildLods}; a
+	 *            cache built with a different number is rebuilt
+	 * @param upload
+	 *            whether to create GL buffers for the meshes, see
+	 *            {@link Model#Model(AIScene, boolean)}
+	 */
+	public static Model load(File source, int levels, boolean upload) throws IOException {
+		return load(source, levels, upload, null);
+	}
+
+	/**
+	 * @param listener
+	 *            told of each mesh as soon as it and its levels are ready,
+	 *            before the rest of the model; or null. The meshes it is told
+	 *            of are not uploaded, so pass upload false.
+	 */
+	public static Model load(File source, int levels, boolean upload, Model.Listener listener) throws IOException {
+
+		long hash = hash(source);
+		File cache = cacheFile(source);
+
+		if (cache.isFile()) {
+			Model model = read(cache, hash, levels, upload);
+			if (model != null) {
+				if (listener != null)
+					for (Model.Mesh mesh : model.meshes)
+						listener.prepared(model, mesh);
+				return model;
+			}
+			System.out.println("Mesh cache " + cache + " is stale, re-importing");
+		}
+
+		Model model = prepare(source);
+		model.buildLods(levels, listener);
+		try {
+			write(model, hash, levels, cache);
+		} catch (IOException e) {
+			System.err.println("Could not write mesh cache " + cache + ": " + e.getMessage());
+		}
+
+		if (upload)
+			for (Model.Mesh mesh : model.meshes)
+				for (Model.Mesh level : mesh.lods)
+					level.upload();
+		return model;
+	}
+
+	/**
+	 * Imports a model with Assimp, or {@link ObjParser} if
+	 * {@link #objParser} is set, and optimises its meshes, the form the cache
+	 * holds. Nothing is uploaded.
+	 */
+	static Model prepare(File source) throws IOException {
+		if (objParser && source.getName().toLowerCase().endsWith(".obj"))
+			return ObjParser.load(source, false);
+
+		AIScene scene = aiImportFile(source.getAbsolutePath(), aiProcess_JoinIdenticalVertices | aiProcess_Triangulate);
+		if (scene == null)
+			throw new IllegalStateException(aiGetErrorString());
+
+		Model model = new Model(scene, false);
+		MeshOptimizer.optimize(model);
+		return model;
+	}
+
+	/**
+	 * XXH64 of the file's contents, streamed through a small buffer, so
+	 * files too large to map (over 2GB) can be hashed too.
+	 */
+	static long hash(File source) throws IOException {
+		XXH64State state = XXH64_createState();
+		if (state == null)
+			throw new OutOfMemoryError("XXH64_createState");
+		try (FileChannel fc = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+			XXH64_reset(state, 0);
+			ByteBuffer buffer = BufferUtils.createByteBuffer(1 << 20);
+			while (fc.read(buffer) != -1) {
+				buffer.flip();
+				XXH64_update(state, buffer);
+				buffer.clear();
+			}
+			return XXH64_digest(state);
+		} finally {
+			XXH64_freeState(state);
+		}
+	}
+
+	/**
+	 * Reads the whole cache into the new model's arena; the meshes are views
+	 * of it.
+	 *
+	 * @return the cached model, or null if the cache does not match the hash
+	 *         and levels
+	 */
+	static Model read(File cache, long hash, int levels, boolean upload) throws IOException {
+
+		Model model = new Model(new ArrayList<Model.Mesh>(), new ArrayList<Model.Material>());
+		ByteBuffer data;
+		try (FileChannel fc = FileChannel.open(cache.toPath(), StandardOpenOption.READ)) {
+			data = model.arena.bytes((int) fc.size());
+			while (data.hasRemaining() && fc.read(data) != -1)
+				;
+			data.flip();
+		} catch (IOException e) {
+			model.free();
+			throw e;
+		}
+
+		return parse(model, data, hash, levels, upload);
+	}
+
+	/**
+	 * Fills model from cache data held in its arena; the meshes are views of
+	 * data. The model is freed if data does not match the hash and levels.
+	 *
+	 * @param levels
+	 *            the levels of detail the data must have been built with, or
+	 *            -1 for any
+	 * @return model, or null
+	 */
+	static Model parse(Model model, ByteBuffer data, long hash, int levels, boolean upload) {
+
+		if (data.remaining() < HEADER || data.getInt() != MAGIC || data.getInt() != VERSION || data.getLong() != hash
+				|| data.getInt() != levels && levels >= 0) {
+			model.free();
+			return null;
+		}
+
+		int meshCount = data.getInt();
+		int materialCount = data.getInt();
+
+		List<Model.Material> materials = model.materials;
+		for (int i = 0; i < materialCount; i++)
+			materials.add(new Model.Material(colour(data), colour(data), colour(data)));
+
+		List<Model.Mesh> meshes = model.meshes;
+		for (int i = 0; i < meshCount; i++) {
+			Model.Mesh[] lods = new Model.Mesh[data.getInt()];
+			for (int l = 0; l < lods.length; l++) {
+				lods[l] = mesh(data, upload);
+				if (l > 0)
+					lods[l].boundsOf(lods[0]);
+			}
+			lods[0].lods = lods;
+			meshes.add(lods[0]);
+		}
+
+		return model;
+	}
+
+	private static Model.Mesh mesh(ByteBuffer data, boolean upload) {
+		int vertexCount = data.getInt();
+		int colourCount = data.getInt();
+		int elementCount = data.getInt();
+		int materialIndex = data.getInt();
+
+		FloatBuffer vertices = floats(data, vertexCount * 3);
+		FloatBuffer normals = floats(data, vertexCount * 3);
+		FloatBuffer colours = floats(data, colourCount);
+		IntBuffer elements = ints(data, elementCount);
+
+		return new Model.Mesh(vertices, normals, colours, elements, materialIndex, upload);
+	}
+
+	private static AIColor4D colour(ByteBuffer data) {
+		return AIColor4D.create().set(data.getFloat(), data.getFloat(), data.getFloat(), data.getFloat());
+	}
+
+	private static FloatBuffer floats(ByteBuffer data, int count) {
+		ByteBuffer slice = data.slice().order(data.order());
+		slice.limit(count * 4);
+		data.position(data.position() + count * 4);
+		return slice.asFloatBuffer();
+	}
+
+	private static IntBuffer ints(ByteBuffer data, int count) {
+		ByteBuffer slice = data.slice().order(data.order());
+		slice.limit(count * 4);
+		data.position(data.position() + count * 4);
+		return slice.asIntBuffer();
+	}
+
+	static void write(Model model, long hash, int levels, File cache) throws IOException {
+
+		File tmp = new File(cache.getPath() + ".tmp");
+		MeshArena scratch = new MeshArena();
+
+		try (FileOutputStream fos = new FileOutputStream(tmp); FileChannel fc = fos.getChannel()) {
+			ByteBuffer data = scratch.bytes(size(model));
+			serialize(model, hash, levels, data);
+			data.flip();
+			writeFully(fc, data);
+		} finally {
+			scratch.free();
+		}
+
+		Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/** @return the bytes {@link #serialize} writes for model */
+	static int size(Model model) {
+		long size = HEADER + model.materials.size() * 3 * 16;
+		for (Model.Mesh mesh : model.meshes) {
+			size += 4;
+			for (Model.Mesh level : mesh.lods)
+				size += 16 + (level.vertexCount * 6L + level.colours.remaining() + level.elementCount) * 4;
+		}
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalStateException("model is too large to cache, " + size + " bytes");
+		return (int) size;
+	}
+
+	/**
+	 * Writes model in the cache layout to out, which must be native order.
+	 *
+	 * @param levels
+	 *            the levels of detail model was built with
+	 */
+	static void serialize(Model model, long hash, int levels, ByteBuffer out) {
+
+		out.putInt(MAGIC).putInt(VERSION).putLong(hash).putInt(levels);
+		out.putInt(model.meshes.size()).putInt(model.materials.size());
+		for (Model.Material m : model.materials)
+			for (AIColor4D c : new AIColor4D[] { m.mAmbientColor, m.mDiffuseColor, m.mSpecularColor })
+				out.putFloat(c.r()).putFloat(c.g()).putFloat(c.b()).putFloat(c.a());
+
+		for (Model.Mesh mesh : model.meshes) {
+			out.putInt(mesh.lods.length);
+			for (Model.Mesh level : mesh.lods) {
+				out.putInt(level.vertexCount).putInt(level.colours.remaining()).putInt(level.elementCount)
+						.putInt(level.materialIndex);
+
+				out.put(bytes(level.vertices, level.vertexCount * 3));
+				out.put(bytes(level.normals, level.vertexCount * 3));
+				out.put(bytes(level.colours, level.colours.remaining()));
+				out.put(bytes(level.elements, level.elementCount));
+			}
+		}
+	}
+
+	private static ByteBuffer bytes(Buffer buffer, int count) {
+		return memByteBuffer(memAddress(buffer), count * 4);
+	}
+
+	private static void writeFully(FileChannel fc, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			fc.write(buffer);
+	}
+}
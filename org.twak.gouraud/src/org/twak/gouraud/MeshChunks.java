@@ -0,0 +1,710 @@
+package org.twak.gouraud;
+
+import static org.lwjgl.assimp.Assimp.*;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.joml.Vector3f;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.assimp.AIScene;
+
+/**
+ * A model split into spatial chunks of a bounded number of triangles,
+ * stored in one file so chunks can be read singly, in any order, by
+ * {@link ChunkResidency}. Only the small index is held in memory.
+ * <p>
+ * Obj files, such as photogrammetry scans too large to import, are split
+ * without ever holding the whole mesh. A first pass with
+ * {@link ObjParser#scan} writes the positions and normals to temporary
+ * files, read back through memory maps, and keeps a random sample of the
+ * positions; a kd tree over the sample divides space into buckets of about
+ * {@link #BUCKET_CHUNKS} chunks each. A second pass appends each triangle to
+ * the bucket holding its centroid, on disk. Other formats are imported whole
+ * with Assimp and each mesh is one bucket.
+ * <p>
+ * Each bucket is then split in memory by the median of its triangles'
+ * centroids along the longest axis until each chunk has at most the
+ * requested count. Each chunk gets its own compact vertex list, so vertices
+ * on a boundary are duplicated, and is reordered by {@link MeshOptimizer}
+ * once it is cut out.
+ *
+ * Layout (native byte order): magic, version, source hash, chunk count,
+ * index offset; then per chunk positions, normals, colours and elements;
+ * then the index, per chunk the data offset, vertex count, element count,
+ * material index and bounding box.
+ */
+public class MeshChunks {
+
+	static final int MAGIC = 0x4B484347; // "GCHK"
+	static final int VERSION = 2;
+	static final int HEADER = 28;
+	static final int INDEX = 8 + 3 * 4 + 6 * 4;
+
+	/* a bucket of an obj file holds about this many chunks' triangles */
+	static final int BUCKET_CHUNKS = 8;
+	/* positions sampled to place the buckets */
+	static final int SAMPLES = 1 << 20;
+	/* triangles a bucket gathers before they are appended to disk */
+	static final int BLOCK = 2048;
+	/* largest memory map of a temporary table */
+	static final long SEGMENT = 1 << 30;
+
+	public static class Chunk {
+		public final int index;
+		public final long offset;
+		public final int vertexCount, elementCount, materialIndex;
+		public final Vector3f min, max, centre = new Vector3f();
+		public final float radius;
+
+		/* set by ChunkResidency on the GL thread */
+		long lastUsed = -1;
+		float distance;
+
+		Chunk(int index, long offset, int vertexCount, int elementCount, int materialIndex, Vector3f min, Vector3f max) {
+			this.index = index;
+			this.offset = offset;
+			this.vertexCount = vertexCount;
+			this.elementCount = elementCount;
+			this.materialIndex = materialIndex;
+			this.min = min;
+			this.max = max;
+			min.add(max, centre).mul(0.5f);
+			radius = centre.distance(max);
+		}
+
+		/** @return the size of the chunk's data, on disk and as uploaded */
+		public long bytes() {
+			return vertexCount * 36L + elementCount * 4L;
+		}
+	}
+
+	public final Chunk[] chunks;
+	public final long hash;
+	private final FileChannel channel;
+
+	private MeshChunks(FileChannel channel, long hash, Chunk[] chunks) {
+		this.channel = channel;
+		this.hash = hash;
+		this.chunks = chunks;
+	}
+
+	public static File chunkFile(File source) {
+		return new File(source.getAbsoluteFile().getParentFile(), source.getName() + ".chunks");
+	}
+
+	/**
+	 * Opens source's chunk file, first splitting source into it if it is
+	 * missing or was made from a different version of source. Splitting
+	 * reads the source once or twice; afterwards only the index is read.
+	 */
+	public static MeshChunks load(File source, int trianglesPerChunk) throws IOException {
+		long hash = MeshCache.hash(source);
+		File file = chunkFile(source);
+		if (file.isFile()) {
+			MeshChunks chunks = open(file);
+			if (chunks != null && chunks.hash == hash)
+				return chunks;
+			if (chunks != null)
+				chunks.close();
+			System.out.println("Chunk file " + file + " is stale, splitting again");
+		}
+
+		long start = System.nanoTime();
+		write(source, hash, trianglesPerChunk, file);
+		System.out.println("split " + source.getName() + " in " + (System.nanoTime() - start) / 1000000 + "ms");
+
+		MeshChunks chunks = open(file);
+		if (chunks == null)
+			throw new IOException("could not read back " + file);
+		return chunks;
+	}
+
+	/**
+	 * @return the chunk file's index, or null if it is not a chunk file of
+	 *         this version
+	 */
+	public static MeshChunks open(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer header = read(channel, 0, HEADER);
+			if (header.remaining() < HEADER || header.getInt() != MAGIC || header.getInt() != VERSION) {
+				channel.close();
+				return null;
+			}
+			long hash = header.getLong();
+			Chunk[] chunks = new Chunk[header.getInt()];
+
+			ByteBuffer index = read(channel, header.getLong(), chunks.length * INDEX);
+			for (int i = 0; i < chunks.length; i++)
+				chunks[i] = new Chunk(i, index.getLong(), index.getInt(), index.getInt(), index.getInt(),
+						new Vector3f(index.getFloat(), index.getFloat(), index.getFloat()),
+						new Vector3f(index.getFloat(), index.getFloat(), index.getFloat()));
+
+			return new MeshChunks(channel, hash, chunks);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+		ByteBuffer data = BufferUtils.createByteBuffer(size);
+		while (data.hasRemaining() && channel.read(data, position + data.position()) != -1)
+			;
+		data.flip();
+		return data;
+	}
+
+	/**
+	 * Reads a chunk into arena, as a mesh that is not uploaded. Safe to call
+	 * from several threads.
+	 */
+	public Model.Mesh read(Chunk chunk, MeshArena arena) throws IOException {
+		ByteBuffer data = arena.bytes((int) chunk.bytes());
+		while (data.hasRemaining())
+			if (channel.read(data, chunk.offset + data.position()) == -1)
+				throw new IOException("chunk file is truncated");
+		data.flip();
+
+		int floats = chunk.vertexCount * 3;
+		FloatBuffer vertices = slice(data, 0, floats * 4).asFloatBuffer();
+		FloatBuffer normals = slice(data, floats * 4, floats * 4).asFloatBuffer();
+		FloatBuffer colours = slice(data, floats * 8, floats * 4).asFloatBuffer();
+		IntBuffer elements = slice(data, floats * 12, chunk.elementCount * 4).asIntBuffer();
+		return new Model.Mesh(vertices, normals, colours, elements, chunk.materialIndex, false);
+	}
+
+	private static ByteBuffer slice(ByteBuffer data, int offset, int size) {
+		ByteBuffer slice = data.duplicate();
+		slice.position(offset).limit(offset + size);
+		return slice.slice().order(ByteOrder.nativeOrder());
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Splits source into chunks of at most trianglesPerChunk triangles and
+	 * writes them to file.
+	 */
+	static void write(File source, long hash, int trianglesPerChunk, File file) throws IOException {
+
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			Writer writer = new Writer(channel);
+			if (source.getName().toLowerCase().endsWith(".obj")) {
+				try (ObjSplit split = new ObjSplit(file)) {
+					split.run(source, trianglesPerChunk, writer);
+				}
+			} else {
+				AIScene scene = aiImportFile(source.getAbsolutePath(), aiProcess_JoinIdenticalVertices | aiProcess_Triangulate);
+				if (scene == null)
+					throw new IllegalStateException(aiGetErrorString());
+				Model model = new Model(scene, false);
+				try {
+					for (Model.Mesh mesh : model.meshes)
+						writer.split(mesh, trianglesPerChunk);
+				} finally {
+					model.free();
+				}
+			}
+			writer.finish(hash);
+		}
+
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static void split(int[] order, float[] centroids, int start, int end, int limit, Writer writer)
+			throws IOException {
+		if (end - start <= limit) {
+			if (end > start)
+				writer.chunk(order, start, end);
+			return;
+		}
+
+		int mid = (start + end) >>> 1;
+		select(order, centroids, longestAxis(order, centroids, start, end), start, end - 1, mid);
+		split(order, centroids, start, mid, limit, writer);
+		split(order, centroids, mid, end, limit, writer);
+	}
+
+	/** @return the axis along which the points order[start..end) spread furthest */
+	static int longestAxis(int[] order, float[] points, int start, int end) {
+		float[] min = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+		float[] max = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+		for (int i = start; i < end; i++)
+			for (int k = 0; k < 3; k++) {
+				min[k] = Math.min(min[k], points[order[i] * 3 + k]);
+				max[k] = Math.max(max[k], points[order[i] * 3 + k]);
+			}
+		return max[0] - min[0] >= max[1] - min[1] && max[0] - min[0] >= max[2] - min[2] ? 0
+				: max[1] - min[1] >= max[2] - min[2] ? 1 : 2;
+	}
+
+	/**
+	 * Partially orders order[left..right] so that position k holds the
+	 * triangle it would in a sort by centroid on axis, with no larger
+	 * centroid before it and no smaller one after.
+	 */
+	static void select(int[] order, float[] centroids, int axis, int left, int right, int k) {
+		while (right > left) {
+			float pivot = centroids[order[(left + right) >>> 1] * 3 + axis];
+			int i = left, j = right;
+			while (i <= j) {
+				while (centroids[order[i] * 3 + axis] < pivot)
+					i++;
+				while (centroids[order[j] * 3 + axis] > pivot)
+					j--;
+				if (i <= j) {
+					int swap = order[i];
+					order[i++] = order[j];
+					order[j--] = swap;
+				}
+			}
+			if (k <= j)
+				right = j;
+			else if (k >= i)
+				left = i;
+			else
+				return;
+		}
+	}
+
+	/**
+	 * Cuts meshes into chunks and writes each after the ones before,
+	 * gathering the index to write at the end.
+	 */
+	private static class Writer {
+		FileChannel channel;
+		long offset = HEADER;
+		ByteBuffer index = BufferUtils.createByteBuffer(INDEX * 64);
+		int count;
+		ByteBuffer data = BufferUtils.createByteBuffer(0);
+
+		/* the mesh being split */
+		Model.Mesh mesh;
+		int[] remap;
+		int[] used = new int[0];
+
+		Writer(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		/** Splits mesh by the median of its triangles' centroids. */
+		void split(Model.Mesh mesh, int limit) throws IOException {
+			int triangles = mesh.elementCount / 3;
+			int[] order = new int[triangles];
+			float[] centroids = new float[triangles * 3];
+			for (int t = 0; t < triangles; t++) {
+				order[t] = t;
+				for (int c = 0; c < 3; c++)
+					for (int k = 0; k < 3; k++)
+						centroids[t * 3 + k] += mesh.vertices.get(mesh.elements.get(t * 3 + c) * 3 + k) / 3;
+			}
+			this.mesh = mesh;
+			remap = new int[mesh.vertexCount];
+			Arrays.fill(remap, -1);
+			MeshChunks.split(order, centroids, 0, triangles, limit, this);
+			this.mesh = null;
+			remap = null;
+		}
+
+		/** Copies the triangles order[start..end) out, optimises and writes them. */
+		void chunk(int[] order, int start, int end) throws IOException {
+			int elementCount = (end - start) * 3;
+			if (used.length < elementCount)
+				used = new int[elementCount];
+
+			int vertexCount = 0;
+			IntBuffer elements = BufferUtils.createIntBuffer(elementCount);
+			for (int i = start; i < end; i++)
+				for (int c = 0; c < 3; c++) {
+					int v = mesh.elements.get(order[i] * 3 + c);
+					if (remap[v] == -1) {
+						remap[v] = vertexCount;
+						used[vertexCount++] = v;
+					}
+					elements.put(remap[v]);
+				}
+			elements.flip();
+
+			FloatBuffer vertices = BufferUtils.createFloatBuffer(vertexCount * 3);
+			FloatBuffer normals = BufferUtils.createFloatBuffer(vertexCount * 3);
+			FloatBuffer colours = BufferUtils.createFloatBuffer(vertexCount * 3);
+			for (int i = 0; i < vertexCount; i++) {
+				for (int k = 0; k < 3; k++) {
+					vertices.put(i * 3 + k, mesh.vertices.get(used[i] * 3 + k));
+					normals.put(i * 3 + k, mesh.normals.get(used[i] * 3 + k));
+					colours.put(i * 3 + k, mesh.colours.get(used[i] * 3 + k));
+				}
+				remap[used[i]] = -1;
+			}
+
+			Model.Mesh piece = new Model.Mesh(vertices, normals, colours, elements, mesh.materialIndex, false);
+			MeshOptimizer.optimize(piece);
+
+			int size = vertexCount * 36 + elementCount * 4;
+			if (data.capacity() < size)
+				data = BufferUtils.createByteBuffer(size);
+			data.clear();
+			for (FloatBuffer attribute : new FloatBuffer[] { piece.vertices, piece.normals, piece.colours })
+				for (int i = 0; i < vertexCount * 3; i++)
+					data.putFloat(attribute.get(i));
+			for (int i = 0; i < elementCount; i++)
+				data.putInt(piece.elements.get(i));
+
+			data.flip();
+			long position = offset;
+			while (data.hasRemaining())
+				position += channel.write(data, position);
+
+			if (index.remaining() < INDEX) {
+				ByteBuffer grown = BufferUtils.createByteBuffer(index.capacity() * 2);
+				index.flip();
+				index = grown.put(index);
+			}
+			index.putLong(offset).putInt(vertexCount).putInt(elementCount).putInt(mesh.materialIndex);
+			index.putFloat(piece.min.x).putFloat(piece.min.y).putFloat(piece.min.z);
+			index.putFloat(piece.max.x).putFloat(piece.max.y).putFloat(piece.max.z);
+			count++;
+			offset = position;
+		}
+
+		/** Writes the index after the chunks, then the header. */
+		void finish(long hash) throws IOException {
+			index.flip();
+			writeFully(index, offset);
+
+			ByteBuffer header = BufferUtils.createByteBuffer(HEADER);
+			header.putInt(MAGIC).putInt(VERSION).putLong(hash).putInt(count).putLong(offset).flip();
+			writeFully(header, 0);
+		}
+
+		private void writeFully(ByteBuffer buffer, long position) throws IOException {
+			while (buffer.hasRemaining())
+				position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * Splits an obj file with two passes of {@link ObjParser#scan}, holding
+	 * only a bucket's triangles at a time; the rest waits in temporary files
+	 * next to the chunk file.
+	 */
+	private static class ObjSplit implements ObjParser.Reader, Closeable {
+
+		final Table positions, normals;
+		final File triangleFile;
+		final FileChannel triangles;
+		long trianglesOffset;
+
+		/* first pass: a reservoir sample of the positions */
+		boolean bucketing;
+		final float[] sample = new float[SAMPLES * 3];
+		final Random random = new Random(0);
+		long vertexCount, triangleCount;
+
+		/* second pass: each bucket's triangles, as v, n per corner */
+		Partition partition;
+		int[][] pending;
+		int[] pendingCount;
+		long[][] blocks;
+		int[] blockCount;
+		long[] bucketSize;
+		ByteBuffer io = BufferUtils.createByteBuffer(BLOCK * 24);
+
+		ObjSplit(File file) throws IOException {
+			positions = new Table(new File(file.getPath() + ".positions.tmp"));
+			normals = new Table(new File(file.getPath() + ".normals.tmp"));
+			triangleFile = new File(file.getPath() + ".triangles.tmp");
+			triangles = FileChannel.open(triangleFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		}
+
+		void run(File source, int limit, Writer writer) throws IOException {
+			ForkJoinPool pool = ForkJoinPool.commonPool();
+			ObjParser.scan(source, pool, this);
+			positions.map();
+			normals.map();
+
+			int samples = (int) Math.min(vertexCount, SAMPLES);
+			long leaf = triangleCount == 0 ? samples : samples * (long) limit * BUCKET_CHUNKS / triangleCount;
+			partition = new Partition(sample, samples, (int) Math.max(1, Math.min(leaf, Integer.MAX_VALUE)));
+			int buckets = partition.buckets;
+			pending = new int[buckets][];
+			pendingCount = new int[buckets];
+			blocks = new long[buckets][];
+			blockCount = new int[buckets];
+			bucketSize = new long[buckets];
+			System.out.println(vertexCount + " vertices, " + triangleCount + " triangles, " + buckets + " buckets");
+
+			bucketing = true;
+			ObjParser.scan(source, pool, this);
+			for (int b = 0; b < buckets; b++)
+				if (pendingCount[b] > 0)
+					append(b);
+			pending = null;
+
+			for (int b = 0; b < buckets; b++)
+				if (bucketSize[b] > 0)
+					writer.split(mesh(bucket(b)), limit);
+		}
+
+		@Override
+		public void read(ObjParser.Chunk chunk) throws IOException {
+			if (bucketing) {
+				bucket(chunk);
+				return;
+			}
+
+			positions.add(chunk.positions.data, chunk.positions.size);
+			normals.add(chunk.normals.data, chunk.normals.size);
+			for (int i = 0; i < chunk.positions.size; i += 3) {
+				long slot = vertexCount < SAMPLES ? vertexCount : (long) (random.nextDouble() * (vertexCount + 1));
+				if (slot < SAMPLES)
+					System.arraycopy(chunk.positions.data, i, sample, (int) slot * 3, 3);
+				vertexCount++;
+			}
+			triangleCount += chunk.cornerV.size / 3;
+		}
+
+		private void bucket(ObjParser.Chunk chunk) throws IOException {
+			int[] v = chunk.cornerV.data, n = chunk.cornerN.data;
+			long normalCount = normals.size / 3;
+
+			for (int i = 0; i + 2 < chunk.cornerV.size; i += 3) {
+				float x = 0, y = 0, z = 0;
+				for (int c = i; c < i + 3; c++) {
+					if (v[c] < 0 || v[c] >= vertexCount || n[c] >= normalCount)
+						throw new IllegalStateException("obj face references a missing vertex or normal");
+					x += positions.get(v[c] * 3L);
+					y += positions.get(v[c] * 3L + 1);
+					z += positions.get(v[c] * 3L + 2);
+				}
+
+				int b = partition.bucket(x / 3, y / 3, z / 3);
+				if (pending[b] == null)
+					pending[b] = new int[BLOCK * 6];
+				int p = pendingCount[b]++ * 6;
+				for (int c = 0; c < 3; c++) {
+					pending[b][p + c * 2] = v[i + c];
+					pending[b][p + c * 2 + 1] = n[i + c];
+				}
+				if (pendingCount[b] == BLOCK)
+					append(b);
+			}
+		}
+
+		/** Appends bucket b's pending triangles to the triangle file. */
+		private void append(int b) throws IOException {
+			int count = pendingCount[b];
+			io.clear();
+			io.asIntBuffer().put(pending[b], 0, count * 6);
+			io.limit(count * 24);
+			long position = trianglesOffset;
+			while (io.hasRemaining())
+				position += triangles.write(io, position);
+
+			if (blocks[b] == null || blockCount[b] == blocks[b].length)
+				blocks[b] = Arrays.copyOf(blocks[b] == null ? new long[0] : blocks[b], Math.max(4, blockCount[b] * 2));
+			blocks[b][blockCount[b]++] = trianglesOffset;
+			bucketSize[b] += count;
+			trianglesOffset = position;
+			pendingCount[b] = 0;
+		}
+
+		/** @return bucket b's triangles, as v, n per corner */
+		private int[] bucket(int b) throws IOException {
+			if (bucketSize[b] > Integer.MAX_VALUE / 6)
+				throw new IllegalStateException(bucketSize[b] + " triangles fall in one bucket, too many to split in memory");
+			int[] corners = new int[(int) bucketSize[b] * 6];
+			int filled = 0;
+			for (int k = 0; k < blockCount[b]; k++) {
+				int count = Math.min(BLOCK, (corners.length - filled) / 6);
+				io.clear();
+				io.limit(count * 24);
+				while (io.hasRemaining())
+					if (triangles.read(io, blocks[b][k] + io.position()) == -1)
+						throw new IOException("triangle file is truncated");
+				io.flip();
+				io.asIntBuffer().get(corners, filled, count * 6);
+				filled += count * 6;
+			}
+			return corners;
+		}
+
+		/**
+		 * Builds a bucket's mesh, joining identical position/normal pairs
+		 * as {@link ObjParser} does. It is not optimised; its chunks are.
+		 */
+		private Model.Mesh mesh(int[] corners) {
+			ObjParser.LongIntMap joined = new ObjParser.LongIntMap(Math.max(16, corners.length / 4));
+			ObjParser.IntArray uniqueV = new ObjParser.IntArray(), uniqueN = new ObjParser.IntArray();
+			IntBuffer elements = BufferUtils.createIntBuffer(corners.length / 2);
+
+			for (int i = 0; i < corners.length; i += 2) {
+				int v = corners[i], n = corners[i + 1];
+				long key = (long) v << 32 | (n + 1);
+				int index = joined.get(key);
+				if (index < 0) {
+					index = uniqueV.size;
+					joined.put(key, index);
+					uniqueV.add(v);
+					uniqueN.add(n);
+				}
+				elements.put(index);
+			}
+			elements.flip();
+
+			FloatBuffer vertexData = BufferUtils.createFloatBuffer(uniqueV.size * 3);
+			FloatBuffer normalData = BufferUtils.createFloatBuffer(uniqueV.size * 3);
+			for (int i = 0; i < uniqueV.size; i++) {
+				long v = uniqueV.data[i] * 3L, n = uniqueN.data[i] * 3L;
+				for (int k = 0; k < 3; k++) {
+					vertexData.put(i * 3 + k, positions.get(v + k));
+					normalData.put(i * 3 + k, n < 0 ? 0 : normals.get(n + k));
+				}
+			}
+
+			return new Model.Mesh(vertexData, normalData,
+					Model.Mesh.randomColours(BufferUtils.createFloatBuffer(uniqueV.size * 3)), elements, 0, false);
+		}
+
+		@Override
+		public void close() throws IOException {
+			positions.close();
+			normals.close();
+			triangles.close();
+			if (!triangleFile.delete())
+				triangleFile.deleteOnExit();
+		}
+	}
+
+	/**
+	 * Floats appended to a temporary file, then read back through memory
+	 * maps of up to {@link #SEGMENT} bytes, so they need not fit in memory.
+	 */
+	private static class Table implements Closeable {
+
+		final File file;
+		final FileChannel channel;
+		final ByteBuffer buffer = BufferUtils.createByteBuffer(1 << 20);
+		/* floats */
+		long size;
+		ByteBuffer[] segments;
+
+		Table(File file) throws IOException {
+			this.file = file;
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		}
+
+		void add(float[] data, int count) throws IOException {
+			for (int i = 0; i < count; i++) {
+				if (!buffer.hasRemaining())
+					flush();
+				buffer.putFloat(data[i]);
+			}
+			size += count;
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			buffer.clear();
+		}
+
+		/** Ends adding; {@link #get} may be called from then on. */
+		void map() throws IOException {
+			flush();
+			long bytes = size * 4;
+			segments = new ByteBuffer[(int) ((bytes + SEGMENT - 1) / SEGMENT)];
+			for (int i = 0; i < segments.length; i++)
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, i * SEGMENT, Math.min(SEGMENT, bytes - i * SEGMENT))
+						.order(ByteOrder.nativeOrder());
+		}
+
+		float get(long i) {
+			return segments[(int) (i * 4 / SEGMENT)].getFloat((int) (i * 4 % SEGMENT));
+		}
+
+		@Override
+		public void close() throws IOException {
+			segments = null;
+			channel.close();
+			/* a mapping may keep the file until it is collected */
+			if (!file.delete())
+				file.deleteOnExit();
+		}
+	}
+
+	/**
+	 * A kd tree over sampled positions, split at the median of the longest
+	 * axis, whose leaves (the buckets) each hold about the same number of
+	 * samples.
+	 */
+	private static class Partition {
+
+		int[] axis = new int[16], left = new int[16], right = new int[16];
+		float[] value = new float[16];
+		int nodes, buckets, root;
+
+		Partition(float[] sample, int count, int leafSamples) {
+			int[] order = new int[count];
+			for (int i = 0; i < count; i++)
+				order[i] = i;
+			root = build(sample, order, 0, count, leafSamples);
+		}
+
+		/** @return a node, or -1 - bucket for a leaf */
+		private int build(float[] sample, int[] order, int start, int end, int leafSamples) {
+			if (end - start <= leafSamples)
+				return -1 - buckets++;
+
+			int a = longestAxis(order, sample, start, end);
+			int mid = (start + end) >>> 1;
+			select(order, sample, a, start, end - 1, mid);
+
+			int node = nodes++;
+			if (node == axis.length) {
+				axis = Arrays.copyOf(axis, node * 2);
+				left = Arrays.copyOf(left, node * 2);
+				right = Arrays.copyOf(right, node * 2);
+				value = Arrays.copyOf(value, node * 2);
+			}
+			axis[node] = a;
+			value[node] = sample[order[mid] * 3 + a];
+			int l = build(sample, order, start, mid, leafSamples);
+			int r = build(sample, order, mid, end, leafSamples);
+			left[node] = l;
+			right[node] = r;
+			return node;
+		}
+
+		int bucket(float x, float y, float z) {
+			int node = root;
+			while (node >= 0) {
+				float c = axis[node] == 0 ? x : axis[node] == 1 ? y : z;
+				node = c < value[node] ? left[node] : right[node];
+			}
+			return -1 - node;
+		}
+	}
+}
@@ -0,0 +1,306 @@
+package org.twak.gouraud;
+
+import static org.lwjgl.assimp.Assimp.*;
+
+import java.io.File;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.lwjgl.assimp.AIScene;
+
+/**
+ * Import time reordering of a mesh for the GPU, after Sander, Nehab and
+ * Barczak, "Fast Triangle Reordering for Vertex Locality and Reduced
+ * Overdraw" (the algorithm behind AMD Tootle):
+ * <ol>
+ * <li>triangles are reordered for post-transform vertex cache hits
+ * (Tipsify),</li>
+ * <li>the resulting clusters are sorted so outward facing ones are drawn
+ * first, reducing overdraw from any viewpoint,</li>
+ * <li>vertices are renumbered in first-use order for fetch locality.</li>
+ * </ol>
+ * Runs on the CPU side data of a {@link Model.Mesh} before it is uploaded.
+ */
+public class MeshOptimizer {
+
+	public static final int CACHE_SIZE = 16;
+
+	public static void optimize(Model model) {
+		for (Model.Mesh mesh : model.meshes)
+			optimize(mesh);
+	}
+
+	public static void optimize(Model.Mesh mesh) {
+
+		int[] indices = new int[mesh.elementCount];
+		mesh.elements.get(indices);
+		mesh.elements.rewind();
+
+		int[] clusters = new int[indices.length / 3 + 1];
+		int clusterCount = tipsify(indices, mesh.vertexCount, CACHE_SIZE, clusters);
+		indices = sortClusters(indices, clusters, clusterCount, mesh.vertices);
+
+		int[] remap = vertexOrder(indices, mesh.vertexCount);
+		for (int i = 0; i < indices.length; i++)
+			indices[i] = remap[indices[i]];
+
+		mesh.elements.put(indices);
+		mesh.elements.rewind();
+
+		permute(mesh.vertices, remap);
+		permute(mesh.normals, remap);
+		permute(mesh.colours, remap);
+	}
+
+	/**
+	 * Average cache miss ratio: vertex shader invocations per triangle for a
+	 * FIFO post-transform cache. 0.5 is the optimum for large regular
+	 * meshes, 3 the worst case.
+	 */
+	public static float acmr(IntBuffer elements, int elementCount, int cacheSize) {
+		if (elementCount == 0)
+			return 0;
+
+		int maxIndex = 0;
+		for (int i = 0; i < elementCount; i++)
+			maxIndex = Math.max(maxIndex, elements.get(i));
+
+		/* a vertex is cached if fewer than cacheSize misses happened since it was inserted */
+		int[] inserted = new int[maxIndex + 1];
+		Arrays.fill(inserted, -cacheSize - 1);
+		int misses = 0;
+		for (int i = 0; i < elementCount; i++) {
+			int v = elements.get(i);
+			if (misses - inserted[v] > cacheSize)
+				inserted[v] = misses++;
+		}
+
+		return misses / (elementCount / 3f);
+	}
+
+	/**
+	 * Reorders the triangles in place for a vertex cache of the given size.
+	 *
+	 * @param clusterStarts
+	 *            receives the first triangle of each cluster; clusters end
+	 *            where the fanning hit a dead end
+	 * @return the number of clusters
+	 */
+	static int tipsify(int[] indices, int vertexCount, int cacheSize, int[] clusterStarts) {
+
+		int triangleCount = indices.length / 3;
+		if (triangleCount == 0)
+			return 0;
+
+		/* vertex -> triangle adjacency */
+		int[] offsets = new int[vertexCount + 1];
+		for (int v : indices)
+			offsets[v + 1]++;
+		for (int v = 0; v < vertexCount; v++)
+			offsets[v + 1] += offsets[v];
+		int[] adjacency = new int[indices.length];
+		int[] fill = Arrays.copyOf(offsets, vertexCount);
+		for (int i = 0; i < indices.length; i++)
+			adjacency[fill[indices[i]]++] = i / 3;
+
+		int[] live = new int[vertexCount];
+		for (int v = 0; v < vertexCount; v++)
+			live[v] = offsets[v + 1] - offsets[v];
+
+		int[] cacheTime = new int[vertexCount];
+		boolean[] emitted = new boolean[triangleCount];
+		int[] deadEnd = new int[indices.length];
+		int deadEndSize = 0;
+		int[] candidates = new int[indices.length];
+		int[] out = new int[indices.length];
+		int outSize = 0;
+
+		int time = cacheSize + 1;
+		int cursor = 0;
+		int clusterCount = 0;
+
+		int fan = indices[0];
+		clusterStarts[clusterCount++] = 0;
+
+		while (fan >= 0) {
+
+			int candidateCount = 0;
+			for (int a = offsets[fan]; a < offsets[fan + 1]; a++) {
+				int t = adjacency[a];
+				if (emitted[t])
+					continue;
+				emitted[t] = true;
+
+				for (int c = 0; c < 3; c++) {
+					int v = indices[t * 3 + c];
+					out[outSize++] = v;
+					deadEnd[deadEndSize++] = v;
+					candidates[candidateCount++] = v;
+					live[v]--;
+					if (time - cacheTime[v] > cacheSize)
+						cacheTime[v] = time++;
+				}
+			}
+
+			/* prefer the candidate that stays in the cache longest while it is fanned */
+			int next = -1, bestPriority = -1;
+			for (int i = 0; i < candidateCount; i++) {
+				int v = candidates[i];
+				if (live[v] <= 0)
+					continue;
+				int priority = 0;
+				if (time - cacheTime[v] + 2 * live[v] <= cacheSize)
+					priority = time - cacheTime[v];
+				if (priority > bestPriority) {
+					bestPriority = priority;
+					next = v;
+				}
+			}
+
+			if (next == -1) {
+				while (deadEndSize > 0 && next == -1) {
+					int v = deadEnd[--deadEndSize];
+					if (live[v] > 0)
+						next = v;
+				}
+				while (next == -1 && cursor < vertexCount) {
+					if (live[cursor] > 0)
+						next = cursor;
+					else
+						cursor++;
+				}
+				if (next != -1 && outSize < indices.length)
+					clusterStarts[clusterCount++] = outSize / 3;
+			}
+
+			fan = next;
+		}
+
+		System.arraycopy(out, 0, indices, 0, indices.length);
+		return clusterCount;
+	}
+
+	/**
+	 * Orders clusters by how much they face away from the mesh centre, so
+	 * clusters likely to occlude others are drawn first.
+	 */
+	static int[] sortClusters(int[] indices, int[] clusterStarts, int clusterCount, FloatBuffer vertices) {
+
+		int triangleCount = indices.length / 3;
+
+		float mx = 0, my = 0, mz = 0;
+		int vertexCount = vertices.remaining() / 3;
+		for (int v = 0; v < vertexCount; v++) {
+			mx += vertices.get(v * 3);
+			my += vertices.get(v * 3 + 1);
+			mz += vertices.get(v * 3 + 2);
+		}
+		if (vertexCount > 0) {
+			mx /= vertexCount;
+			my /= vertexCount;
+			mz /= vertexCount;
+		}
+
+		final float[] metric = new float[clusterCount];
+		Integer[] order = new Integer[clusterCount];
+
+		for (int c = 0; c < clusterCount; c++) {
+			int end = c + 1 < clusterCount ? clusterStarts[c + 1] : triangleCount;
+
+			/* area weighted centroid and normal */
+			float cx = 0, cy = 0, cz = 0, nx = 0, ny = 0, nz = 0, area = 0;
+			for (int t = clusterStarts[c]; t < end; t++) {
+				int a = indices[t * 3] * 3, b = indices[t * 3 + 1] * 3, d = indices[t * 3 + 2] * 3;
+				float ax = vertices.get(a), ay = vertices.get(a + 1), az = vertices.get(a + 2);
+				float ux = vertices.get(b) - ax, uy = vertices.get(b + 1) - ay, uz = vertices.get(b + 2) - az;
+				float vx = vertices.get(d) - ax, vy = vertices.get(d + 1) - ay, vz = vertices.get(d + 2) - az;
+
+				float tx = uy * vz - uz * vy, ty = uz * vx - ux * vz, tz = ux * vy - uy * vx;
+				float twiceArea = (float) Math.sqrt(tx * tx + ty * ty + tz * tz);
+
+				nx += tx;
+				ny += ty;
+				nz += tz;
+				cx += (ax + vertices.get(b) + vertices.get(d)) / 3 * twiceArea;
+				cy += (ay + vertices.get(b + 1) + vertices.get(d + 1)) / 3 * twiceArea;
+				cz += (az + vertices.get(b + 2) + vertices.get(d + 2)) / 3 * twiceArea;
+				area += twiceArea;
+			}
+
+			float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+			if (area > 0 && length > 0)
+				metric[c] = ((cx / area - mx) * nx + (cy / area - my) * ny + (cz / area - mz) * nz) / length;
+			order[c] = c;
+		}
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Float.compare(metric[b], metric[a]);
+			}
+		});
+
+		int[] sorted = new int[indices.length];
+		int pos = 0;
+		for (int c : order) {
+			int start = clusterStarts[c] * 3;
+			int end = (c + 1 < clusterCount ? clusterStarts[c + 1] : triangleCount) * 3;
+			System.arraycopy(indices, start, sorted, pos, end - start);
+			pos += end - start;
+		}
+		return sorted;
+	}
+
+	/**
+	 * @return old vertex index -> new vertex index, in order of first use;
+	 *         unreferenced vertices go last
+	 */
+	static int[] vertexOrder(int[] indices, int vertexCount) {
+		int[] remap = new int[vertexCount];
+		Arrays.fill(remap, -1);
+		int next = 0;
+		for (int v : indices)
+			if (remap[v] == -1)
+				remap[v] = next++;
+		for (int v = 0; v < vertexCount; v++)
+			if (remap[v] == -1)
+				remap[v] = next++;
+		return remap;
+	}
+
+	private static void permute(FloatBuffer data, int[] remap) {
+		float[] old = new float[remap.length * 3];
+		data.get(old);
+		data.rewind();
+		for (int v = 0; v < remap.length; v++) {
+			int n = remap[v] * 3;
+			data.put(n, old[v * 3]);
+			data.put(n + 1, old[v * 3 + 1]);
+			data.put(n + 2, old[v * 3 + 2]);
+		}
+	}
+
+	/**
+	 * Reports the vertex cache gain for a model without a GL context.
+	 *
+	 * usage: MeshOptimizer model.obj
+	 */
+	public static void main(String[] args) {
+		AIScene scene = aiImportFile(new File(args[0]).getAbsolutePath(),
+				aiProcess_JoinIdenticalVertices | aiProcess_Triangulate);
+		if (scene == null)
+			throw new IllegalStateException(aiGetErrorString());
+		Model model = new Model(scene, false);
+		for (int i = 0; i < model.meshes.size(); i++) {
+			Model.Mesh mesh = model.meshes.get(i);
+			float before = acmr(mesh.elements, mesh.elementCount, CACHE_SIZE);
+			optimize(mesh);
+			float after = acmr(mesh.elements, mesh.elementCount, CACHE_SIZE);
+			System.out.println(String.format("mesh %d: %d triangles, ACMR %.3f -> %.3f", i, mesh.elementCount / 3,
+					before, after));
+		}
+		model.free();
+	}
+}
@@ -0,0 +1,371 @@
+package org.twak.gouraud;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * Quadric error metric edge collapse (Garland and Heckbert, "Surface
+ * Simplification Using Quadric Error Metrics"). Each collapse moves the
+ * surviving vertex to whichever of the two end points or their midpoint has
+ * the least quadric error; collapses that would flip a triangle are skipped.
+ * Open boundaries are kept in place by penalty planes.
+ */
+public class MeshSimplifier {
+
+	private static final double BOUNDARY_WEIGHT = 1000;
+
+	private int vertexCount;
+	private float[] positions;
+	/* symmetric 4x4 quadric per vertex: a2 ab ac ad b2 bc bd c2 cd d2 */
+	private double[] quadrics;
+	private int[] version;
+	private boolean[] removedVertex;
+
+	private int[] triangles;
+	private boolean[] removedTriangle;
+	private int liveTriangles;
+
+	/* area of the last triangle passed to plane() */
+	private double area;
+
+	/* vertex -> adjacent triangles (may include removed ones) */
+	private int[][] vertexTriangles;
+	private int[] vertexTriangleCount;
+
+	private PriorityQueue<Collapse> heap = new PriorityQueue<>();
+
+	/* scratch for the flip test */
+	private double[] corners = new double[9], before = new double[3], after = new double[3];
+	private double[] quadric = new double[10];
+
+	private static class Collapse implements Comparable<Collapse> {
+		double cost;
+		int u, v, versionU, versionV;
+		float x, y, z;
+
+		@Override
+		public int compareTo(Collapse o) {
+			return Double.compare(cost, o.cost);
+		}
+	}
+
+	/**
+	 * @return a new mesh with at most (about) targetTriangles triangles; its
+	 *         normals and colours are those of the surviving vertices. Not
+	 *         uploaded.
+	 */
+	public static Model.Mesh simplify(Model.Mesh mesh, int targetTriangles) {
+		return simplify(mesh, targetTriangles, null);
+	}
+
+	/**
+	 * @param arena
+	 *            holds the new mesh's data, or null for garbage-collected
+	 *            buffers
+	 */
+	public static Model.Mesh simplify(Model.Mesh mesh, int targetTriangles, MeshArena arena) {
+		return new MeshSimplifier(mesh).run(mesh, targetTriangles, arena);
+	}
+
+	private MeshSimplifier(Model.Mesh mesh) {
+
+		vertexCount = mesh.vertexCount;
+		positions = new float[vertexCount * 3];
+		/* duplicates, as several levels may be simplified from mesh at once */
+		mesh.vertices.duplicate().get(positions);
+
+		triangles = new int[mesh.elementCount];
+		mesh.elements.duplicate().get(triangles);
+
+		int triangleCount = triangles.length / 3;
+		liveTriangles = triangleCount;
+		removedTriangle = new boolean[triangleCount];
+		removedVertex = new boolean[vertexCount];
+		version = new int[vertexCount];
+		quadrics = new double[vertexCount * 10];
+
+		vertexTriangleCount = new int[vertexCount];
+		for (int i : triangles)
+			vertexTriangleCount[i]++;
+		vertexTriangles = new int[vertexCount][];
+		for (int v = 0; v < vertexCount; v++) {
+			vertexTriangles[v] = new int[Math.max(4, vertexTriangleCount[v])];
+			vertexTriangleCount[v] = 0;
+		}
+		for (int t = 0; t < triangleCount; t++)
+			for (int c = 0; c < 3; c++) {
+				int v = triangles[t * 3 + c];
+				vertexTriangles[v][vertexTriangleCount[v]++] = t;
+			}
+
+		double[] plane = new double[4];
+		for (int t = 0; t < triangleCount; t++) {
+			if (!plane(triangles[t * 3], triangles[t * 3 + 1], triangles[t * 3 + 2], plane))
+				continue;
+			for (int c = 0; c < 3; c++)
+				addPlane(triangles[t * 3 + c], plane, area);
+		}
+
+		addBoundaryPlanes();
+	}
+
+	/**
+	 * Unit plane through the triangle; sets {@link #area}.
+	 *
+	 * @return false for degenerate triangles
+	 */
+	private boolean plane(int a, int b, int c, double[] plane) {
+		double ux = positions[b * 3] - positions[a * 3], uy = positions[b * 3 + 1] - positions[a * 3 + 1],
+				uz = positions[b * 3 + 2] - positions[a * 3 + 2];
+		double vx = positions[c * 3] - positions[a * 3], vy = positions[c * 3 + 1] - positions[a * 3 + 1],
+				vz = positions[c * 3 + 2] - positions[a * 3 + 2];
+		double nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+		double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (length == 0)
+			return false;
+		plane[0] = nx / length;
+		plane[1] = ny / length;
+		plane[2] = nz / length;
+		plane[3] = -(plane[0] * positions[a * 3] + plane[1] * positions[a * 3 + 1] + plane[2] * positions[a * 3 + 2]);
+		area = length / 2;
+		return true;
+	}
+
+	private void addPlane(int v, double[] p, double weight) {
+		int q = v * 10;
+		quadrics[q] += weight * p[0] * p[0];
+		quadrics[q + 1] += weight * p[0] * p[1];
+		quadrics[q + 2] += weight * p[0] * p[2];
+		quadrics[q + 3] += weight * p[0] * p[3];
+		quadrics[q + 4] += weight * p[1] * p[1];
+		quadrics[q + 5] += weight * p[1] * p[2];
+		quadrics[q + 6] += weight * p[1] * p[3];
+		quadrics[q + 7] += weight * p[2] * p[2];
+		quadrics[q + 8] += weight * p[2] * p[3];
+		quadrics[q + 9] += weight * p[3] * p[3];
+	}
+
+	/**
+	 * Adds a heavily weighted plane through each edge used by only one
+	 * triangle, perpendicular to that triangle, so borders do not shrink.
+	 */
+	private void addBoundaryPlanes() {
+		double[] face = new double[4], edgePlane = new double[4];
+		for (int t = 0; t < triangles.length / 3; t++) {
+			for (int c = 0; c < 3; c++) {
+				int a = triangles[t * 3 + c], b = triangles[t * 3 + (c + 1) % 3];
+				if (edgeTriangles(a, b) != 1 || !plane(triangles[t * 3], triangles[t * 3 + 1], triangles[t * 3 + 2], face))
+					continue;
+
+				double ex = positions[b * 3] - positions[a * 3], ey = positions[b * 3 + 1] - positions[a * 3 + 1],
+						ez = positions[b * 3 + 2] - positions[a * 3 + 2];
+				double nx = ey * face[2] - ez * face[1], ny = ez * face[0] - ex * face[2], nz = ex * face[1] - ey * face[0];
+				double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+				if (length == 0)
+					continue;
+				edgePlane[0] = nx / length;
+				edgePlane[1] = ny / length;
+				edgePlane[2] = nz / length;
+				edgePlane[3] = -(edgePlane[0] * positions[a * 3] + edgePlane[1] * positions[a * 3 + 1]
+						+ edgePlane[2] * positions[a * 3 + 2]);
+				addPlane(a, edgePlane, BOUNDARY_WEIGHT);
+				addPlane(b, edgePlane, BOUNDARY_WEIGHT);
+			}
+		}
+	}
+
+	private int edgeTriangles(int a, int b) {
+		int count = 0;
+		for (int i = 0; i < vertexTriangleCount[a]; i++) {
+			int t = vertexTriangles[a][i];
+			if (!removedTriangle[t] && (triangles[t * 3] == b || triangles[t * 3 + 1] == b || triangles[t * 3 + 2] == b))
+				count++;
+		}
+		return count;
+	}
+
+	private Model.Mesh run(Model.Mesh mesh, int targetTriangles, MeshArena arena) {
+
+		for (int t = 0; t < triangles.length / 3; t++)
+			for (int c = 0; c < 3; c++) {
+				int a = triangles[t * 3 + c], b = triangles[t * 3 + (c + 1) % 3];
+				if (a < b)
+					heap.add(collapse(a, b));
+			}
+
+		while (liveTriangles > targetTriangles && !heap.isEmpty()) {
+			Collapse c = heap.poll();
+			if (removedVertex[c.u] || removedVertex[c.v] || version[c.u] != c.versionU || version[c.v] != c.versionV)
+				continue;
+			if (flips(c.u, c.v, c) || flips(c.v, c.u, c))
+				continue;
+			apply(c);
+		}
+
+		return compact(mesh, arena);
+	}
+
+	private Collapse collapse(int u, int v) {
+		Collapse c = new Collapse();
+		c.u = u;
+		c.v = v;
+		c.versionU = version[u];
+		c.versionV = version[v];
+
+		double[] q = quadric;
+		for (int i = 0; i < 10; i++)
+			q[i] = quadrics[u * 10 + i] + quadrics[v * 10 + i];
+
+		c.cost = Double.MAX_VALUE;
+		for (int k = 0; k < 3; k++) {
+			float x, y, z;
+			if (k == 0) {
+				x = positions[u * 3];
+				y = positions[u * 3 + 1];
+				z = positions[u * 3 + 2];
+			} else if (k == 1) {
+				x = positions[v * 3];
+				y = positions[v * 3 + 1];
+				z = positions[v * 3 + 2];
+			} else {
+				x = (positions[u * 3] + positions[v * 3]) / 2;
+				y = (positions[u * 3 + 1] + positions[v * 3 + 1]) / 2;
+				z = (positions[u * 3 + 2] + positions[v * 3 + 2]) / 2;
+			}
+			double error = q[0] * x * x + 2 * q[1] * x * y + 2 * q[2] * x * z + 2 * q[3] * x + q[4] * y * y
+					+ 2 * q[5] * y * z + 2 * q[6] * y + q[7] * z * z + 2 * q[8] * z + q[9];
+			if (error < c.cost) {
+				c.cost = error;
+				c.x = x;
+				c.y = y;
+				c.z = z;
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * @return true if moving vertex a to the collapse target turns any of its
+	 *         triangles not shared with b over (or makes it degenerate)
+	 */
+	private boolean flips(int a, int b, Collapse c) {
+		for (int i = 0; i < vertexTriangleCount[a]; i++) {
+			int t = vertexTriangles[a][i];
+			if (removedTriangle[t])
+				continue;
+			int i0 = triangles[t * 3], i1 = triangles[t * 3 + 1], i2 = triangles[t * 3 + 2];
+			if (i0 == b || i1 == b || i2 == b)
+				continue;
+
+			normal(i0, i1, i2, -1, 0, 0, 0, before);
+			normal(i0, i1, i2, a, c.x, c.y, c.z, after);
+			double dot = before[0] * after[0] + before[1] * after[1] + before[2] * after[2];
+			double afterLength = after[0] * after[0] + after[1] * after[1] + after[2] * after[2];
+			if (dot <= 0 || afterLength == 0)
+				return true;
+		}
+		return false;
+	}
+
+	private void normal(int i0, int i1, int i2, int moved, float x, float y, float z, double[] n) {
+		int[] ids = { i0, i1, i2 };
+		for (int k = 0; k < 3; k++) {
+			if (ids[k] == moved) {
+				corners[k * 3] = x;
+				corners[k * 3 + 1] = y;
+				corners[k * 3 + 2] = z;
+			} else {
+				corners[k * 3] = positions[ids[k] * 3];
+				corners[k * 3 + 1] = positions[ids[k] * 3 + 1];
+				corners[k * 3 + 2] = positions[ids[k] * 3 + 2];
+			}
+		}
+		double ux = corners[3] - corners[0], uy = corners[4] - corners[1], uz = corners[5] - corners[2];
+		double vx = corners[6] - corners[0], vy = corners[7] - corners[1], vz = corners[8] - corners[2];
+		n[0] = uy * vz - uz * vy;
+		n[1] = uz * vx - ux * vz;
+		n[2] = ux * vy - uy * vx;
+	}
+	/**
+	 * Removes u, moving v to the collapse target.
+	 */
+	private void apply(Collapse c) {
+		int u = c.u, v = c.v;
+
+		positions[v * 3] = c.x;
+		positions[v * 3 + 1] = c.y;
+		positions[v * 3 + 2] = c.z;
+		for (int i = 0; i < 10; i++)
+			quadrics[v * 10 + i] += quadrics[u * 10 + i];
+		removedVertex[u] = true;
+		version[v]++;
+
+		for (int i = 0; i < vertexTriangleCount[u]; i++) {
+			int t = vertexTriangles[u][i];
+			if (removedTriangle[t])
+				continue;
+			if (triangles[t * 3] == v || triangles[t * 3 + 1] == v || triangles[t * 3 + 2] == v) {
+				removedTriangle[t] = true;
+				liveTriangles--;
+				continue;
+			}
+			for (int k = 0; k < 3; k++)
+				if (triangles[t * 3 + k] == u)
+					triangles[t * 3 + k] = v;
+			if (vertexTriangleCount[v] == vertexTriangles[v].length)
+				vertexTriangles[v] = Arrays.copyOf(vertexTriangles[v], vertexTriangles[v].length * 2);
+			vertexTriangles[v][vertexTriangleCount[v]++] = t;
+		}
+
+		for (int i = 0; i < vertexTriangleCount[v]; i++) {
+			int t = vertexTriangles[v][i];
+			if (removedTriangle[t])
+				continue;
+			for (int k = 0; k < 3; k++) {
+				int w = triangles[t * 3 + k];
+				if (w != v)
+					heap.add(collapse(v, w));
+			}
+		}
+	}
+
+	private Model.Mesh compact(Model.Mesh mesh, MeshArena arena) {
+		int[] remap = new int[vertexCount];
+		Arrays.fill(remap, -1);
+		int count = 0;
+		for (int t = 0; t < triangles.length / 3; t++)
+			if (!removedTriangle[t])
+				for (int k = 0; k < 3; k++) {
+					int v = triangles[t * 3 + k];
+					if (remap[v] == -1)
+						remap[v] = count++;
+				}
+
+		FloatBuffer vertices = arena == null ? BufferUtils.createFloatBuffer(count * 3) : arena.floats(count * 3);
+		FloatBuffer normals = arena == null ? BufferUtils.createFloatBuffer(count * 3) : arena.floats(count * 3);
+		FloatBuffer colours = arena == null ? BufferUtils.createFloatBuffer(count * 3) : arena.floats(count * 3);
+		for (int v = 0; v < vertexCount; v++) {
+			int n = remap[v];
+			if (n == -1)
+				continue;
+			for (int k = 0; k < 3; k++) {
+				vertices.put(n * 3 + k, positions[v * 3 + k]);
+				normals.put(n * 3 + k, mesh.normals.get(v * 3 + k));
+				colours.put(n * 3 + k, mesh.colours.get(v * 3 + k));
+			}
+		}
+
+		IntBuffer elements = arena == null ? BufferUtils.createIntBuffer(liveTriangles * 3) : arena.ints(liveTriangles * 3);
+		for (int t = 0; t < triangles.length / 3; t++)
+			if (!removedTriangle[t])
+				for (int k = 0; k < 3; k++)
+					elements.put(remap[triangles[t * 3 + k]]);
+		elements.flip();
+
+		return new Model.Mesh(vertices, normals, colours, elements, mesh.materialIndex, false);
+	}
+}
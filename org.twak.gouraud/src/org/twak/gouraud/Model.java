@@ -12,14 +12,31 @@ import static org.lwjgl.opengl.ARBVertexBufferObject.GL_ELEMENT_ARRAY_BUFFER_ARB
 import static org.lwjgl.opengl.ARBVertexBufferObject.GL_STATIC_DRAW_ARB;
 import static org.lwjgl.opengl.ARBVertexBufferObject.glBindBufferARB;
 import static org.lwjgl.opengl.ARBVertexBufferObject.glBufferDataARB;
+import static org.lwjgl.opengl.ARBVertexBufferObject.glDeleteBuffersARB;
 import static org.lwjgl.opengl.ARBVertexBufferObject.glGenBuffersARB;
-import static org.lwjgl.opengl.ARBVertexBufferObject.nglBufferDataARB;
+import static org.lwjgl.opengl.ARBVertexArrayObject.glBindVertexArray;
+import static org.lwjgl.opengl.ARBVertexArrayObject.glDeleteVertexArrays;
+import static org.lwjgl.opengl.ARBVertexArrayObject.glGenVertexArrays;
+import static org.lwjgl.opengl.ARBVertexShader.glEnableVertexAttribArrayARB;
+import static org.lwjgl.opengl.ARBVertexShader.glVertexAttribPointerARB;
+import static org.lwjgl.opengl.ARBVertexType2_10_10_10_REV.GL_INT_2_10_10_10_REV;
+import static org.lwjgl.opengl.GL11.GL_FLOAT;
+import static org.lwjgl.opengl.GL11.GL_SHORT;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_BYTE;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_INT;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_SHORT;
+import static org.lwjgl.system.MemoryUtil.memFloatBuffer;
 
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.joml.Vector3f;
 
 import org.lwjgl.BufferUtils;
 import org.lwjgl.PointerBuffer;
@@ -28,84 +45,168 @@ import org.lwjgl.assimp.AIFace;
 import org.lwjgl.assimp.AIMaterial;
 import org.lwjgl.assimp.AIMesh;
 import org.lwjgl.assimp.AIScene;
-import org.lwjgl.assimp.AIVector3D;
 import org.lwjgl.system.MemoryUtil;
 
 class Model {
 
-    public AIScene scene;
     public List<Model.Mesh> meshes;
     public List<Model.Material> materials;
+    /** holds the mesh data of this model and its levels of detail */
+    public final MeshArena arena = new MeshArena();
+
+    /**
+     * Told of each mesh of a model being loaded once it and its levels of
+     * detail are ready, on whichever thread prepared it.
+     */
+    public interface Listener {
+        void prepared(Model model, Mesh mesh);
+    }
 
     public Model(AIScene scene) {
+        this(scene, true);
+    }
 
-        this.scene = scene;
+    /**
+     * Copies the meshes and materials out of scene and releases it; the
+     * model owns the scene from this call on.
+     *
+     * @param upload
+     *            whether to create the GL buffers for each mesh; pass false
+     *            when there is no GL context (e.g. software rendering)
+     */
+    public Model(AIScene scene, boolean upload) {
 
-        int meshCount = scene.mNumMeshes();
-        PointerBuffer meshesBuffer = scene.mMeshes();
-        meshes = new ArrayList<>();
-        for (int i = 0; i < meshCount; ++i) {
-            meshes.add(new Mesh(AIMesh.create(meshesBuffer.get(i))));
-        }
+        try {
+            int meshCount = scene.mNumMeshes();
+            PointerBuffer meshesBuffer = scene.mMeshes();
+            meshes = new ArrayList<>();
+            for (int i = 0; i < meshCount; ++i) {
+                meshes.add(new Mesh(AIMesh.create(meshesBuffer.get(i)), arena, upload));
+            }
 
-        int materialCount = scene.mNumMaterials();
-        PointerBuffer materialsBuffer = scene.mMaterials();
-        materials = new ArrayList<>();
-        for (int i = 0; i < materialCount; ++i) {
-            materials.add(new Material(AIMaterial.create(materialsBuffer.get(i))));
+            int materialCount = scene.mNumMaterials();
+            PointerBuffer materialsBuffer = scene.mMaterials();
+            materials = new ArrayList<>();
+            for (int i = 0; i < materialCount; ++i) {
+                materials.add(new Material(AIMaterial.create(materialsBuffer.get(i))));
+            }
+        } finally {
+            aiReleaseImport(scene);
         }
     }
 
+    /**
+     * A model built from already prepared meshes, e.g. read back from a
+     * {@link MeshCache}; there is no Assimp scene to release.
+     */
+    public Model(List<Model.Mesh> meshes, List<Model.Material> materials) {
+        this.meshes = meshes;
+        this.materials = materials;
+    }
+
+    /**
+     * Builds a chain of simplified meshes for every mesh, in parallel across
+     * meshes, stored in the model's arena. Call before the meshes are
+     * uploaded.
+     */
+    public void buildLods(int levels) {
+        buildLods(levels, null);
+    }
+
+    /**
+     * @param listener
+     *            told of each mesh as soon as its chain is built, or null
+     */
+    public void buildLods(final int levels, final Listener listener) {
+        List<RecursiveAction> tasks = new ArrayList<>();
+        for (final Mesh mesh : meshes)
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    mesh.buildLods(levels, arena);
+                    if (listener != null)
+                        listener.prepared(Model.this, mesh);
+                }
+            });
+        ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    /**
+     * Deletes the GL buffers of every mesh and level of detail; the CPU side
+     * data is kept.
+     */
+    public void deleteBuffers() {
+        for (Mesh mesh : meshes)
+            for (Mesh level : mesh.lods)
+                level.deleteBuffers();
+    }
+
+    /**
+     * Deletes any GL buffers, which must then happen on the GL thread, and
+     * releases the mesh data. The meshes are unusable afterwards.
+     */
     public void free() {
-        aiReleaseImport(scene);
-        scene = null;
+        if (meshes != null)
+            deleteBuffers();
+        arena.free();
         meshes = null;
         materials = null;
     }
 
     public static class Mesh {
 
-        public AIMesh mesh;
+        public static final int MIN_LOD_TRIANGLES = 64;
+        /** meshes this large simplify their levels on several threads */
+        public static final int PARALLEL_LOD_TRIANGLES = 1 << 17;
+
+        public FloatBuffer vertices;
+        public FloatBuffer normals;
+        public FloatBuffer colours;
+        public IntBuffer elements;
+        public int vertexCount;
+        public int materialIndex;
         public int vertexArrayBuffer;
         public int normalArrayBuffer;
         public int colourArrayBuffer;
         public int elementArrayBuffer;
         public int elementCount;
+        /** non-zero when uploaded with {@link #uploadInterleaved} or {@link #uploadCompressed} */
+        public int vertexArrayObject;
+        /** type of the uploaded element buffer */
+        public int elementType = GL_UNSIGNED_INT;
+        /** set by {@link #uploadCompressed}, for the shader to decode positions */
+        public boolean compressed;
+        public Vector3f positionOffset = new Vector3f();
+        public Vector3f positionScale = new Vector3f(1, 1, 1);
+        /** bounding box and sphere in model space */
+        public Vector3f min = new Vector3f();
+        public Vector3f max = new Vector3f();
+        public Vector3f centre = new Vector3f();
+        public float radius;
+        /** levels of detail, lods[0] is this mesh */
+        public Mesh[] lods = { this };
 
-        public Mesh(AIMesh mesh) {
-            this.mesh = mesh;
+        /**
+         * Copies the mesh into arena, so it no longer refers to Assimp's
+         * memory.
+         */
+        public Mesh(AIMesh mesh, MeshArena arena, boolean upload) {
 
-            vertexArrayBuffer = glGenBuffersARB();
-            glBindBufferARB(GL_ARRAY_BUFFER_ARB, vertexArrayBuffer);
-            AIVector3D.Buffer vertices = mesh.mVertices();
-            nglBufferDataARB(GL_ARRAY_BUFFER_ARB, AIVector3D.SIZEOF * vertices.remaining(),
-                    vertices.address(), GL_STATIC_DRAW_ARB);
+            vertexCount = mesh.mNumVertices();
+            materialIndex = mesh.mMaterialIndex();
+            vertices = arena.copy(memFloatBuffer(mesh.mVertices().address(), vertexCount * 3));
+            normals = arena.copy(memFloatBuffer(mesh.mNormals().address(), vertexCount * 3));
 
-            normalArrayBuffer = glGenBuffersARB();
-            glBindBufferARB(GL_ARRAY_BUFFER_ARB, normalArrayBuffer);
-            AIVector3D.Buffer normals = mesh.mNormals();
-            nglBufferDataARB(GL_ARRAY_BUFFER_ARB, AIVector3D.SIZEOF * normals.remaining(),
-                    normals.address(), GL_STATIC_DRAW_ARB);
-            
-            colourArrayBuffer = glGenBuffersARB();
-            glBindBufferARB(GL_ARRAY_BUFFER_ARB, colourArrayBuffer);
-            
-            float[] colors = new float[vertices.remaining() * 3 * 4];
-            
-            for (int i = 0; i < colors.length; i++)
-            		colors[i] = (float)Math.random();
-            
-            FloatBuffer colorsBuffer = BufferUtils.createFloatBuffer(colors.length);
-            colorsBuffer.put(colors);
-            colorsBuffer.flip();
-            
-            glBufferDataARB(GL_ARRAY_BUFFER_ARB, colorsBuffer, GL_STATIC_DRAW_ARB);
-//            nglBufferDataARB(GL_ARRAY_BUFFER_ARB, AIVector3D.SIZEOF * 24,  MemoryUtil.getAddress(fb), GL_STATIC_DRAW_ARB);
-//            PointerBuffer colours =  PointerBuffer.allocateDirect(capacity) mesh.mColors();//mNormals();
+            colours = randomColours(arena.floats(vertexCount * 3));
             
             int faceCount = mesh.mNumFaces();
             elementCount = faceCount * 3;
-            IntBuffer elementArrayBufferData = BufferUtils.createIntBuffer(elementCount);
+            elements = arena.ints(elementCount);
             AIFace.Buffer facesBuffer = mesh.mFaces();
             
             for (int i = 0; i < faceCount; ++i) {
@@ -113,42 +214,350 @@ class Model {
                 if (face.mNumIndices() != 3) {
                     throw new IllegalStateException("AIFace.mNumIndices() != 3");
                 }
-                elementArrayBufferData.put(face.mIndices());
+                elements.put(face.mIndices());
             }
             
-            elementArrayBufferData.flip();
+            elements.flip();
+
+            computeBounds();
+
+            if (upload)
+                upload();
+        }
+
+        public Mesh(FloatBuffer vertices, FloatBuffer normals, FloatBuffer colours, IntBuffer elements,
+                int materialIndex, boolean upload) {
+            this.vertices = vertices;
+            this.normals = normals;
+            this.colours = colours;
+            this.elements = elements;
+            this.materialIndex = materialIndex;
+            vertexCount = vertices.remaining() / 3;
+            elementCount = elements.remaining();
+
+            computeBounds();
+
+            if (upload)
+                upload();
+        }
+
+        void computeBounds() {
+            float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+            float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+            for (int i = 0; i < vertexCount * 3; i += 3) {
+                minX = Math.min(minX, vertices.get(i));
+                minY = Math.min(minY, vertices.get(i + 1));
+                minZ = Math.min(minZ, vertices.get(i + 2));
+                maxX = Math.max(maxX, vertices.get(i));
+                maxY = Math.max(maxY, vertices.get(i + 1));
+                maxZ = Math.max(maxZ, vertices.get(i + 2));
+            }
+            if (vertexCount == 0)
+                return;
+
+            min.set(minX, minY, minZ);
+            max.set(maxX, maxY, maxZ);
+            centre.set((minX + maxX) / 2, (minY + maxY) / 2, (minZ + maxZ) / 2);
+            float r2 = 0;
+            for (int i = 0; i < vertexCount * 3; i += 3) {
+                float dx = vertices.get(i) - centre.x, dy = vertices.get(i + 1) - centre.y, dz = vertices.get(i + 2) - centre.z;
+                r2 = Math.max(r2, dx * dx + dy * dy + dz * dz);
+            }
+            radius = (float) Math.sqrt(r2);
+        }
+
+        /**
+         * Fills {@link #lods} with up to levels meshes, each with half the
+         * triangles of the one before, stopping at {@link #MIN_LOD_TRIANGLES}.
+         * The simplified meshes are not uploaded.
+         * <p>
+         * Small meshes simplify each level from the one before. Meshes of
+         * {@link #PARALLEL_LOD_TRIANGLES} or more, such as a single scan,
+         * simplify every level from this mesh at once on the fork join pool;
+         * that is more work in total but takes about as long as the first
+         * level alone.
+         */
+        public void buildLods(int levels) {
+            buildLods(levels, null);
+        }
+
+        /**
+         * @param arena
+         *            holds the simplified meshes, or null for
+         *            garbage-collected buffers
+         */
+        public void buildLods(int levels, final MeshArena arena) {
+            int count = 1;
+            while (count < levels && elementCount / 3 >> count >= MIN_LOD_TRIANGLES)
+                count++;
+            final Mesh[] chain = new Mesh[count];
+            chain[0] = this;
+
+            if (elementCount / 3 < PARALLEL_LOD_TRIANGLES) {
+                for (int i = 1; i < count; i++)
+                    chain[i] = simplified(chain[i - 1], elementCount / 3 >> i, arena);
+            } else {
+                List<RecursiveAction> tasks = new ArrayList<>();
+                for (int i = 1; i < count; i++) {
+                    final int level = i;
+                    tasks.add(new RecursiveAction() {
+                        @Override
+                        protected void compute() {
+                            chain[level] = simplified(Mesh.this, elementCount / 3 >> level, arena);
+                        }
+                    });
+                }
+                ForkJoinTask.invokeAll(tasks);
+            }
+            lods = chain;
+        }
+
+        private Mesh simplified(Mesh from, int target, MeshArena arena) {
+            Mesh lod = MeshSimplifier.simplify(from, target, arena);
+            MeshOptimizer.optimize(lod);
+            lod.boundsOf(this);
+            return lod;
+        }
+
+        /**
+         * Takes mesh's bounds, so a level of detail is culled and chosen
+         * like the full mesh.
+         */
+        void boundsOf(Mesh mesh) {
+            min.set(mesh.min);
+            max.set(mesh.max);
+            centre.set(mesh.centre);
+            radius = mesh.radius;
+        }
+
+        public Mesh lod(int level) {
+            return lods[Math.min(level, lods.length - 1)];
+        }
+
+        static FloatBuffer randomColours(FloatBuffer colours) {
+            for (int i = 0; i < colours.capacity(); i++)
+                colours.put(i, (float) Math.random());
+            return colours;
+        }
+
+        /**
+         * Creates the GL buffers from the CPU side data. Requires a current
+         * GL context.
+         */
+        public void upload() {
+
+            vertexArrayBuffer = glGenBuffersARB();
+            glBindBufferARB(GL_ARRAY_BUFFER_ARB, vertexArrayBuffer);
+            glBufferDataARB(GL_ARRAY_BUFFER_ARB, vertices, GL_STATIC_DRAW_ARB);
+
+            normalArrayBuffer = glGenBuffersARB();
+            glBindBufferARB(GL_ARRAY_BUFFER_ARB, normalArrayBuffer);
+            glBufferDataARB(GL_ARRAY_BUFFER_ARB, normals, GL_STATIC_DRAW_ARB);
+            
+            colourArrayBuffer = glGenBuffersARB();
+            glBindBufferARB(GL_ARRAY_BUFFER_ARB, colourArrayBuffer);
+            glBufferDataARB(GL_ARRAY_BUFFER_ARB, colours, GL_STATIC_DRAW_ARB);
+//            nglBufferDataARB(GL_ARRAY_BUFFER_ARB, AIVector3D.SIZEOF * 24,  MemoryUtil.getAddress(fb), GL_STATIC_DRAW_ARB);
+//            PointerBuffer colours =  PointerBuffer.allocateDirect(capacity) mesh.mColors();//mNormals();
+            
             elementArrayBuffer = glGenBuffersARB();
             glBindBufferARB(GL_ELEMENT_ARRAY_BUFFER_ARB, elementArrayBuffer);
-            glBufferDataARB(GL_ELEMENT_ARRAY_BUFFER_ARB, elementArrayBufferData, GL_STATIC_DRAW_ARB);
+            glBufferDataARB(GL_ELEMENT_ARRAY_BUFFER_ARB, elements, GL_STATIC_DRAW_ARB);
+        }
+
+        public void deleteBuffers() {
+            for (int buffer : new int[] { vertexArrayBuffer, normalArrayBuffer, colourArrayBuffer, elementArrayBuffer })
+                if (buffer != 0)
+                    glDeleteBuffersARB(buffer);
+            if (vertexArrayObject != 0)
+                glDeleteVertexArrays(vertexArrayObject);
+            vertexArrayBuffer = normalArrayBuffer = colourArrayBuffer = elementArrayBuffer = vertexArrayObject = 0;
+            elementType = GL_UNSIGNED_INT;
+            compressed = false;
+        }
+
+        /**
+         * Alternative to {@link #upload()}: position, normal and colour are
+         * interleaved in a single buffer, and the attribute pointers plus the
+         * element buffer are captured in a vertex array object so drawing only
+         * needs glBindVertexArray. Requires ARB_vertex_array_object (and
+         * ARB_vertex_type_2_10_10_10_rev when packed).
+         *
+         * @param packed
+         *            if true normals are stored as signed 2_10_10_10 and
+         *            colours as unsigned bytes (20 bytes a vertex instead of
+         *            36)
+         */
+        public void uploadInterleaved(int vertexAttribute, int normalAttribute, int colourAttribute, boolean packed) {
+
+            int stride = packed ? 20 : 36;
+            ByteBuffer data = staging(vertexCount * stride);
+
+            for (int i = 0; i < vertexCount; i++) {
+                int v = i * 3;
+                data.putFloat(vertices.get(v)).putFloat(vertices.get(v + 1)).putFloat(vertices.get(v + 2));
+                if (packed) {
+                    data.putInt(packNormal(normals.get(v), normals.get(v + 1), normals.get(v + 2)));
+                    data.put(unsignedByte(colours.get(v))).put(unsignedByte(colours.get(v + 1)))
+                            .put(unsignedByte(colours.get(v + 2))).put((byte) 255);
+                } else {
+                    data.putFloat(normals.get(v)).putFloat(normals.get(v + 1)).putFloat(normals.get(v + 2));
+                    data.putFloat(colours.get(v)).putFloat(colours.get(v + 1)).putFloat(colours.get(v + 2));
+                }
+            }
+            data.flip();
+
+            vertexArrayObject = glGenVertexArrays();
+            glBindVertexArray(vertexArrayObject);
+
+            vertexArrayBuffer = glGenBuffersARB();
+            glBindBufferARB(GL_ARRAY_BUFFER_ARB, vertexArrayBuffer);
+            glBufferDataARB(GL_ARRAY_BUFFER_ARB, data, GL_STATIC_DRAW_ARB);
+
+            glEnableVertexAttribArrayARB(vertexAttribute);
+            glVertexAttribPointerARB(vertexAttribute, 3, GL_FLOAT, false, stride, 0);
+
+            if (normalAttribute != -1) {
+                glEnableVertexAttribArrayARB(normalAttribute);
+                if (packed)
+                    glVertexAttribPointerARB(normalAttribute, 4, GL_INT_2_10_10_10_REV, true, stride, 12);
+                else
+                    glVertexAttribPointerARB(normalAttribute, 3, GL_FLOAT, false, stride, 12);
+            }
+
+            if (colourAttribute != -1) {
+                glEnableVertexAttribArrayARB(colourAttribute);
+                if (packed)
+                    glVertexAttribPointerARB(colourAttribute, 4, GL_UNSIGNED_BYTE, true, stride, 16);
+                else
+                    glVertexAttribPointerARB(colourAttribute, 3, GL_FLOAT, false, stride, 24);
+            }
+
+            elementArrayBuffer = glGenBuffersARB();
+            glBindBufferARB(GL_ELEMENT_ARRAY_BUFFER_ARB, elementArrayBuffer);
+            glBufferDataARB(GL_ELEMENT_ARRAY_BUFFER_ARB, elements, GL_STATIC_DRAW_ARB);
+
+            glBindVertexArray(0);
+        }
+
+        /**
+         * Alternative to {@link #uploadInterleaved}: vertices are packed into
+         * 16 bytes as described in {@link VertexCompression}, and elements
+         * are 16 bit when there are few enough vertices. The shader must be
+         * compiled with {@link VertexCompression#DEFINE} and be given
+         * {@link #positionOffset} and {@link #positionScale}.
+         */
+        public void uploadCompressed(int vertexAttribute, int normalAttribute, int colourAttribute) {
+
+            int stride = VertexCompression.STRIDE;
+            ByteBuffer data = staging(vertexCount * stride);
+            VertexCompression.pack(this, data, positionOffset, positionScale);
+            positionScale.div(65535f);
+            data.flip();
+
+            vertexArrayObject = glGenVertexArrays();
+            glBindVertexArray(vertexArrayObject);
+
+            vertexArrayBuffer = glGenBuffersARB();
+            glBindBufferARB(GL_ARRAY_BUFFER_ARB, vertexArrayBuffer);
+            glBufferDataARB(GL_ARRAY_BUFFER_ARB, data, GL_STATIC_DRAW_ARB);
+
+            glEnableVertexAttribArrayARB(vertexAttribute);
+            glVertexAttribPointerARB(vertexAttribute, 3, GL_UNSIGNED_SHORT, false, stride, 0);
+
+            if (normalAttribute != -1) {
+                glEnableVertexAttribArrayARB(normalAttribute);
+                glVertexAttribPointerARB(normalAttribute, 2, GL_SHORT, true, stride, 8);
+            }
+
+            if (colourAttribute != -1) {
+                glEnableVertexAttribArrayARB(colourAttribute);
+                glVertexAttribPointerARB(colourAttribute, 4, GL_UNSIGNED_BYTE, true, stride, 12);
+            }
+
+            elementArrayBuffer = glGenBuffersARB();
+            glBindBufferARB(GL_ELEMENT_ARRAY_BUFFER_ARB, elementArrayBuffer);
+            if (VertexCompression.shortIndices(this)) {
+                data = staging(elementCount * 2);
+                for (int i = 0; i < elementCount; i++)
+                    data.putShort((short) elements.get(i));
+                data.flip();
+                glBufferDataARB(GL_ELEMENT_ARRAY_BUFFER_ARB, data, GL_STATIC_DRAW_ARB);
+                elementType = GL_UNSIGNED_SHORT;
+            } else {
+                glBufferDataARB(GL_ELEMENT_ARRAY_BUFFER_ARB, elements, GL_STATIC_DRAW_ARB);
+            }
+
+            glBindVertexArray(0);
+            compressed = true;
+        }
+
+        /* interleaving space shared by all meshes, GL thread only */
+        private static ByteBuffer staging;
+
+        static ByteBuffer staging(int size) {
+            if (staging == null || staging.capacity() < size)
+                staging = BufferUtils.createByteBuffer(Math.max(size, staging == null ? 0 : staging.capacity() * 2));
+            staging.clear();
+            staging.limit(size);
+            return staging;
+        }
+
+        /**
+         * Normalises and packs a normal as GL_INT_2_10_10_10_REV (w = 0).
+         */
+        static int packNormal(float x, float y, float z) {
+            float length = (float) Math.sqrt(x * x + y * y + z * z);
+            if (length > 0) {
+                x /= length;
+                y /= length;
+                z /= length;
+            }
+            return signed10(x) | signed10(y) << 10 | signed10(z) << 20;
+        }
+
+        private static int signed10(float f) {
+            return Math.round(Math.max(-1f, Math.min(1f, f)) * 511f) & 0x3FF;
+        }
+
+        private static byte unsignedByte(float f) {
+            return (byte) Math.round(Math.max(0f, Math.min(1f, f)) * 255f);
         }
     }
 
     public static class Material {
 
-        public AIMaterial mMaterial;
         public AIColor4D mAmbientColor;
         public AIColor4D mDiffuseColor;
         public AIColor4D mSpecularColor;
 
+        /**
+         * Copies the colours out of material, which is not kept: it belongs
+         * to the scene, freed once the model is built.
+         */
         public Material(AIMaterial material) {
 
-            mMaterial = material;
-
             mAmbientColor = AIColor4D.create();
-            if (aiGetMaterialColor(mMaterial, AI_MATKEY_COLOR_AMBIENT,
+            if (aiGetMaterialColor(material, AI_MATKEY_COLOR_AMBIENT,
                     aiTextureType_NONE, 0, mAmbientColor) != 0) {
                 throw new IllegalStateException(aiGetErrorString());
             }
             mDiffuseColor = AIColor4D.create();
-            if (aiGetMaterialColor(mMaterial, AI_MATKEY_COLOR_DIFFUSE,
+            if (aiGetMaterialColor(material, AI_MATKEY_COLOR_DIFFUSE,
                     aiTextureType_NONE, 0, mDiffuseColor) != 0) {
                 throw new IllegalStateException(aiGetErrorString());
             }
             mSpecularColor = AIColor4D.create();
-            if (aiGetMaterialColor(mMaterial, AI_MATKEY_COLOR_SPECULAR,
+            if (aiGetMaterialColor(material, AI_MATKEY_COLOR_SPECULAR,
                     aiTextureType_NONE, 0, mSpecularColor) != 0) {
                 throw new IllegalStateException(aiGetErrorString());
             }
         }
+
+        public Material(AIColor4D ambient, AIColor4D diffuse, AIColor4D specular) {
+            mAmbientColor = ambient;
+            mDiffuseColor = diffuse;
+            mSpecularColor = specular;
+        }
     }
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 package org.twak.gouraud;
 
+import org.joml.FrustumIntersection;
 import org.joml.Matrix3f;
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
@@ -15,17 +16,28 @@ import org.lwjgl.system.Callback;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.lwjgl.assimp.Assimp.*;
 import static org.twak.gouraud.DemoUtils.*;
 import static org.lwjgl.glfw.GLFW.*;
+import static org.lwjgl.opengl.ARBDrawInstanced.glDrawElementsInstancedARB;
 import static org.lwjgl.opengl.ARBFragmentShader.*;
 import static org.lwjgl.opengl.ARBShaderObjects.*;
+import static org.lwjgl.opengl.ARBVertexArrayObject.*;
 import static org.lwjgl.opengl.ARBVertexBufferObject.*;
 import static org.lwjgl.opengl.ARBVertexShader.*;
 import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.stb.STBImageWrite.stbi_write_png;
 import static org.lwjgl.system.MemoryUtil.*;
 
 /**
@@ -43,37 +55,50 @@ public class ObjLoader {
 	int fbHeight = 768;
 	float fov = 60;
 	float rotation;
+	/* the earliest input event not yet in a prepared frame; the callbacks and prepare() run on one thread */
+	private long inputNanos;
+
+	/* poll input and prepare frames on the main thread while another thread renders them; not headless */
+	boolean decoupled = true;
+	/* frames prepared a second while there is no input, which wakes the main thread at once */
+	int updateRate = 240;
+	TripleBuffer<FrameState> frames = new TripleBuffer<>(new FrameState(), new FrameState(), new FrameState());
+	/* the single loops prepare and render this one in turn */
+	private FrameState current = new FrameState();
+	/* the framebuffer size of the frame being rendered */
+	int viewportWidth, viewportHeight;
 
 	int program;
 	int vertexAttribute;
 	int normalAttribute;
 	int colourAttribute;
 	int modelMatrixUniform;
-	int viewMatrixUniform;
-	int projectionMatrixUniform;
 	int normalMatrixUniform;
-	int lightPositionUniform;
-	int viewPositionUniform;
+	int positionOffsetUniform;
+	int positionScaleUniform;
+	int instanceModelAttribute = -1;
+	int instanceNormalAttribute = -1;
 	int ambientColorUniform;
 	int diffuseColorUniform;
 	int specularColorUniform;
 
 	Model model;
+	MeshBvh bvh;
 
 	Matrix4f modelMatrix = new Matrix4f().rotateY(0.5f * (float) Math.PI).scale(1.5f, 1.5f, 1.5f);
 	Matrix4f projectionMatrix = new Matrix4f();
 	Matrix4f viewMatrix = new Matrix4f();
 	Matrix4f projectMatrix = new Matrix4f();
+	Matrix4f viewProjectionMatrix = new Matrix4f();
 	Vector3f viewPosition = new Vector3f();
 	Vector3f lightPosition = new Vector3f(10f, 5f, 10f);
 
-	private FloatBuffer modelMatrixBuffer = BufferUtils.createFloatBuffer(4 * 4);
-	private FloatBuffer viewMatrixBuffer = BufferUtils.createFloatBuffer(4 * 4);
-	private FloatBuffer projectionMatrixBuffer = BufferUtils.createFloatBuffer(4 * 4);
 	private Matrix3f normalMatrix = new Matrix3f();
-	private FloatBuffer normalMatrixBuffer = BufferUtils.createFloatBuffer(3 * 3);
-	private FloatBuffer lightPositionBuffer = BufferUtils.createFloatBuffer(3);
-	private FloatBuffer viewPositionBuffer = BufferUtils.createFloatBuffer(3);
+	/* derived from modelMatrix in update(), only when it changes */
+	private Matrix4f lastModelMatrix;
+	private float modelScale;
+
+	UniformState uniforms;
 
 	GLCapabilities caps;
 	GLFWKeyCallback keyCallback;
@@ -83,14 +108,200 @@ public class ObjLoader {
 	GLFWScrollCallback sCallback;
 	Callback debugProc;
 
-	String shader;
+	volatile String shader;
+
+	/* upload each mesh as one interleaved buffer captured in a vertex array object */
+	boolean interleaved;
+	boolean packedVertices;
+
+	/* upload 16 byte vertices and 16 bit indices where possible, see VertexCompression; not with batched */
+	boolean compressedVertices;
+
+	/* meshes are simplified into this many levels of detail on first load and
+	 * read back from the mesh cache after; asset store entries keep their own */
+	int lodLevels = 4;
+	/* pixels of a mesh's projected bounding disc per triangle that a coarser
+	 * level must still have to be drawn; about half of them face away */
+	static final float LOD_TRIANGLE_PIXELS = 1;
+	private Vector3f lodCentre = new Vector3f();
+
+	FrustumIntersection frustum = new FrustumIntersection();
+	/* in world space, for instances, which carry their own model matrices */
+	FrustumIntersection worldFrustum = new FrustumIntersection();
+	List<Model.Mesh> visibleMeshes = new ArrayList<>();
+	/* meshes drawn and skipped by frustum culling in the last frame */
+	int drawnMeshes;
+	int culledMeshes;
+
+	/* submit all visible meshes with one multi-draw-indirect call, needs a gouraud_mdi style shader */
+	boolean batched;
+	DrawBatch batch;
+	BatchRenderer batchRenderer;
+
+	/* draw every placement of a mesh with one instanced call, see InstanceBuffer; not with batched */
+	boolean instanced;
+	List<InstanceBuffer> instances = new ArrayList<>();
+	/* placeInstances() lays the model out on a grid this many copies a side, and update() turns a few of each */
+	int instanceGrid = 10;
+	int movingInstances = 4;
+	private float[] sphere = new float[4];
+
+	/* split the model into chunks on disk and keep the nearest visible ones on the GPU within gpuBudget; separate buffers only */
+	boolean chunked;
+	int chunkTriangles = 1 << 16;
+	long gpuBudget = 512L << 20;
+	ChunkResidency residency;
+	private Matrix4f inverseModelMatrix = new Matrix4f();
+	private Vector3f chunkEye = new Vector3f();
+
+	/* skip meshes hidden behind the largest visible ones, tested on the CPU while the GPU works, see OcclusionCuller; not with instanced */
+	boolean occlusionCulling;
+	int occlusionWidth = 256, occlusionHeight = 128;
+	OcclusionCuller occlusion;
+	/* meshes in the frustum skipped as hidden in the last frame */
+	int occludedMeshes;
+	/* visibleMeshes is already culled for this frame */
+	private boolean culled;
+
+	/* point lights binned into view space clusters each frame, see LightClusters; needs a gouraud_clustered style shader, not with batched */
+	boolean clusteredLights;
+	List<LightClusters.Light> lights = new ArrayList<>();
+	/* scattered through the model by scatterLights() once it is loaded, after the last upload when streaming */
+	int randomLights;
+	LightClusters clusters;
+	ClusterBuffers clusterBuffers;
+
+	/* render without a window into an offscreen framebuffer, writing each frame as a png */
+	boolean headless;
+	int headlessFrames = 36;
+	String headlessOutput = "frame%04d.png";
+	HeadlessContext headlessContext;
+	FrameReader frameReader;
+
+	/* import on a background thread and stream meshes to the GPU a few megabytes a frame; separate buffers only */
+	boolean asyncLoading = true;
+	long uploadBytesPerFrame = 8 << 20;
+	StagedUploader uploader;
+
+	File modelFile = new File("C:\\Users\\twak\\Desktop\\sphere.obj");
+	/* if set, the model is assetName from this AssetStore rather than modelFile */
+	File assetStore;
+	String assetName;
+	AssetStore assets;
+
+	/* rebuild the program or re-import the model when their files change; F5 forces a shader reload */
+	boolean hotReload = true;
+	FileWatcher watcher;
+	ExecutorService reloader;
+	AtomicBoolean shaderChanged = new AtomicBoolean();
+	/* a re-imported model waiting to replace the current one between frames */
+	AtomicReference<Model> reloadedModel = new AtomicReference<>();
+
+	/* keep linked program binaries on disk, see ProgramCache */
+	boolean programCache = true;
+
+	/* record per-stage frame timings and draw counts, optionally streamed to Remotery */
+	boolean timing;
+	boolean remotery;
+	FrameStats stats = new FrameStats();
 
 	public ObjLoader(String shader) {
+		this(shader, false, false);
+	}
+
+	public ObjLoader(String shader, boolean interleaved, boolean packedVertices) {
+		this(shader, interleaved, packedVertices, false);
+	}
+
+	/**
+	 * @param interleaved
+	 *            use {@link Model.Mesh#uploadInterleaved} instead of separate
+	 *            position, normal and colour buffers
+	 * @param packedVertices
+	 *            with interleaved, store normals and colours packed
+	 * @param batched
+	 *            pack all meshes into shared buffers and draw them with a
+	 *            {@link BatchRenderer}; interleaved is then ignored
+	 */
+	public ObjLoader(String shader, boolean interleaved, boolean packedVertices, boolean batched) {
 		this.shader = shader;
+		this.interleaved = interleaved;
+		this.packedVertices = packedVertices;
+		this.batched = batched;
 	}
 
 	void init() throws IOException {
 
+		if (headless)
+			createHeadless();
+		else
+			createWindow();
+
+		caps = GL.createCapabilities();
+		if (!caps.GL_ARB_shader_objects) {
+			throw new AssertionError("This demo requires the ARB_shader_objects extension.");
+		}
+		if (!caps.GL_ARB_vertex_shader) {
+			throw new AssertionError("This demo requires the ARB_vertex_shader extension.");
+		}
+		if (!caps.GL_ARB_fragment_shader) {
+			throw new AssertionError("This demo requires the ARB_fragment_shader extension.");
+		}
+		debugProc = GLUtil.setupDebugMessageCallback();
+		if (timing)
+			stats.enable(caps, remotery);
+
+		if (headless) {
+			if (!caps.GL_ARB_framebuffer_object || !caps.GL_ARB_pixel_buffer_object || !caps.GL_ARB_sync) {
+				throw new AssertionError("Headless rendering requires the ARB_framebuffer_object, ARB_pixel_buffer_object and ARB_sync extensions.");
+			}
+			frameReader = new FrameReader(fbWidth, fbHeight, 3);
+		}
+
+		glClearColor(0f, 0f, 0f, 1f);
+		glEnable(GL_DEPTH_TEST);
+
+		/* Create all needed GL resources */
+		boolean async = asyncLoading && !headless && !interleaved && !batched && !compressedVertices && !instanced && !chunked;
+		if (chunked)
+			loadChunks();
+		else if (async)
+			loadModelAsync();
+		else
+			loadModel();
+		if (occlusionCulling) {
+			if (instanced)
+				throw new AssertionError("Occlusion culling tests whole meshes, not instances.");
+			occlusion = new OcclusionCuller(occlusionWidth, occlusionHeight);
+		}
+		if (clusteredLights) {
+			if (batched)
+				throw new AssertionError("Clustered lights need a gouraud_clustered style shader, not gouraud_mdi.");
+			if (!ClusterBuffers.supported(caps))
+				throw new AssertionError("Clustered lights require the ARB_shader_storage_buffer_object extension.");
+			clusters = new LightClusters();
+			clusterBuffers = new ClusterBuffers();
+			/* a streaming load has no meshes yet, render() scatters them once it is done */
+			if (!async)
+				scatterLights(randomLights);
+		}
+		uniforms = new UniformState();
+		createProgram();
+		if (!async)
+			uploadModel();
+
+		if (hotReload && !headless)
+			watch();
+	}
+
+	void createHeadless() {
+		headlessContext = new HeadlessContext();
+		fbWidth = width;
+		fbHeight = height;
+	}
+
+	void createWindow() {
+
 		if (!glfwInit()) {
 			throw new IllegalStateException("Unable to initialize GLFW");
 		}
@@ -128,20 +339,30 @@ public class ObjLoader {
 				if (action != GLFW_RELEASE) {
 					return;
 				}
+				input();
 				if (key == GLFW_KEY_ESCAPE) {
 					glfwSetWindowShouldClose(window, true);
 				}
+				if (key == GLFW_KEY_F5) {
+					shaderChanged.set(true);
+				}
+				if (!batched && key >= GLFW_KEY_1 && key <= GLFW_KEY_3) {
+					shader = new String[] { "blue", "gouraud", "gouraud_lit" }[key - GLFW_KEY_1];
+					shaderChanged.set(true);
+				}
 			}
 		});
 		glfwSetCursorPosCallback(window, cpCallback = new GLFWCursorPosCallback() {
 			@Override
 			public void invoke(long window, double x, double y) {
+				input();
 				rotation = ((float) x / width - 0.5f) * 2f * (float) Math.PI;
 			}
 		});
 		glfwSetScrollCallback(window, sCallback = new GLFWScrollCallback() {
 			@Override
 			public void invoke(long window, double xoffset, double yoffset) {
+				input();
 				if (yoffset < 0) {
 					fov *= 1.05f;
 				} else {
@@ -166,46 +387,392 @@ public class ObjLoader {
 		nglfwGetFramebufferSize(window, memAddress(framebufferSize), memAddress(framebufferSize) + 4);
 		fbWidth = framebufferSize.get(0);
 		fbHeight = framebufferSize.get(1);
+	}
 
-		caps = GL.createCapabilities();
-		if (!caps.GL_ARB_shader_objects) {
-			throw new AssertionError("This demo requires the ARB_shader_objects extension.");
+	void input() {
+		if (inputNanos == 0)
+			inputNanos = System.nanoTime();
+	}
+
+	void loadModel() throws IOException {
+		model = readModel();
+		bvh = new MeshBvh(model.meshes);
+	}
+
+	/**
+	 * Starts with an empty scene; {@link #residency} pages chunks of the
+	 * model in as the camera needs them.
+	 */
+	void loadChunks() throws IOException {
+		if (batched || interleaved || compressedVertices || instanced) {
+			throw new AssertionError("Chunked models are drawn from separate buffers, not batched, interleaved, compressed or instanced.");
 		}
-		if (!caps.GL_ARB_vertex_shader) {
-			throw new AssertionError("This demo requires the ARB_vertex_shader extension.");
+		MeshChunks chunks = MeshChunks.load(modelFile, chunkTriangles);
+		System.out.println(chunks.chunks.length + " chunks, drawn within " + (gpuBudget >> 20) + "MB");
+		residency = new ChunkResidency(chunks, gpuBudget, uploadBytesPerFrame);
+		model = new Model(new ArrayList<Model.Mesh>(), new ArrayList<Model.Material>());
+		bvh = new MeshBvh(model.meshes);
+	}
+
+	/**
+	 * Imports the model and builds its levels of detail, without touching
+	 * GL.
+	 */
+	Model readModel() throws IOException {
+		return readModel(null);
+	}
+
+	/**
+	 * @param listener
+	 *            told of each mesh as soon as it is ready, or null
+	 */
+	Model readModel(Model.Listener listener) throws IOException {
+		Model model;
+		if (assetStore != null) {
+			synchronized (this) {
+				if (assets == null)
+					assets = new AssetStore(assetStore, true);
+			}
+			/* entries hold the levels of detail they were imported with */
+			model = assets.load(assetName, false);
+			if (model == null)
+				throw new IOException("no asset " + assetName + " in " + assetStore);
+			if (listener != null)
+				for (Model.Mesh mesh : model.meshes)
+					listener.prepared(model, mesh);
+		} else
+			model = MeshCache.load(modelFile, lodLevels, false, listener);
+		return model;
+	}
+
+	/**
+	 * Starts with an empty scene; the model is read on a background thread,
+	 * which hands each mesh to the {@link StagedUploader} as soon as its
+	 * levels of detail are built, and the meshes appear as their uploads
+	 * complete.
+	 */
+	void loadModelAsync() {
+		model = new Model(new ArrayList<Model.Mesh>(), new ArrayList<Model.Material>());
+		bvh = new MeshBvh(model.meshes);
+		/* render() clears the field once the load is done */
+		final StagedUploader uploader = this.uploader = new StagedUploader(uploadBytesPerFrame);
+		uploader.open();
+
+		Thread loader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					long start = System.nanoTime();
+					readModel(new Model.Listener() {
+						@Override
+						public void prepared(Model model, Model.Mesh mesh) {
+							uploader.submit(model, mesh);
+						}
+					});
+					System.out.println("model read in " + (System.nanoTime() - start) / 1000000 + "ms");
+				} catch (Throwable t) {
+					t.printStackTrace();
+				} finally {
+					uploader.close();
+				}
+			}
+		}, "model loader");
+		loader.setDaemon(true);
+		loader.start();
+	}
+
+	void uploadModel() {
+		if (batched) {
+			if (!BatchRenderer.supported(caps)) {
+				throw new AssertionError("Batched drawing requires the ARB_multi_draw_indirect, ARB_shader_storage_buffer_object and ARB_shader_draw_parameters extensions.");
+			}
+			batch = new DrawBatch(model.meshes);
+			batchRenderer = new BatchRenderer(batch, vertexAttribute, normalAttribute, colourAttribute);
+			return;
 		}
-		if (!caps.GL_ARB_fragment_shader) {
-			throw new AssertionError("This demo requires the ARB_fragment_shader extension.");
+
+		if (interleaved || compressedVertices) {
+			if (!caps.GL_ARB_vertex_array_object) {
+				throw new AssertionError("Interleaved and compressed meshes require the ARB_vertex_array_object extension.");
+			}
+			if (packedVertices && !caps.GL_ARB_vertex_type_2_10_10_10_rev) {
+				throw new AssertionError("Packed vertices require the ARB_vertex_type_2_10_10_10_rev extension.");
+			}
 		}
-		debugProc = GLUtil.setupDebugMessageCallback();
 
-		glClearColor(0f, 0f, 0f, 1f);
-		glEnable(GL_DEPTH_TEST);
+		for (Model.Mesh mesh : model.meshes)
+			for (Model.Mesh level : mesh.lods)
+				if (compressedVertices)
+					level.uploadCompressed(vertexAttribute, normalAttribute, colourAttribute);
+				else if (interleaved)
+					level.uploadInterleaved(vertexAttribute, normalAttribute, colourAttribute, packedVertices);
+				else
+					level.upload();
 
-		/* Create all needed GL resources */
-		loadModel();
-		createProgram();
+		if (compressedVertices)
+			System.out.println(VertexCompression.report(model));
+
+		if (instanced) {
+			if (!InstanceBuffer.supported(caps)) {
+				throw new AssertionError("Instanced drawing requires the ARB_instanced_arrays and ARB_draw_instanced extensions.");
+			}
+			if (instances.isEmpty())
+				placeInstances();
+		}
+	}
+
+	/**
+	 * Adds a point light in world space, lighting vertices within radius
+	 * of it when clusteredLights is set.
+	 */
+	LightClusters.Light addLight(Vector3f position, Vector3f colour, float radius) {
+		LightClusters.Light light = new LightClusters.Light(position, colour, radius);
+		lights.add(light);
+		return light;
+	}
+
+	void removeLight(LightClusters.Light light) {
+		lights.remove(light);
 	}
 
-	void loadModel() {
-		String fileName = "C:\\Users\\twak\\Desktop\\sphere.obj";
-		File file = new File(fileName);
-		AIScene scene = aiImportFile(file.getAbsolutePath(), aiProcess_JoinIdenticalVertices | aiProcess_Triangulate);
-		
-		if (scene == null)
-			throw new IllegalStateException(aiGetErrorString());
+	/**
+	 * Adds count lights of random colours inside the bounding box of the
+	 * model, or of its chunks, each reaching an eighth of the box's
+	 * diagonal. The model must be loaded.
+	 */
+	void scatterLights(int count) {
+		Vector3f min = new Vector3f(Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
+		Vector3f max = new Vector3f(-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE);
+		if (chunked)
+			for (MeshChunks.Chunk chunk : residency.chunks.chunks) {
+				min.min(chunk.min);
+				max.max(chunk.max);
+			}
+		else
+			for (Model.Mesh mesh : model.meshes) {
+				min.min(mesh.min);
+				max.max(mesh.max);
+			}
+		if (min.x > max.x) {
+			min.set(-1, -1, -1);
+			max.set(1, 1, 1);
+		}
+		float radius = min.distance(max) * 0.125f * InstanceBuffer.scale(modelMatrix);
 
-		model = new Model(scene);
+		Random random = new Random(count);
+		Vector3f position = new Vector3f(), colour = new Vector3f();
+		for (int i = 0; i < count; i++) {
+			position.set(min.x + random.nextFloat() * (max.x - min.x), min.y + random.nextFloat() * (max.y - min.y),
+					min.z + random.nextFloat() * (max.z - min.z));
+			modelMatrix.transformPosition(position);
+			colour.set(random.nextFloat(), random.nextFloat(), random.nextFloat());
+			addLight(position, colour, radius);
+		}
+	}
+
+	/**
+	 * Places instanceGrid x instanceGrid copies of the model, spaced by its
+	 * size, on the ground plane around the origin.
+	 */
+	void placeInstances() {
+		float extent = 0;
+		for (Model.Mesh mesh : model.meshes)
+			extent = Math.max(extent, mesh.centre.length() + mesh.radius);
+		float spacing = 2 * extent * InstanceBuffer.scale(modelMatrix);
+
+		for (Model.Mesh mesh : model.meshes) {
+			InstanceBuffer placements = new InstanceBuffer(mesh, instanceGrid * instanceGrid);
+			for (int x = 0; x < instanceGrid; x++)
+				for (int z = 0; z < instanceGrid; z++)
+					placements.add(new Matrix4f()
+							.translation((x - (instanceGrid - 1) / 2f) * spacing, 0, (z - (instanceGrid - 1) / 2f) * spacing)
+							.mul(modelMatrix));
+			instances.add(placements);
+		}
+	}
+
+	void freeInstances() {
+		for (InstanceBuffer placements : instances)
+			placements.free();
+		instances.clear();
+	}
+
+	/**
+	 * Watches the shader and model directories. Shaders are rebuilt on the
+	 * GL thread at the start of the next frame; models are re-imported one at
+	 * a time on the reloader thread and swapped in once ready. modelFile is
+	 * only watched when it is what was loaded, not with an asset store or
+	 * chunks, and a directory that cannot be watched is reported and skipped.
+	 */
+	void watch() throws IOException {
+		reloader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "model reloader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		watcher = new FileWatcher(new FileWatcher.Listener() {
+			@Override
+			public void changed(File file) {
+				if (FileWatcher.same(file, new File(shader + ".vs")) || FileWatcher.same(file, new File(shader + ".fs")))
+					shaderChanged.set(true);
+				else if (watchModel() && FileWatcher.same(file, modelFile))
+					reloader.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								long start = System.nanoTime();
+								Model replaced = reloadedModel.getAndSet(readModel());
+								if (replaced != null)
+									replaced.free();
+								System.out.println("re-imported " + modelFile.getName() + " in " + (System.nanoTime() - start) / 1000000 + "ms");
+							} catch (Throwable t) {
+								System.err.println("Keeping previous model, could not import " + modelFile + ": " + t.getMessage());
+							}
+						}
+					});
+			}
+		});
+		watch(new File("."));
+		if (watchModel())
+			watch(modelFile);
+		watcher.start();
+	}
+
+	boolean watchModel() {
+		return assetStore == null && !chunked;
+	}
+
+	private void watch(File file) {
+		try {
+			watcher.watch(file);
+		} catch (IOException e) {
+			System.err.println("Not watching " + file + " for changes: " + e);
+		}
+	}
+
+	/**
+	 * Applies any pending reloads. Called between frames on the GL thread.
+	 */
+	void reload() {
+		if (shaderChanged.getAndSet(false))
+			reloadProgram();
+
+		/* let a streaming initial load finish first, it adds to the current model */
+		Model replacement;
+		if ((uploader == null || uploader.idle()) && (replacement = reloadedModel.getAndSet(null)) != null)
+			swapModel(replacement);
+	}
+
+	/**
+	 * Rebuilds the program from the current shader sources, keeping the last
+	 * one that worked if they do not compile or link.
+	 */
+	void reloadProgram() {
+		int replacement;
+		try {
+			replacement = linkProgram();
+		} catch (IOException | AssertionError e) {
+			System.err.println("Keeping previous program, " + shader + ": " + e.getMessage());
+			return;
+		}
+
+		int oldVertex = vertexAttribute, oldNormal = normalAttribute, oldColour = colourAttribute;
+		int oldInstanceModel = instanceModelAttribute, oldInstanceNormal = instanceNormalAttribute;
+		for (int attribute : new int[] { oldVertex, oldNormal, oldColour })
+			if (attribute != -1)
+				glDisableVertexAttribArrayARB(attribute);
+		if (instanced)
+			InstanceBuffer.unbind(oldInstanceModel, oldInstanceNormal);
+
+		uniforms.forget(program);
+		glDeleteObjectARB(program);
+		program = replacement;
+		uniforms.use(program);
+		findLocations();
+
+		/* vertex array objects capture attribute locations */
+		if ((batched || interleaved || compressedVertices)
+				&& (vertexAttribute != oldVertex || normalAttribute != oldNormal || colourAttribute != oldColour
+						|| instanceModelAttribute != oldInstanceModel || instanceNormalAttribute != oldInstanceNormal)) {
+			if (batched) {
+				batchRenderer.free();
+				batchRenderer = new BatchRenderer(batch, vertexAttribute, normalAttribute, colourAttribute);
+			} else {
+				model.deleteBuffers();
+				uploadModel();
+			}
+		}
+		System.out.println("reloaded " + shader);
+	}
+
+	/**
+	 * Uploads replacement and, once it is complete, releases the current
+	 * model, so no frame draws a partial scene.
+	 */
+	void swapModel(Model replacement) {
+		/* the culler may still be reading the old meshes, and they are no longer the ones to draw */
+		if (occlusion != null)
+			occlusion.join(visibleMeshes);
+		culled = false;
+
+		Model old = model;
+		if (batchRenderer != null)
+			batchRenderer.free();
+		freeInstances();
+		model = replacement;
+		uploadModel();
+		bvh = new MeshBvh(model.meshes);
+		old.free();
+	}
+
+	static ByteBuffer shaderSource(String resource) throws IOException {
+		return ioResourceToByteBuffer(new File(".", resource).getAbsolutePath(), 1024);
 	}
 
 	static int createShader(String resource, int type) throws IOException {
+		return createShader(resource, shaderSource(resource), type);
+	}
+
+	static int createShader(String resource, ByteBuffer source, int type) {
+		return createShader(resource, source, type, null);
+	}
+
+	/**
+	 * @param defines
+	 *            inserted after the source's #version line, or null
+	 */
+	static int createShader(String resource, ByteBuffer source, int type, String defines) {
 		int shader = glCreateShaderObjectARB(type);
-		ByteBuffer source = ioResourceToByteBuffer(new File(".", resource).getAbsolutePath(), 1024);
-		PointerBuffer strings = BufferUtils.createPointerBuffer(1);
-		IntBuffer lengths = BufferUtils.createIntBuffer(1);
-		strings.put(0, source);
-		lengths.put(0, source.remaining());
-		glShaderSourceARB(shader, strings, lengths);
+		if (defines == null) {
+			PointerBuffer strings = BufferUtils.createPointerBuffer(1);
+			IntBuffer lengths = BufferUtils.createIntBuffer(1);
+			strings.put(0, source);
+			lengths.put(0, source.remaining());
+			glShaderSourceARB(shader, strings, lengths);
+		} else {
+			int split = source.position();
+			while (split < source.limit() && source.get(split++) != '\n')
+				;
+			ByteBuffer version = source.duplicate(), rest = source.duplicate();
+			version.limit(split);
+			rest.position(split);
+			byte[] text = defines.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer inserted = BufferUtils.createByteBuffer(text.length);
+			inserted.put(text).flip();
+
+			PointerBuffer strings = BufferUtils.createPointerBuffer(3);
+			IntBuffer lengths = BufferUtils.createIntBuffer(3);
+			int i = 0;
+			for (ByteBuffer part : new ByteBuffer[] { version, inserted, rest }) {
+				strings.put(i, part);
+				lengths.put(i++, part.remaining());
+			}
+			glShaderSourceARB(shader, strings, lengths);
+		}
 		glCompileShaderARB(shader);
 		int compiled = glGetObjectParameteriARB(shader, GL_OBJECT_COMPILE_STATUS_ARB);
 		String shaderLog = glGetInfoLogARB(shader);
@@ -213,18 +780,77 @@ public class ObjLoader {
 			System.err.println(shaderLog);
 		}
 		if (compiled == 0) {
-			throw new AssertionError("Could not compile shader");
+			glDeleteObjectARB(shader);
+			throw new AssertionError("Could not compile " + resource);
 		}
 		return shader;
 	}
 
 	void createProgram() throws IOException {
+		program = linkProgram();
+		uniforms.use(program);
+		findLocations();
+	}
+
+	/**
+	 * Compiles and links the current shader, or loads it from the
+	 * {@link ProgramCache}. Attributes are bound to the locations the current
+	 * program uses, if there is one, so that vertex arrays set up for it stay
+	 * valid.
+	 */
+	int linkProgram() throws IOException {
+		long start = System.nanoTime();
+		ByteBuffer vertexSource = shaderSource(shader + ".vs");
+		ByteBuffer fragmentSource = shaderSource(shader + ".fs");
 
-		program = glCreateProgramObjectARB();
-		int vertexShader = createShader(shader + ".vs", GL_VERTEX_SHADER_ARB);
-		int fragmentShader = createShader(shader + ".fs", GL_FRAGMENT_SHADER_ARB);
+		String defines = defines();
+
+		boolean cached = programCache && ProgramCache.supported(caps);
+		long key = 0;
+		if (cached) {
+			String bindings = this.program == 0 ? ""
+					: "aVertex=" + vertexAttribute + ",aNormal=" + normalAttribute + ",aColour=" + colourAttribute
+							+ ",aModelMatrix=" + instanceModelAttribute + ",aNormalMatrix=" + instanceNormalAttribute;
+			key = ProgramCache.key(defines, bindings, vertexSource, fragmentSource);
+			int program = ProgramCache.load(key);
+			if (program != 0) {
+				System.out.println(String.format("program cache hit for %s in %.1fms", shader, (System.nanoTime() - start) / 1e6));
+				return program;
+			}
+		}
+
+		int vertexShader = createShader(shader + ".vs", vertexSource, GL_VERTEX_SHADER_ARB, defines);
+		int fragmentShader;
+		try {
+			fragmentShader = createShader(shader + ".fs", fragmentSource, GL_FRAGMENT_SHADER_ARB);
+		} catch (AssertionError e) {
+			glDeleteObjectARB(vertexShader);
+			throw e;
+		}
+
+		int program = glCreateProgramObjectARB();
 		glAttachObjectARB(program, vertexShader);
 		glAttachObjectARB(program, fragmentShader);
+		/* only flagged, they go with the program */
+		glDeleteObjectARB(vertexShader);
+		glDeleteObjectARB(fragmentShader);
+
+		if (this.program != 0) {
+			if (vertexAttribute != -1)
+				glBindAttribLocationARB(program, vertexAttribute, "aVertex");
+			if (normalAttribute != -1)
+				glBindAttribLocationARB(program, normalAttribute, "aNormal");
+			if (colourAttribute != -1)
+				glBindAttribLocationARB(program, colourAttribute, "aColour");
+			if (instanceModelAttribute != -1)
+				glBindAttribLocationARB(program, instanceModelAttribute, "aModelMatrix");
+			if (instanceNormalAttribute != -1)
+				glBindAttribLocationARB(program, instanceNormalAttribute, "aNormalMatrix");
+		}
+
+		if (cached)
+			ProgramCache.retrievable(program);
+
 		glLinkProgramARB(program);
 		int linkStatus = glGetObjectParameteriARB(program, GL_OBJECT_LINK_STATUS_ARB);
 		String programLog = glGetInfoLogARB(program);
@@ -232,11 +858,33 @@ public class ObjLoader {
 			System.err.println(programLog);
 		}
 		if (linkStatus == 0) {
-			throw new AssertionError("Could not link program");
+			glDeleteObjectARB(program);
+			throw new AssertionError("Could not link " + shader);
+		}
+
+		if (cached) {
+			try {
+				ProgramCache.save(program, key);
+			} catch (IOException e) {
+				System.err.println("Could not write program cache for " + shader + ": " + e.getMessage());
+			}
+			System.out.println(String.format("program cache miss for %s, built in %.1fms", shader, (System.nanoTime() - start) / 1e6));
 		}
+		return program;
+	}
 
-		glUseProgramObjectARB(program);
+	/**
+	 * @return the #defines selecting the vertex format and matrix source the
+	 *         shaders should expect, or null
+	 */
+	String defines() {
+		if (batched)
+			return null;
+		String defines = (compressedVertices ? VertexCompression.DEFINE : "") + (instanced ? InstanceBuffer.DEFINE : "");
+		return defines.isEmpty() ? null : defines;
+	}
 
+	void findLocations() {
 		vertexAttribute = glGetAttribLocationARB(program, "aVertex");
 		glEnableVertexAttribArrayARB(vertexAttribute);
 
@@ -249,26 +897,172 @@ public class ObjLoader {
 			glEnableVertexAttribArrayARB(colourAttribute);
 
 		modelMatrixUniform = glGetUniformLocationARB(program, "uModelMatrix");
-
-		viewMatrixUniform = glGetUniformLocationARB(program, "uViewMatrix");
-		projectionMatrixUniform = glGetUniformLocationARB(program, "uProjectionMatrix");
 		normalMatrixUniform = glGetUniformLocationARB(program, "uNormalMatrix");
-		lightPositionUniform = glGetUniformLocationARB(program, "uLightPosition");
-		viewPositionUniform = glGetUniformLocationARB(program, "uViewPosition");
+		positionOffsetUniform = glGetUniformLocationARB(program, "uPositionOffset");
+		positionScaleUniform = glGetUniformLocationARB(program, "uPositionScale");
+		/* enabled by InstanceBuffer.bind */
+		instanceModelAttribute = glGetAttribLocationARB(program, "aModelMatrix");
+		instanceNormalAttribute = glGetAttribLocationARB(program, "aNormalMatrix");
+	}
+
+	/**
+	 * Fills a frame with the camera for the current controls and window
+	 * size. Runs on the thread that polls input, the only one to touch what
+	 * the callbacks write.
+	 */
+	void prepare(FrameState frame) {
+		frame.projectionMatrix.setPerspective((float) Math.toRadians(fov), (float) width / height, 0.01f, 100.0f);
+		frame.viewPosition.set(10f * (float) Math.cos(rotation), 2f, 10f * (float) Math.sin(rotation));
+		frame.viewMatrix.setLookAt(frame.viewPosition.x, frame.viewPosition.y, frame.viewPosition.z, 0f, 0f, 0f, 0f, 1f, 0f);
+		frame.fbWidth = fbWidth;
+		frame.fbHeight = fbHeight;
+		frame.inputNanos = inputNanos;
+		inputNanos = 0;
 	}
 
 	void update() {
-		projectionMatrix.setPerspective((float) Math.toRadians(fov), (float) width / height, 0.01f, 100.0f);
-		viewPosition.set(10f * (float) Math.cos(rotation), 2f, 10f * (float) Math.sin(rotation));
-		viewMatrix.setLookAt(viewPosition.x, viewPosition.y, viewPosition.z, 0f, 0f, 0f, 0f, 1f, 0f);
+		prepare(current);
+		update(current);
+	}
+
+	/**
+	 * Takes the camera from a prepared frame and derives the rest of the
+	 * frame's state from it. Runs on the render thread.
+	 */
+	void update(FrameState frame) {
+		projectionMatrix.set(frame.projectionMatrix);
+		viewMatrix.set(frame.viewMatrix);
+		viewPosition.set(frame.viewPosition);
+		viewportWidth = frame.fbWidth;
+		viewportHeight = frame.fbHeight;
+
+		if (lastModelMatrix == null || !lastModelMatrix.equals(modelMatrix)) {
+			normalMatrix.set(modelMatrix).invert().transpose();
+
+//			Matrix4f m = new Matrix4f(modelMatrix);
+//			m.mul(viewMatrix);
+//			normalMatrix.set(m).invert().transpose();
+
+			modelScale = InstanceBuffer.scale(modelMatrix);
+			lastModelMatrix = new Matrix4f(modelMatrix);
+		}
+
+		projectionMatrix.mul(viewMatrix, projectMatrix).mul(modelMatrix);
+		frustum.set(projectMatrix);
+
+		if (instanced) {
+			projectionMatrix.mul(viewMatrix, viewProjectionMatrix);
+			worldFrustum.set(viewProjectionMatrix);
+
+			/* only these are uploaded again, the rest of each buffer stays as it is */
+			for (InstanceBuffer placements : instances)
+				for (int i = 0; i < Math.min(movingInstances, placements.count); i++)
+					placements.set(i, placements.get(i).rotateY(0.02f));
+		}
+	}
+
+	/**
+	 * Picks the coarsest level of detail that still has a triangle for each
+	 * {@link #LOD_TRIANGLE_PIXELS} pixels of the bounding sphere's projected
+	 * disc, so no more triangles are drawn than the screen can show.
+	 */
+	int selectLod(Model.Mesh mesh) {
+		modelMatrix.transformPosition(mesh.centre, lodCentre);
+		return selectLod(mesh, lodCentre, mesh.radius * modelScale);
+	}
+
+	/**
+	 * As {@link #selectLod(Model.Mesh)}, for a bounding sphere already in
+	 * world space. Overwrites centre.
+	 */
+	int selectLod(Model.Mesh mesh, Vector3f centre, float radius) {
+		viewMatrix.transformPosition(centre);
+		float distance = -centre.z;
+
+		if (distance <= radius)
+			return 0;
+
+		float pixels = radius / distance * projectionMatrix.m11() * viewportHeight * 0.5f;
+		float triangles = (float) Math.PI * pixels * pixels / LOD_TRIANGLE_PIXELS;
+
+		int level = 0;
+		while (level + 1 < mesh.lods.length && mesh.lods[level + 1].elementCount / 3 >= triangles)
+			level++;
+		return level;
+	}
+
+	/**
+	 * Frustum culls into visibleMeshes and starts occlusion culling them on
+	 * other threads, so that runs while this thread uploads and the GPU
+	 * finishes the previous frame. render() collects the result.
+	 */
+	void cull() {
+		visibleMeshes.clear();
+		if (residency != null) {
+			modelMatrix.invert(inverseModelMatrix).transformPosition(viewPosition, chunkEye);
+			culledMeshes = residency.update(frustum, chunkEye, visibleMeshes);
+		} else
+			culledMeshes = bvh.cull(frustum, visibleMeshes);
+		if (occlusion != null)
+			occlusion.submit(visibleMeshes, projectMatrix);
+		culled = true;
 	}
 
 	void render() {
 		glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
 
-		glUseProgramObjectARB(program);
-		for (Model.Mesh mesh : model.meshes) {
+		if (!culled)
+			cull();
+		culled = false;
+		if (occlusion != null)
+			occludedMeshes = occlusion.join(visibleMeshes);
+		drawnMeshes = visibleMeshes.size();
+
+		uniforms.frame(viewMatrix, projectionMatrix, lightPosition, viewPosition);
+		if (clusters != null) {
+			clusters.bin(lights, viewMatrix, projectionMatrix);
+			clusterBuffers.upload(clusters);
+		}
+		uniforms.use(program);
+
+		if (batched) {
+			renderBatched();
+			return;
+		}
+
+		if (instanced) {
+			renderInstanced();
+			return;
+		}
+
+		for (Model.Mesh full : visibleMeshes) {
 
+			Model.Mesh mesh = full.lod(selectLod(full));
+			bindMesh(mesh);
+
+			uniforms.uniformMatrix4(modelMatrixUniform, modelMatrix);
+			uniforms.uniformMatrix3(normalMatrixUniform, normalMatrix);
+			if (mesh.compressed) {
+				uniforms.uniform3(positionOffsetUniform, mesh.positionOffset);
+				uniforms.uniform3(positionScaleUniform, mesh.positionScale);
+			}
+
+			glDrawElements(GL_TRIANGLES, mesh.elementCount, mesh.elementType, 0);
+			stats.draw(1, mesh.elementCount / 3);
+		}
+
+		if (interleaved || compressedVertices)
+			glBindVertexArray(0);
+	}
+
+	/**
+	 * Binds a mesh's vertex array object, or points the attributes at its
+	 * separate buffers.
+	 */
+	void bindMesh(Model.Mesh mesh) {
+		if (mesh.vertexArrayObject != 0) {
+			glBindVertexArray(mesh.vertexArrayObject);
+		} else {
 			glBindBufferARB(GL_ARRAY_BUFFER_ARB, mesh.vertexArrayBuffer);
 			glVertexAttribPointerARB(vertexAttribute, 3, GL_FLOAT, false, 0, 0);
 
@@ -282,52 +1076,260 @@ public class ObjLoader {
 				glVertexAttribPointerARB(colourAttribute, 3, GL_FLOAT, false, 0, 0);
 			}
 
-			glUniformMatrix4fvARB(modelMatrixUniform, false, modelMatrix.get(modelMatrixBuffer));
-			glUniformMatrix4fvARB(viewMatrixUniform, false, viewMatrix.get(viewMatrixBuffer));
-			glUniformMatrix4fvARB(projectionMatrixUniform, false, projectionMatrix.get(projectionMatrixBuffer));
+			glBindBufferARB(GL_ELEMENT_ARRAY_BUFFER_ARB, mesh.elementArrayBuffer);
+		}
+	}
 
-			normalMatrix.set(modelMatrix).invert().transpose();
+	/**
+	 * Draws each mesh once for all its placements. Placements are culled
+	 * individually, and the nearest visible one picks the level of detail
+	 * for them all; a mesh with none visible is skipped.
+	 */
+	void renderInstanced() {
+		drawnMeshes = culledMeshes = 0;
 
-//			Matrix4f m = new Matrix4f(modelMatrix);
-//			m.mul(viewMatrix);
-//			normalMatrix.set(m).invert().transpose();
-			
-			glUniformMatrix3fvARB(normalMatrixUniform, false, normalMatrix.get(normalMatrixBuffer));
+		for (InstanceBuffer placements : instances) {
+			int level = Integer.MAX_VALUE;
+			for (int i = 0; i < placements.count; i++) {
+				placements.sphere(i, sphere);
+				if (worldFrustum.testSphere(sphere[0], sphere[1], sphere[2], sphere[3])) {
+					lodCentre.set(sphere[0], sphere[1], sphere[2]);
+					level = Math.min(level, selectLod(placements.mesh, lodCentre, sphere[3]));
+				}
+			}
+			if (level == Integer.MAX_VALUE) {
+				culledMeshes += placements.count;
+				continue;
+			}
+			drawnMeshes += placements.count;
 
-			if (lightPositionUniform != GL_NO_ERROR)
-				glUniform3fvARB(lightPositionUniform, lightPosition.get(lightPositionBuffer));
+			Model.Mesh mesh = placements.mesh.lod(level);
+			bindMesh(mesh);
+			placements.update();
+			InstanceBuffer.bind(instanceModelAttribute, instanceNormalAttribute);
 
-			if (viewPositionUniform != GL_NO_ERROR)
-				glUniform3fvARB(viewPositionUniform, viewPosition.get(viewPositionBuffer));
-			
-			glBindBufferARB(GL_ELEMENT_ARRAY_BUFFER_ARB, mesh.elementArrayBuffer);
-			glDrawElements(GL_TRIANGLES, mesh.elementCount, GL_UNSIGNED_INT, 0);
+			if (mesh.compressed) {
+				uniforms.uniform3(positionOffsetUniform, mesh.positionOffset);
+				uniforms.uniform3(positionScaleUniform, mesh.positionScale);
+			}
+
+			glDrawElementsInstancedARB(GL_TRIANGLES, mesh.elementCount, mesh.elementType, 0, placements.count);
+			stats.draw(1, (long) mesh.elementCount / 3 * placements.count);
+		}
+
+		if (interleaved || compressedVertices)
+			glBindVertexArray(0);
+	}
+
+	void renderBatched() {
+		batch.clear();
+		long triangles = 0;
+		for (Model.Mesh full : visibleMeshes) {
+			Model.Material material = full.materialIndex < model.materials.size() ? model.materials.get(full.materialIndex) : null;
+			Model.Mesh mesh = full.lod(selectLod(full));
+			batch.add(mesh, modelMatrix, normalMatrix, material == null ? null : material.mDiffuseColor);
+			triangles += mesh.elementCount / 3;
 		}
+
+		batchRenderer.draw(batch);
+		stats.draw(1, triangles);
 	}
 
 	void loop() {
 		while (!glfwWindowShouldClose(window)) {
+			stats.beginFrame();
 			glfwPollEvents();
-			glViewport(0, 0, fbWidth, fbHeight);
+
+			stats.begin(FrameStats.UPDATE);
+			update();
+			cull();
+			stats.end(FrameStats.UPDATE);
+
+			submit(current.inputNanos);
+		}
+	}
+
+	/**
+	 * Polls input and prepares frames on this thread while another takes
+	 * the GL context and renders them, so frame N+1 is prepared while frame
+	 * N is submitted. GLFW only handles events on the main thread, so this
+	 * must be it.
+	 */
+	void loopDecoupled() throws InterruptedException {
+		prepare(frames.back());
+		frames.publish();
+
+		glfwMakeContextCurrent(NULL);
+		Thread renderer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				glfwMakeContextCurrent(window);
+				GL.setCapabilities(caps);
+				try {
+					renderLoop();
+				} catch (Throwable t) {
+					t.printStackTrace();
+					glfwSetWindowShouldClose(window, true);
+				} finally {
+					glfwMakeContextCurrent(NULL);
+				}
+			}
+		}, "render");
+		renderer.start();
+
+		boolean dropped = false;
+		while (!glfwWindowShouldClose(window)) {
+			glfwWaitEventsTimeout(1.0 / updateRate);
+			FrameState next = frames.back();
+			/* a frame the renderer skipped still owes its input a latency sample */
+			long skippedInput = dropped ? next.inputNanos : 0;
+			prepare(next);
+			if (skippedInput != 0 && (next.inputNanos == 0 || skippedInput < next.inputNanos))
+				next.inputNanos = skippedInput;
+			dropped = frames.publish();
+		}
+
+		renderer.join();
+		glfwMakeContextCurrent(window);
+		GL.setCapabilities(caps);
+	}
+
+	/**
+	 * Renders the latest prepared frame until the window closes, the same
+	 * one again if no newer one is ready.
+	 */
+	void renderLoop() {
+		FrameState frame = null;
+		while (!glfwWindowShouldClose(window)) {
+			stats.beginFrame();
+			FrameState next = frames.take();
+			if (next != null)
+				frame = next;
+
+			stats.begin(FrameStats.UPDATE);
+			update(frame);
+			cull();
+			stats.end(FrameStats.UPDATE);
+
+			/* drawn again, its input has been measured already */
+			submit(next != null ? frame.inputNanos : 0);
+		}
+	}
+
+	/**
+	 * Uploads, renders and swaps the frame that has been updated and culled.
+	 *
+	 * @param inputNanos
+	 *            when the earliest input it is the first to show happened,
+	 *            or 0
+	 */
+	void submit(long inputNanos) {
+		glViewport(0, 0, viewportWidth, viewportHeight);
+
+		stats.begin(FrameStats.UPLOAD);
+		reload();
+		if (uploader != null) {
+			if (uploader.update(model))
+				bvh = new MeshBvh(model.meshes);
+			if (uploader.idle()) {
+				System.out.println("uploaded " + uploader.uploadedMeshes + " meshes, " + (uploader.uploadedBytes >> 20) + "MB");
+				uploader = null;
+				if (clusteredLights)
+					scatterLights(randomLights);
+			}
+		}
+		stats.end(FrameStats.UPLOAD);
+
+		stats.begin(FrameStats.RENDER);
+		render();
+		stats.end(FrameStats.RENDER);
+
+		stats.begin(FrameStats.SWAP);
+		glfwSwapBuffers(window);
+		stats.end(FrameStats.SWAP);
+		if (inputNanos != 0)
+			stats.latency(System.nanoTime() - inputNanos);
+		stats.endFrame();
+	}
+
+	/**
+	 * Renders headlessFrames frames of a full orbit offscreen and writes them
+	 * to headlessOutput, formatted with the frame number.
+	 */
+	void loopHeadless() {
+		final ByteBuffer image = BufferUtils.createByteBuffer(fbWidth * fbHeight * 4);
+		FrameReader.Consumer writer = new FrameReader.Consumer() {
+			@Override
+			public void frame(long frame, ByteBuffer pixels, int width, int height) {
+				FrameReader.flip(pixels, image, width, height);
+				stbi_write_png(String.format(headlessOutput, frame), width, height, 4, image, width * 4);
+				image.clear();
+			}
+		};
+
+		for (int frame = 0; frame < headlessFrames; frame++) {
+			rotation = 2f * (float) Math.PI * frame / headlessFrames;
+			stats.beginFrame();
+			stats.begin(FrameStats.UPDATE);
 			update();
+			stats.end(FrameStats.UPDATE);
+			frameReader.bind();
+			stats.begin(FrameStats.RENDER);
 			render();
-			glfwSwapBuffers(window);
+			stats.end(FrameStats.RENDER);
+			frameReader.readback(frame, writer);
+			stats.endFrame();
 		}
+		frameReader.finish(writer);
 	}
 
 	void run() {
 		try {
 			init();
-			loop();
+			if (headless)
+				loopHeadless();
+			else if (decoupled)
+				loopDecoupled();
+			else
+				loop();
+			System.out.println("uniform updates: " + uniforms.issued + " issued, " + uniforms.skipped + " skipped");
+			stats.free();
+			if (watcher != null) {
+				watcher.close();
+				reloader.shutdownNow();
+			}
+			uniforms.free();
+			if (batchRenderer != null)
+				batchRenderer.free();
+			freeInstances();
+			if (clusters != null) {
+				System.out.println(clusters.report());
+				clusterBuffers.free();
+			}
+			if (occlusion != null) {
+				occlusion.free();
+				System.out.println(occlusion.report());
+			}
+			if (residency != null) {
+				System.out.println(residency.report());
+				residency.free();
+			}
 			model.free();
+			if (assets != null)
+				assets.close();
 			if (debugProc != null) {
 				debugProc.free();
 			}
-			cpCallback.free();
-			keyCallback.free();
-			fbCallback.free();
-			wsCallback.free();
-			glfwDestroyWindow(window);
+			if (headless) {
+				frameReader.free();
+				headlessContext.free();
+			} else {
+				cpCallback.free();
+				keyCallback.free();
+				fbCallback.free();
+				wsCallback.free();
+				glfwDestroyWindow(window);
+			}
 		} catch (Throwable t) {
 			t.printStackTrace();
 		} finally {
@@ -338,6 +1340,30 @@ public class ObjLoader {
 	public static void main(String[] args) {
 //		 new ObjLoader("blue").run();
 //		 new ObjLoader("gouraud").run();
+//		 new ObjLoader("gouraud_lit", true, true).run();
+//		 new ObjLoader("gouraud_mdi", false, false, true).run();
+//		 ObjLoader stored = new ObjLoader("gouraud_lit");
+//		 stored.assetStore = new File("assets");
+//		 stored.assetName = "sphere.obj";
+//		 stored.run();
+//		 ObjLoader scan = new ObjLoader("gouraud_lit");
+//		 scan.chunked = true;
+//		 scan.run();
+//		 ObjLoader interior = new ObjLoader("gouraud_lit");
+//		 interior.occlusionCulling = true;
+//		 interior.run();
+//		 ObjLoader lit = new ObjLoader("gouraud_clustered");
+//		 lit.clusteredLights = true;
+//		 lit.randomLights = 1000;
+//		 lit.run();
+//		 ObjLoader instanced = new ObjLoader("gouraud_lit");
+//		 instanced.instanced = true;
+//		 instanced.run();
+//		 MeshCache.objParser = true;
+//		 new ObjLoader("gouraud_lit").run();
+//		 ObjLoader headless = new ObjLoader("gouraud_lit");
+//		 headless.headless = true;
+//		 headless.run();
 		new ObjLoader("gouraud_lit").run();
 	}
 }
@@ -0,0 +1,488 @@
+package org.twak.gouraud;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * A pure Java Wavefront obj reader for files too large for aiImportFile. The
+ * file is memory mapped in line aligned chunks which are parsed in parallel;
+ * faces are fan triangulated and identical position/normal pairs are joined,
+ * giving the same mesh data as aiProcess_JoinIdenticalVertices |
+ * aiProcess_Triangulate.
+ *
+ * Only v, vn and f lines are read; groups, materials and texture coordinates
+ * are ignored and the whole file becomes a single mesh. Vertices without a
+ * normal get a zero normal.
+ * <p>
+ * {@link #scan} instead hands the parsed chunks over one batch at a time,
+ * for files whose mesh is too large to hold at once.
+ */
+public class ObjParser {
+
+	/* Target chunk size; also bounds the size of each mapping */
+	static final long CHUNK_SIZE = 32 << 20;
+
+	/**
+	 * Receives an obj file's chunks in file order from {@link #scan}. A
+	 * chunk's corner indices are absolute and zero based, with -1 for no
+	 * normal; its positions and normals follow those of the chunks before,
+	 * starting at its vertexOffset and normalOffset.
+	 */
+	interface Reader {
+		void read(Chunk chunk) throws IOException;
+	}
+
+	/**
+	 * Parses the file a batch of chunks at a time, one chunk per thread of
+	 * pool, and passes them to reader before parsing the next batch, so
+	 * only a batch is held at once.
+	 */
+	static void scan(File file, ForkJoinPool pool, Reader reader) throws IOException {
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel fc = raf.getChannel()) {
+			long size = fc.size();
+			long start = 0;
+			int vertexCount = 0, normalCount = 0;
+
+			while (start < size) {
+				final List<Chunk> batch = new ArrayList<>();
+				while (start < size && batch.size() < pool.getParallelism()) {
+					long end = lineEnd(fc, Math.min(size, start + CHUNK_SIZE), size);
+					batch.add(new Chunk(fc.map(FileChannel.MapMode.READ_ONLY, start, end - start)));
+					start = end;
+				}
+
+				pool.invoke(new RecursiveAction() {
+					@Override
+					protected void compute() {
+						invokeAll(batch);
+					}
+				});
+
+				for (Chunk c : batch) {
+					c.vertexOffset = vertexCount;
+					c.normalOffset = normalCount;
+					vertexCount += c.positions.size / 3;
+					normalCount += c.normals.size / 3;
+					c.absolute();
+					reader.read(c);
+				}
+			}
+		}
+	}
+
+	public static Model load(File file, boolean upload) throws IOException {
+		Model.Mesh mesh = parse(file, false);
+		MeshOptimizer.optimize(mesh);
+		if (upload)
+			mesh.upload();
+
+		List<Model.Mesh> meshes = new ArrayList<>();
+		meshes.add(mesh);
+		return new Model(meshes, new ArrayList<Model.Material>());
+	}
+
+	public static Model.Mesh parse(File file, boolean upload) throws IOException {
+		return parse(file, upload, ForkJoinPool.commonPool());
+	}
+
+	public static Model.Mesh parse(File file, boolean upload, ForkJoinPool pool) throws IOException {
+
+		List<Chunk> chunks = new ArrayList<>();
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel fc = raf.getChannel()) {
+			long size = fc.size();
+			long start = 0;
+			while (start < size) {
+				long end = lineEnd(fc, Math.min(size, start + CHUNK_SIZE), size);
+				chunks.add(new Chunk(fc.map(FileChannel.MapMode.READ_ONLY, start, end - start)));
+				start = end;
+			}
+		}
+
+		pool.invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				invokeAll(chunks);
+			}
+		});
+
+		/* global offsets of each chunk's vertices and normals */
+		int vertexCount = 0, normalCount = 0;
+		for (Chunk c : chunks) {
+			c.vertexOffset = vertexCount;
+			c.normalOffset = normalCount;
+			vertexCount += c.positions.size / 3;
+			normalCount += c.normals.size / 3;
+		}
+
+		float[] positions = new float[vertexCount * 3];
+		float[] normals = new float[normalCount * 3];
+		List<ForkJoinTask<?>> gather = new ArrayList<>();
+		for (Chunk c : chunks)
+			gather.add(ForkJoinTask.adapt(c.resolve(positions, normals)));
+		pool.invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				invokeAll(gather);
+			}
+		});
+
+		/* join identical position/normal pairs, in file order */
+		LongIntMap joined = new LongIntMap(Math.max(16, vertexCount));
+		IntArray uniqueV = new IntArray(), uniqueN = new IntArray();
+		int elementCount = 0;
+		for (Chunk c : chunks)
+			elementCount += c.cornerV.size;
+		IntBuffer elements = BufferUtils.createIntBuffer(elementCount);
+
+		for (Chunk c : chunks)
+			for (int i = 0; i < c.cornerV.size; i++) {
+				int v = c.cornerV.data[i], n = c.cornerN.data[i];
+				if (v < 0 || v >= vertexCount || n >= normalCount)
+					throw new IllegalStateException("obj face references a missing vertex or normal");
+
+				long key = (long) v << 32 | (n + 1);
+				int index = joined.get(key);
+				if (index < 0) {
+					index = uniqueV.size;
+					joined.put(key, index);
+					uniqueV.add(v);
+					uniqueN.add(n);
+				}
+				elements.put(index);
+			}
+		elements.flip();
+
+		FloatBuffer vertexData = BufferUtils.createFloatBuffer(uniqueV.size * 3);
+		FloatBuffer normalData = BufferUtils.createFloatBuffer(uniqueV.size * 3);
+		for (int i = 0; i < uniqueV.size; i++) {
+			int v = uniqueV.data[i] * 3, n = uniqueN.data[i] * 3;
+			vertexData.put(positions[v]).put(positions[v + 1]).put(positions[v + 2]);
+			if (n < 0)
+				normalData.put(0).put(0).put(0);
+			else
+				normalData.put(normals[n]).put(normals[n + 1]).put(normals[n + 2]);
+		}
+		vertexData.flip();
+		normalData.flip();
+
+		return new Model.Mesh(vertexData, normalData, Model.Mesh.randomColours(BufferUtils.createFloatBuffer(uniqueV.size * 3)), elements, 0, upload);
+	}
+
+	/**
+	 * @return the offset just past the first newline at or after from
+	 */
+	private static long lineEnd(FileChannel fc, long from, long size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		long pos = from;
+		while (pos < size) {
+			buffer.clear();
+			int read = fc.read(buffer, pos);
+			if (read <= 0)
+				break;
+			for (int i = 0; i < read; i++)
+				if (buffer.get(i) == '\n')
+					return pos + i + 1;
+			pos += read;
+		}
+		return size;
+	}
+
+	static class Chunk extends RecursiveAction {
+
+		ByteBuffer data;
+		int pos, end;
+
+		FloatArray positions = new FloatArray(), normals = new FloatArray();
+		/* per triangle corner: vertex and normal index (-1 for none) */
+		IntArray cornerV = new IntArray(), cornerN = new IntArray();
+		/* corners whose index is relative to this chunk (negative obj indices) */
+		IntArray relativeV = new IntArray(), relativeN = new IntArray();
+
+		int vertexOffset, normalOffset;
+
+		Chunk(ByteBuffer data) {
+			this.data = data;
+			end = data.limit();
+		}
+
+		@Override
+		protected void compute() {
+			IntArray faceV = new IntArray(), faceN = new IntArray();
+
+			while (pos < end) {
+				skipBlanks();
+				if (pos >= end)
+					break;
+
+				byte c = data.get(pos);
+				byte d = pos + 1 < end ? data.get(pos + 1) : 0;
+
+				if (c == 'v' && (d == ' ' || d == '\t')) {
+					pos++;
+					positions.add(parseFloat());
+					positions.add(parseFloat());
+					positions.add(parseFloat());
+				} else if (c == 'v' && d == 'n') {
+					pos += 2;
+					normals.add(parseFloat());
+					normals.add(parseFloat());
+					normals.add(parseFloat());
+				} else if (c == 'f' && (d == ' ' || d == '\t')) {
+					pos++;
+					face(faceV, faceN);
+				}
+				skipLine();
+			}
+			/* let the mapping go */
+			data = null;
+		}
+
+		private void face(IntArray faceV, IntArray faceN) {
+			faceV.size = faceN.size = 0;
+
+			while (true) {
+				skipSpaces();
+				if (pos >= end || !isIndexStart(data.get(pos)))
+					break;
+
+				int v = parseInt(), n = 0;
+				if (pos < end && data.get(pos) == '/') {
+					pos++;
+					if (pos < end && data.get(pos) != '/')
+						parseInt(); // texture coordinate
+					if (pos < end && data.get(pos) == '/') {
+						pos++;
+						n = parseInt();
+					}
+				}
+				faceV.add(v);
+				faceN.add(n);
+			}
+
+			for (int i = 1; i + 1 < faceV.size; i++) {
+				corner(faceV.data[0], faceN.data[0]);
+				corner(faceV.data[i], faceN.data[i]);
+				corner(faceV.data[i + 1], faceN.data[i + 1]);
+			}
+		}
+
+		private void corner(int v, int n) {
+			if (v < 0) {
+				relativeV.add(cornerV.size);
+				cornerV.add(positions.size / 3 + v);
+			} else
+				cornerV.add(v - 1);
+
+			if (n < 0) {
+				relativeN.add(cornerN.size);
+				cornerN.add(normals.size / 3 + n);
+			} else
+				cornerN.add(n - 1);
+		}
+
+		/**
+		 * Copies this chunk's positions and normals into the global arrays
+		 * and makes its relative corner indices absolute.
+		 */
+		Runnable resolve(float[] allPositions, float[] allNormals) {
+			return new Runnable() {
+				@Override
+				public void run() {
+					System.arraycopy(positions.data, 0, allPositions, vertexOffset * 3, positions.size);
+					System.arraycopy(normals.data, 0, allNormals, normalOffset * 3, normals.size);
+					absolute();
+				}
+			};
+		}
+
+		/** Makes the relative corner indices absolute, once the offsets are set. */
+		void absolute() {
+			for (int i = 0; i < relativeV.size; i++)
+				cornerV.data[relativeV.data[i]] += vertexOffset;
+			for (int i = 0; i < relativeN.size; i++)
+				cornerN.data[relativeN.data[i]] += normalOffset;
+		}
+
+		private static boolean isIndexStart(byte c) {
+			return c == '-' || (c >= '0' && c <= '9');
+		}
+
+		private void skipBlanks() {
+			while (pos < end) {
+				byte c = data.get(pos);
+				if (c != ' ' && c != '\t' && c != '\r' && c != '\n')
+					break;
+				pos++;
+			}
+		}
+
+		private void skipSpaces() {
+			while (pos < end && (data.get(pos) == ' ' || data.get(pos) == '\t'))
+				pos++;
+		}
+
+		private void skipLine() {
+			while (pos < end && data.get(pos) != '\n')
+				pos++;
+		}
+
+		private int parseInt() {
+			boolean negative = false;
+			if (pos < end && data.get(pos) == '-') {
+				negative = true;
+				pos++;
+			}
+			int value = 0;
+			while (pos < end) {
+				byte c = data.get(pos);
+				if (c < '0' || c > '9')
+					break;
+				value = value * 10 + (c - '0');
+				pos++;
+			}
+			return negative ? -value : value;
+		}
+
+		private float parseFloat() {
+			skipSpaces();
+
+			boolean negative = false;
+			if (pos < end && (data.get(pos) == '-' || data.get(pos) == '+'))
+				negative = data.get(pos++) == '-';
+
+			long mantissa = 0;
+			int exponent = 0;
+			boolean dot = false;
+			while (pos < end) {
+				byte c = data.get(pos);
+				if (c >= '0' && c <= '9') {
+					if (mantissa < 100000000000000000L) {
+						mantissa = mantissa * 10 + (c - '0');
+						if (dot)
+							exponent--;
+					} else if (!dot)
+						exponent++;
+				} else if (c == '.' && !dot)
+					dot = true;
+				else
+					break;
+				pos++;
+			}
+
+			if (pos < end && (data.get(pos) == 'e' || data.get(pos) == 'E')) {
+				pos++;
+				if (pos < end && data.get(pos) == '+')
+					pos++;
+				exponent += parseInt();
+			}
+
+			double value = mantissa;
+			if (exponent < 0)
+				value = -exponent < POW10.length ? value / POW10[-exponent] : value * Math.pow(10, exponent);
+			else if (exponent > 0)
+				value = exponent < POW10.length ? value * POW10[exponent] : value * Math.pow(10, exponent);
+
+			return (float) (negative ? -value : value);
+		}
+	}
+
+	private static final double[] POW10 = new double[23];
+	static {
+		POW10[0] = 1;
+		for (int i = 1; i < POW10.length; i++)
+			POW10[i] = POW10[i - 1] * 10;
+	}
+
+	static class FloatArray {
+		float[] data = new float[1024];
+		int size;
+
+		void add(float f) {
+			if (size == data.length)
+				data = Arrays.copyOf(data, size * 2);
+			data[size++] = f;
+		}
+	}
+
+	static class IntArray {
+		int[] data = new int[1024];
+		int size;
+
+		void add(int i) {
+			if (size == data.length)
+				data = Arrays.copyOf(data, size * 2);
+			data[size++] = i;
+		}
+	}
+
+	/**
+	 * Open addressing map from non-negative long keys to int values.
+	 */
+	static class LongIntMap {
+		long[] keys;
+		int[] values;
+		int size, mask;
+
+		LongIntMap(int expected) {
+			int capacity = Integer.highestOneBit(expected * 2 - 1) << 1;
+			keys = new long[capacity];
+			values = new int[capacity];
+			Arrays.fill(keys, -1);
+			mask = capacity - 1;
+		}
+
+		int get(long key) {
+			for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+				if (keys[i] == key)
+					return values[i];
+				if (keys[i] == -1)
+					return -1;
+			}
+		}
+
+		void put(long key, int value) {
+			if (size * 2 >= keys.length)
+				grow();
+			int i = hash(key) & mask;
+			while (keys[i] != -1 && keys[i] != key)
+				i = (i + 1) & mask;
+			if (keys[i] == -1)
+				size++;
+			keys[i] = key;
+			values[i] = value;
+		}
+
+		private void grow() {
+			long[] oldKeys = keys;
+			int[] oldValues = values;
+			keys = new long[oldKeys.length * 2];
+			values = new int[oldKeys.length * 2];
+			Arrays.fill(keys, -1);
+			mask = keys.length - 1;
+			size = 0;
+			for (int i = 0; i < oldKeys.length; i++)
+				if (oldKeys[i] != -1)
+					put(oldKeys[i], oldValues[i]);
+		}
+
+		private static int hash(long key) {
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+}
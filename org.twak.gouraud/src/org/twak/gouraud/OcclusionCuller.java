@@ -0,0 +1,427 @@
+package org.twak.gouraud;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.joml.Matrix4f;
+
+/**
+ * Rejects meshes hidden behind others before they are drawn. The largest
+ * meshes on screen are rasterized as occluders into a small CPU depth
+ * buffer, a hierarchical Z pyramid of each 2x2 block's farthest depth is
+ * built from it, and every mesh's screen space bounding rectangle is
+ * tested against the pyramid level where it covers at most 2x2 texels: if
+ * the nearest corner of its box is behind every texel, it is hidden.
+ * <p>
+ * {@link #submit} starts the work on a fork-join pool and returns at once,
+ * so it runs while the GL thread carries on and the GPU finishes the
+ * previous frame; {@link #join} waits for it and removes the hidden meshes.
+ * <p>
+ * Occluders are drawn from the finest level of detail with at most
+ * {@link #occluderTriangles} triangles, so a coarse level can occlude
+ * slightly more or less than the mesh drawn. Meshes whose box crosses the
+ * near plane, and occluders themselves, are always kept.
+ */
+public class OcclusionCuller {
+
+	/* rows of the depth buffer rasterized by one task */
+	private static final int BAND = 8;
+	/* below this many meshes the tests are not split between threads */
+	private static final int TEST_SPLIT = 256;
+
+	public int maxOccluders = 16;
+	public int occluderTriangles = 4096;
+	/* the smallest occluder, as a fraction of the screen covered by its bounding rectangle */
+	public float minOccluderArea = 0.01f;
+
+	/* for reporting, the last frame and all frames */
+	public int tested;
+	public int occluders;
+	public int occluded;
+	public long totalTested;
+	public long totalOccluded;
+	public long nanos;
+
+	int width, height;
+	ForkJoinPool pool;
+
+	/* level 0 is the depth buffer, each further level half the size */
+	float[][] levels;
+	int[] levelWidths, levelHeights;
+
+	private final List<Model.Mesh> meshes = new ArrayList<>();
+	private final Matrix4f mvp = new Matrix4f();
+	private ForkJoinTask<?> pending;
+
+	/* per mesh: screen min x, min y, max x, max y, nearest depth; depth -1 if the box crosses the near plane */
+	private float[] rects = new float[0];
+	private boolean[] hidden = new boolean[0];
+
+	private Model.Mesh[] occluderMeshes;
+	private float[] occluderAreas;
+	/* occluder vertices: screen x, screen y, depth, and 1 if behind the eye */
+	private float[] screen = new float[0];
+	private int[] triangles = new int[0];
+	private int triangleCount;
+
+	public OcclusionCuller(int width, int height) {
+		this(width, height, ForkJoinPool.commonPool());
+	}
+
+	public OcclusionCuller(int width, int height, ForkJoinPool pool) {
+		this.width = width;
+		this.height = height;
+		this.pool = pool;
+
+		int count = 1;
+		for (int w = width, h = height; w > 1 || h > 1; w = (w + 1) / 2, h = (h + 1) / 2)
+			count++;
+		levels = new float[count][];
+		levelWidths = new int[count];
+		levelHeights = new int[count];
+		for (int l = 0, w = width, h = height; l < count; l++, w = (w + 1) / 2, h = (h + 1) / 2) {
+			levels[l] = new float[w * h];
+			levelWidths[l] = w;
+			levelHeights[l] = h;
+		}
+	}
+
+	/**
+	 * Starts testing meshes on the pool. The meshes and the matrix are
+	 * copied, but the meshes' CPU data must stay alive until {@link #join}.
+	 *
+	 * @param projectMatrix
+	 *            projection * view * model, as ObjLoader.projectMatrix
+	 */
+	public void submit(List<Model.Mesh> candidates, Matrix4f projectMatrix) {
+		if (pending != null)
+			throw new IllegalStateException("Occlusion culling already running");
+		meshes.clear();
+		meshes.addAll(candidates);
+		mvp.set(projectMatrix);
+		pending = pool.submit(new Cull());
+	}
+
+	/**
+	 * Waits for the meshes last submitted and removes the hidden ones from
+	 * visible, which must still hold them in the same order.
+	 *
+	 * @return the number removed
+	 */
+	public int join(List<Model.Mesh> visible) {
+		if (pending == null)
+			return 0;
+		pending.join();
+		pending = null;
+
+		int kept = 0;
+		for (int i = 0; i < meshes.size(); i++)
+			if (!hidden[i])
+				visible.set(kept++, meshes.get(i));
+		visible.subList(kept, visible.size()).clear();
+		meshes.clear();
+
+		totalTested += tested;
+		totalOccluded += occluded;
+		return occluded;
+	}
+
+	private class Cull extends RecursiveAction {
+		@Override
+		protected void compute() {
+			long start = System.nanoTime();
+			int count = meshes.size();
+			if (rects.length < count * 5) {
+				rects = new float[count * 5];
+				hidden = new boolean[count];
+			}
+			Arrays.fill(hidden, 0, count, false);
+
+			for (int i = 0; i < count; i++)
+				bounds(meshes.get(i), i);
+			selectOccluders(count);
+			transformOccluders();
+
+			invokeAll(new Raster(0, height));
+			buildPyramid();
+			invokeAll(new Test(0, count));
+
+			int hiddenCount = 0;
+			for (int i = 0; i < count; i++)
+				if (hidden[i])
+					hiddenCount++;
+			tested = count;
+			occluded = hiddenCount;
+			nanos = System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Projects the corners of a mesh's box into its screen rectangle and
+	 * nearest depth.
+	 */
+	private void bounds(Model.Mesh mesh, int i) {
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+		float minZ = Float.MAX_VALUE;
+		Matrix4f m = mvp;
+		for (int c = 0; c < 8; c++) {
+			float x = (c & 1) == 0 ? mesh.min.x : mesh.max.x;
+			float y = (c & 2) == 0 ? mesh.min.y : mesh.max.y;
+			float z = (c & 4) == 0 ? mesh.min.z : mesh.max.z;
+
+			float cw = m.m03() * x + m.m13() * y + m.m23() * z + m.m33();
+			if (cw <= 0) {
+				rects[i * 5 + 4] = -1;
+				return;
+			}
+			float invW = 1f / cw;
+			float sx = ((m.m00() * x + m.m10() * y + m.m20() * z + m.m30()) * invW * 0.5f + 0.5f) * width;
+			float sy = (0.5f - (m.m01() * x + m.m11() * y + m.m21() * z + m.m31()) * invW * 0.5f) * height;
+			float sz = (m.m02() * x + m.m12() * y + m.m22() * z + m.m32()) * invW * 0.5f + 0.5f;
+			minX = Math.min(minX, sx);
+			maxX = Math.max(maxX, sx);
+			minY = Math.min(minY, sy);
+			maxY = Math.max(maxY, sy);
+			minZ = Math.min(minZ, sz);
+		}
+		rects[i * 5] = minX;
+		rects[i * 5 + 1] = minY;
+		rects[i * 5 + 2] = maxX;
+		rects[i * 5 + 3] = maxY;
+		rects[i * 5 + 4] = minZ;
+	}
+
+	/**
+	 * Keeps the meshes with the largest on-screen rectangles that still
+	 * have CPU data, sorted by insertion.
+	 */
+	private void selectOccluders(int count) {
+		if (occluderMeshes == null || occluderMeshes.length != maxOccluders) {
+			occluderMeshes = new Model.Mesh[maxOccluders];
+			occluderAreas = new float[maxOccluders];
+		}
+		occluders = 0;
+		float screenArea = width * height, minArea = minOccluderArea * screenArea;
+
+		for (int i = 0; i < count; i++) {
+			Model.Mesh mesh = meshes.get(i);
+			if (rects[i * 5 + 4] < 0 || mesh.vertices == null || mesh.elements == null)
+				continue;
+			float w = Math.min(rects[i * 5 + 2], width) - Math.max(rects[i * 5], 0);
+			float h = Math.min(rects[i * 5 + 3], height) - Math.max(rects[i * 5 + 1], 0);
+			float area = w > 0 && h > 0 ? w * h : 0;
+			if (area < minArea || (occluders == maxOccluders && area <= occluderAreas[occluders - 1]))
+				continue;
+
+			int at = Math.min(occluders, maxOccluders - 1);
+			while (at > 0 && occluderAreas[at - 1] < area) {
+				occluderMeshes[at] = occluderMeshes[at - 1];
+				occluderAreas[at] = occluderAreas[at - 1];
+				at--;
+			}
+			occluderMeshes[at] = mesh;
+			occluderAreas[at] = area;
+			occluders = Math.min(occluders + 1, maxOccluders);
+		}
+	}
+
+	private Model.Mesh occluderLod(Model.Mesh mesh) {
+		if (mesh.lods == null)
+			return mesh;
+		for (Model.Mesh level : mesh.lods)
+			if (level.elementCount / 3 <= occluderTriangles && level.vertices != null)
+				return level;
+		return mesh.lods[mesh.lods.length - 1].vertices != null ? mesh.lods[mesh.lods.length - 1] : mesh;
+	}
+
+	private void transformOccluders() {
+		int vertexCount = 0, elementCount = 0;
+		for (int o = 0; o < occluders; o++) {
+			Model.Mesh mesh = occluderLod(occluderMeshes[o]);
+			vertexCount += mesh.vertexCount;
+			elementCount += mesh.elementCount;
+		}
+		if (screen.length < vertexCount * 4)
+			screen = new float[vertexCount * 4];
+		if (triangles.length < elementCount)
+			triangles = new int[elementCount];
+
+		Matrix4f m = mvp;
+		int base = 0;
+		triangleCount = 0;
+		for (int o = 0; o < occluders; o++) {
+			Model.Mesh mesh = occluderLod(occluderMeshes[o]);
+			for (int v = 0; v < mesh.vertexCount; v++) {
+				float x = mesh.vertices.get(v * 3), y = mesh.vertices.get(v * 3 + 1), z = mesh.vertices.get(v * 3 + 2);
+				float cw = m.m03() * x + m.m13() * y + m.m23() * z + m.m33();
+				int s = (base + v) * 4;
+				if (cw <= 0) {
+					screen[s + 3] = 1;
+					continue;
+				}
+				float invW = 1f / cw;
+				screen[s] = ((m.m00() * x + m.m10() * y + m.m20() * z + m.m30()) * invW * 0.5f + 0.5f) * width;
+				screen[s + 1] = (0.5f - (m.m01() * x + m.m11() * y + m.m21() * z + m.m31()) * invW * 0.5f) * height;
+				screen[s + 2] = (m.m02() * x + m.m12() * y + m.m22() * z + m.m32()) * invW * 0.5f + 0.5f;
+				screen[s + 3] = 0;
+			}
+			for (int e = 0; e + 2 < mesh.elementCount; e += 3) {
+				int a = base + mesh.elements.get(e), b = base + mesh.elements.get(e + 1), c = base + mesh.elements.get(e + 2);
+				/* not clipped: dropping a triangle only ever occludes less */
+				if (screen[a * 4 + 3] != 0 || screen[b * 4 + 3] != 0 || screen[c * 4 + 3] != 0)
+					continue;
+				triangles[triangleCount++] = a;
+				triangles[triangleCount++] = b;
+				triangles[triangleCount++] = c;
+			}
+			base += mesh.vertexCount;
+		}
+	}
+
+	/** Rasterizes every occluder triangle into a band of rows. */
+	private class Raster extends RecursiveAction {
+
+		int from, to;
+
+		Raster(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > BAND) {
+				int mid = from + Math.max(BAND, (to - from) / 2 / BAND * BAND);
+				invokeAll(new Raster(from, mid), new Raster(mid, to));
+				return;
+			}
+
+			float[] depth = levels[0];
+			Arrays.fill(depth, from * width, to * width, 1f);
+			for (int t = 0; t < triangleCount; t += 3)
+				rasterize(triangles[t] * 4, triangles[t + 1] * 4, triangles[t + 2] * 4, from, to, depth);
+		}
+	}
+
+	private void rasterize(int v0, int v1, int v2, int rowFrom, int rowTo, float[] depth) {
+		float ax = screen[v0], ay = screen[v0 + 1];
+		float bx = screen[v1], by = screen[v1 + 1];
+		float cx = screen[v2], cy = screen[v2 + 1];
+
+		int minY = Math.max(rowFrom, (int) Math.floor(Math.min(ay, Math.min(by, cy))));
+		int maxY = Math.min(rowTo - 1, (int) Math.ceil(Math.max(ay, Math.max(by, cy))));
+		if (minY > maxY)
+			return;
+		int minX = Math.max(0, (int) Math.floor(Math.min(ax, Math.min(bx, cx))));
+		int maxX = Math.min(width - 1, (int) Math.ceil(Math.max(ax, Math.max(bx, cx))));
+		if (minX > maxX)
+			return;
+
+		float area = (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+		if (area == 0)
+			return;
+		float invArea = 1f / area;
+		float z0 = screen[v0 + 2], z1 = screen[v1 + 2], z2 = screen[v2 + 2];
+
+		for (int y = minY; y <= maxY; y++) {
+			float py = y + 0.5f;
+			for (int x = minX; x <= maxX; x++) {
+				float px = x + 0.5f;
+				float b0 = ((bx - px) * (cy - py) - (by - py) * (cx - px)) * invArea;
+				float b1 = ((cx - px) * (ay - py) - (cy - py) * (ax - px)) * invArea;
+				float b2 = 1 - b0 - b1;
+				if (b0 < 0 || b1 < 0 || b2 < 0)
+					continue;
+
+				float z = b0 * z0 + b1 * z1 + b2 * z2;
+				int pixel = y * width + x;
+				if (z >= 0 && z < depth[pixel])
+					depth[pixel] = z;
+			}
+		}
+	}
+
+	/** Each texel of a level holds the farthest depth of the 2x2 below it. */
+	private void buildPyramid() {
+		for (int l = 1; l < levels.length; l++) {
+			float[] below = levels[l - 1], level = levels[l];
+			int bw = levelWidths[l - 1], bh = levelHeights[l - 1], w = levelWidths[l], h = levelHeights[l];
+			for (int y = 0; y < h; y++) {
+				int y0 = y * 2 * bw, y1 = Math.min(y * 2 + 1, bh - 1) * bw;
+				for (int x = 0; x < w; x++) {
+					int x0 = x * 2, x1 = Math.min(x * 2 + 1, bw - 1);
+					level[y * w + x] = Math.max(Math.max(below[y0 + x0], below[y0 + x1]),
+							Math.max(below[y1 + x0], below[y1 + x1]));
+				}
+			}
+		}
+	}
+
+	private class Test extends RecursiveAction {
+
+		int from, to;
+
+		Test(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > TEST_SPLIT) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Test(from, mid), new Test(mid, to));
+				return;
+			}
+			for (int i = from; i < to; i++)
+				hidden[i] = !isOccluder(meshes.get(i)) && occluded(i);
+		}
+	}
+
+	private boolean isOccluder(Model.Mesh mesh) {
+		for (int o = 0; o < occluders; o++)
+			if (occluderMeshes[o] == mesh)
+				return true;
+		return false;
+	}
+
+	private boolean occluded(int i) {
+		float nearest = rects[i * 5 + 4];
+		if (nearest < 0)
+			return false;
+
+		int x0 = Math.max(0, (int) Math.floor(rects[i * 5])), y0 = Math.max(0, (int) Math.floor(rects[i * 5 + 1]));
+		int x1 = Math.min(width - 1, (int) rects[i * 5 + 2]), y1 = Math.min(height - 1, (int) rects[i * 5 + 3]);
+		if (x0 > x1 || y0 > y1)
+			return false;
+
+		int l = 0;
+		while (l < levels.length - 1 && ((x1 >> l) - (x0 >> l) > 1 || (y1 >> l) - (y0 >> l) > 1))
+			l++;
+
+		float[] level = levels[l];
+		int w = levelWidths[l];
+		for (int y = y0 >> l; y <= y1 >> l; y++)
+			for (int x = x0 >> l; x <= x1 >> l; x++)
+				if (level[y * w + x] >= nearest)
+					return false;
+		return true;
+	}
+
+	public String report() {
+		return String.format("occlusion: %d of %d meshes hidden by %d occluders (%d of %d over all frames), %.2fms",
+				occluded, tested, occluders, totalOccluded, totalTested, nanos / 1e6);
+	}
+
+	/** Waits for any culling still running. */
+	public void free() {
+		if (pending != null)
+			pending.join();
+		pending = null;
+		meshes.clear();
+	}
+}
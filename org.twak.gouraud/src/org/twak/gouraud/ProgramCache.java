@@ -0,0 +1,137 @@
+package org.twak.gouraud;
+
+import static org.lwjgl.opengl.ARBGetProgramBinary.*;
+import static org.lwjgl.opengl.ARBShaderObjects.*;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL20.glGetProgrami;
+import static org.lwjgl.util.xxhash.XXHash.XXH64;
+import static org.twak.gouraud.DemoUtils.ioResourceToByteBuffer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GLCapabilities;
+
+/**
+ * Linked program binaries saved with ARB_get_program_binary, so later runs
+ * skip compiling and linking. Each program is a file in {@link #directory}
+ * named by an xxHash of its sources, any version preamble, its attribute
+ * bindings and the driver's vendor, renderer and version strings; a driver
+ * update or edit to a shader therefore simply misses. A binary the driver
+ * refuses is treated as a miss too.
+ *
+ * Layout (native byte order): magic, version, key, binary format, binary
+ * length, binary.
+ */
+public class ProgramCache {
+
+	static final int MAGIC = 0x47505247; // "GPRG"
+	static final int VERSION = 1;
+
+	public static File directory = new File("programcache");
+
+	private static String driver;
+
+	/** Whether the driver can hand back program binaries at all. */
+	public static boolean supported(GLCapabilities caps) {
+		return caps.GL_ARB_get_program_binary && glGetInteger(GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+	}
+
+	/**
+	 * @param preamble
+	 *            text prepended to every source, such as a #version line, or
+	 *            null
+	 * @param bindings
+	 *            anything else that changes the linked result, such as
+	 *            attribute locations bound before linking
+	 */
+	public static long key(String preamble, String bindings, ByteBuffer... sources) {
+		if (driver == null)
+			driver = glGetString(GL_VENDOR) + "\n" + glGetString(GL_RENDERER) + "\n" + glGetString(GL_VERSION);
+
+		long hash = XXH64(utf8(driver + "\n" + preamble + "\n" + bindings), VERSION);
+		for (ByteBuffer source : sources)
+			hash = XXH64(source, hash);
+		return hash;
+	}
+
+	public static File cacheFile(long key) {
+		return new File(directory, String.format("%016x.bin", key));
+	}
+
+	/**
+	 * @return a linked program, or 0 if there is no usable binary for key
+	 */
+	public static int load(long key) throws IOException {
+
+		File cache = cacheFile(key);
+		if (!cache.isFile())
+			return 0;
+
+		ByteBuffer data = ioResourceToByteBuffer(cache.getAbsolutePath(), 0).order(ByteOrder.nativeOrder());
+		if (data.remaining() < 24 || data.getInt() != MAGIC || data.getInt() != VERSION || data.getLong() != key)
+			return 0;
+
+		int format = data.getInt();
+		int length = data.getInt();
+		if (length != data.remaining())
+			return 0;
+
+		int program = glCreateProgramObjectARB();
+		glProgramBinary(program, format, data);
+		if (glGetObjectParameteriARB(program, GL_OBJECT_LINK_STATUS_ARB) == 0) {
+			glDeleteObjectARB(program);
+			return 0;
+		}
+		return program;
+	}
+
+	/**
+	 * Call on a program before linking it, so that its binary can be saved.
+	 */
+	public static void retrievable(int program) {
+		glProgramParameteri(program, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+	}
+
+	/** Saves a linked program's binary under key. */
+	public static void save(int program, long key) throws IOException {
+
+		int length = glGetProgrami(program, GL_PROGRAM_BINARY_LENGTH);
+		if (length <= 0)
+			return;
+
+		ByteBuffer data = BufferUtils.createByteBuffer(24 + length);
+		IntBuffer lengthOut = BufferUtils.createIntBuffer(1), format = BufferUtils.createIntBuffer(1);
+		data.position(24);
+		glGetProgramBinary(program, lengthOut, format, data);
+		data.order(ByteOrder.nativeOrder());
+		data.position(0);
+		data.putInt(MAGIC).putInt(VERSION).putLong(key).putInt(format.get(0)).putInt(lengthOut.get(0));
+		data.position(0).limit(24 + lengthOut.get(0));
+
+		directory.mkdirs();
+		File cache = cacheFile(key);
+		File tmp = new File(cache.getPath() + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(tmp); FileChannel fc = fos.getChannel()) {
+			while (data.hasRemaining())
+				fc.write(data);
+		}
+		Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static ByteBuffer utf8(String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = BufferUtils.createByteBuffer(bytes.length);
+		buffer.put(bytes).flip();
+		return buffer;
+	}
+}
@@ -0,0 +1,360 @@
+package org.twak.gouraud;
+
+import static org.lwjgl.assimp.Assimp.*;
+import static org.lwjgl.stb.STBImageWrite.stbi_write_png;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.joml.Matrix3f;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.assimp.AIScene;
+
+/**
+ * Renders {@link Model.Mesh} data without a GL context. Triangles are
+ * transformed and lit per vertex exactly like gouraud.vs / gouraud_lit.vs,
+ * binned into screen tiles, and the tiles are rasterized in parallel on a
+ * fork-join pool into an off-heap colour + depth framebuffer.
+ *
+ * The colour buffer holds RGBA8 pixels with row 0 at the top of the image.
+ * Triangles with a vertex behind the eye are discarded rather than clipped.
+ */
+public class SoftwareRasterizer {
+
+	public static final int TILE_SIZE = 32;
+
+	/* Below this many vertices the transform stage is not split further */
+	private static final int VERTEX_SPLIT = 4096;
+
+	int width, height;
+	int tilesX, tilesY;
+
+	/** true for gouraud_lit (diffuse term), false for gouraud (vertex colours) */
+	boolean lit = true;
+
+	ForkJoinPool pool;
+
+	ByteBuffer colourBuffer;
+	FloatBuffer depthBuffer;
+
+	/* per vertex: screen x, screen y, depth [0..1], 1/w */
+	private float[] screen = new float[0];
+	/* per vertex: r, g, b */
+	private float[] shade = new float[0];
+	private int[][] bins;
+	private int[] binCounts;
+
+	private Matrix4f mvp = new Matrix4f();
+	private Matrix3f normalMatrix = new Matrix3f();
+
+	public SoftwareRasterizer(int width, int height) {
+		this(width, height, ForkJoinPool.commonPool());
+	}
+
+	public SoftwareRasterizer(int width, int height, ForkJoinPool pool) {
+		this.pool = pool;
+		resize(width, height);
+	}
+
+	public void resize(int width, int height) {
+		this.width = width;
+		this.height = height;
+		tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+		tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+		colourBuffer = BufferUtils.createByteBuffer(width * height * 4).order(ByteOrder.LITTLE_ENDIAN);
+		depthBuffer = BufferUtils.createFloatBuffer(width * height);
+		bins = new int[tilesX * tilesY][16];
+		binCounts = new int[tilesX * tilesY];
+		clear();
+	}
+
+	/**
+	 * Clears colour to opaque black and depth to 1, like the GL path's
+	 * glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT).
+	 */
+	public void clear() {
+		for (int i = 0, n = width * height; i < n; i++) {
+			colourBuffer.putInt(i * 4, 0xff000000);
+			depthBuffer.put(i, 1f);
+		}
+	}
+
+	/**
+	 * Draws all meshes of the model; the equivalent of ObjLoader.render().
+	 */
+	public void render(Model model, Matrix4f modelMatrix, Matrix4f viewMatrix, Matrix4f projectionMatrix,
+			Vector3f lightPosition) {
+		normalMatrix.set(modelMatrix).invert().transpose();
+		for (Model.Mesh mesh : model.meshes)
+			draw(mesh, modelMatrix, viewMatrix, projectionMatrix, normalMatrix, lightPosition);
+	}
+
+	public void draw(Model.Mesh mesh, Matrix4f modelMatrix, Matrix4f viewMatrix, Matrix4f projectionMatrix,
+			Matrix3f normalMatrix, Vector3f lightPosition) {
+		draw(mesh.vertices, mesh.normals, mesh.colours, mesh.elements, mesh.vertexCount, mesh.elementCount,
+				modelMatrix, viewMatrix, projectionMatrix, normalMatrix, lightPosition);
+	}
+
+	/**
+	 * Draws an indexed triangle list.
+	 *
+	 * @param positions
+	 *            3 floats per vertex
+	 * @param normals
+	 *            3 floats per vertex, only read when {@link #lit}
+	 * @param colours
+	 *            3 floats per vertex, only read when not {@link #lit}
+	 * @param elements
+	 *            3 indices per triangle
+	 */
+	public void draw(FloatBuffer positions, FloatBuffer normals, FloatBuffer colours, IntBuffer elements,
+			int vertexCount, int elementCount, Matrix4f modelMatrix, Matrix4f viewMatrix, Matrix4f projectionMatrix,
+			Matrix3f normalMatrix, Vector3f lightPosition) {
+
+		if (screen.length < vertexCount * 4) {
+			screen = new float[vertexCount * 4];
+			shade = new float[vertexCount * 3];
+		}
+
+		mvp.set(projectionMatrix).mul(viewMatrix).mul(modelMatrix);
+
+		/* light position in model space is constant per draw, as in gouraud_lit.vs */
+		Vector3f light = modelMatrix.transformPosition(lightPosition, new Vector3f());
+
+		pool.invoke(new VertexTask(positions, normals, colours, modelMatrix, normalMatrix, light, 0, vertexCount));
+
+		bin(elements, elementCount);
+
+		pool.invoke(new TileTask(elements, 0, tilesX * tilesY));
+	}
+
+	private class VertexTask extends RecursiveAction {
+
+		FloatBuffer positions, normals, colours;
+		Matrix4f modelMatrix;
+		Matrix3f normalMatrix;
+		Vector3f light;
+		int from, to;
+
+		VertexTask(FloatBuffer positions, FloatBuffer normals, FloatBuffer colours, Matrix4f modelMatrix,
+				Matrix3f normalMatrix, Vector3f light, int from, int to) {
+			this.positions = positions;
+			this.normals = normals;
+			this.colours = colours;
+			this.modelMatrix = modelMatrix;
+			this.normalMatrix = normalMatrix;
+			this.light = light;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > VERTEX_SPLIT) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new VertexTask(positions, normals, colours, modelMatrix, normalMatrix, light, from, mid),
+						new VertexTask(positions, normals, colours, modelMatrix, normalMatrix, light, mid, to));
+				return;
+			}
+
+			Matrix4f m = mvp;
+			for (int v = from; v < to; v++) {
+				float x = positions.get(v * 3), y = positions.get(v * 3 + 1), z = positions.get(v * 3 + 2);
+
+				float cx = m.m00() * x + m.m10() * y + m.m20() * z + m.m30();
+				float cy = m.m01() * x + m.m11() * y + m.m21() * z + m.m31();
+				float cz = m.m02() * x + m.m12() * y + m.m22() * z + m.m32();
+				float cw = m.m03() * x + m.m13() * y + m.m23() * z + m.m33();
+
+				float invW = cw > 0 ? 1f / cw : 0;
+				screen[v * 4] = (cx * invW * 0.5f + 0.5f) * width;
+				screen[v * 4 + 1] = (0.5f - cy * invW * 0.5f) * height;
+				screen[v * 4 + 2] = cz * invW * 0.5f + 0.5f;
+				screen[v * 4 + 3] = invW;
+
+				if (lit) {
+					float mx = modelMatrix.m00() * x + modelMatrix.m10() * y + modelMatrix.m20() * z + modelMatrix.m30();
+					float my = modelMatrix.m01() * x + modelMatrix.m11() * y + modelMatrix.m21() * z + modelMatrix.m31();
+					float mz = modelMatrix.m02() * x + modelMatrix.m12() * y + modelMatrix.m22() * z + modelMatrix.m32();
+
+					float lx = light.x - mx, ly = light.y - my, lz = light.z - mz;
+					float len = (float) Math.sqrt(lx * lx + ly * ly + lz * lz);
+					if (len > 0) {
+						lx /= len;
+						ly /= len;
+						lz /= len;
+					}
+
+					float nx = normals.get(v * 3), ny = normals.get(v * 3 + 1), nz = normals.get(v * 3 + 2);
+					Matrix3f n = normalMatrix;
+					float tx = n.m00() * nx + n.m10() * ny + n.m20() * nz;
+					float ty = n.m01() * nx + n.m11() * ny + n.m21() * nz;
+					float tz = n.m02() * nx + n.m12() * ny + n.m22() * nz;
+
+					shade[v * 3] = lx * tx + ly * ty + lz * tz;
+					shade[v * 3 + 1] = 0;
+					shade[v * 3 + 2] = 0;
+				} else {
+					shade[v * 3] = colours.get(v * 3);
+					shade[v * 3 + 1] = colours.get(v * 3 + 1);
+					shade[v * 3 + 2] = colours.get(v * 3 + 2);
+				}
+			}
+		}
+	}
+
+	private void bin(IntBuffer elements, int elementCount) {
+		Arrays.fill(binCounts, 0);
+
+		for (int t = 0; t < elementCount / 3; t++) {
+			int i0 = elements.get(t * 3) * 4, i1 = elements.get(t * 3 + 1) * 4, i2 = elements.get(t * 3 + 2) * 4;
+
+			if (screen[i0 + 3] == 0 || screen[i1 + 3] == 0 || screen[i2 + 3] == 0)
+				continue;
+
+			float minX = Math.min(screen[i0], Math.min(screen[i1], screen[i2]));
+			float maxX = Math.max(screen[i0], Math.max(screen[i1], screen[i2]));
+			float minY = Math.min(screen[i0 + 1], Math.min(screen[i1 + 1], screen[i2 + 1]));
+			float maxY = Math.max(screen[i0 + 1], Math.max(screen[i1 + 1], screen[i2 + 1]));
+
+			if (maxX < 0 || maxY < 0 || minX >= width || minY >= height)
+				continue;
+
+			int tx0 = Math.max(0, (int) minX / TILE_SIZE), tx1 = Math.min(tilesX - 1, (int) maxX / TILE_SIZE);
+			int ty0 = Math.max(0, (int) minY / TILE_SIZE), ty1 = Math.min(tilesY - 1, (int) maxY / TILE_SIZE);
+
+			for (int ty = ty0; ty <= ty1; ty++)
+				for (int tx = tx0; tx <= tx1; tx++) {
+					int tile = ty * tilesX + tx;
+					if (binCounts[tile] == bins[tile].length)
+						bins[tile] = Arrays.copyOf(bins[tile], bins[tile].length * 2);
+					bins[tile][binCounts[tile]++] = t;
+				}
+		}
+	}
+
+	private class TileTask extends RecursiveAction {
+
+		IntBuffer elements;
+		int from, to;
+
+		TileTask(IntBuffer elements, int from, int to) {
+			this.elements = elements;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new TileTask(elements, from, mid), new TileTask(elements, mid, to));
+				return;
+			}
+
+			int tile = from;
+			int x0 = (tile % tilesX) * TILE_SIZE, y0 = (tile / tilesX) * TILE_SIZE;
+			int x1 = Math.min(width, x0 + TILE_SIZE), y1 = Math.min(height, y0 + TILE_SIZE);
+
+			for (int b = 0; b < binCounts[tile]; b++) {
+				int t = bins[tile][b];
+				rasterize(elements.get(t * 3), elements.get(t * 3 + 1), elements.get(t * 3 + 2), x0, y0, x1, y1);
+			}
+		}
+	}
+
+	private void rasterize(int v0, int v1, int v2, int tileX0, int tileY0, int tileX1, int tileY1) {
+
+		float ax = screen[v0 * 4], ay = screen[v0 * 4 + 1];
+		float bx = screen[v1 * 4], by = screen[v1 * 4 + 1];
+		float cx = screen[v2 * 4], cy = screen[v2 * 4 + 1];
+
+		float area = (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+		if (area == 0)
+			return;
+		float invArea = 1f / area;
+
+		int minX = Math.max(tileX0, (int) Math.floor(Math.min(ax, Math.min(bx, cx))));
+		int maxX = Math.min(tileX1 - 1, (int) Math.ceil(Math.max(ax, Math.max(bx, cx))));
+		int minY = Math.max(tileY0, (int) Math.floor(Math.min(ay, Math.min(by, cy))));
+		int maxY = Math.min(tileY1 - 1, (int) Math.ceil(Math.max(ay, Math.max(by, cy))));
+
+		float z0 = screen[v0 * 4 + 2], z1 = screen[v1 * 4 + 2], z2 = screen[v2 * 4 + 2];
+		float w0 = screen[v0 * 4 + 3], w1 = screen[v1 * 4 + 3], w2 = screen[v2 * 4 + 3];
+
+		for (int y = minY; y <= maxY; y++) {
+			float py = y + 0.5f;
+			for (int x = minX; x <= maxX; x++) {
+				float px = x + 0.5f;
+
+				/* screen space barycentrics, sign normalised by the area */
+				float b0 = ((bx - px) * (cy - py) - (by - py) * (cx - px)) * invArea;
+				float b1 = ((cx - px) * (ay - py) - (cy - py) * (ax - px)) * invArea;
+				float b2 = 1 - b0 - b1;
+				if (b0 < 0 || b1 < 0 || b2 < 0)
+					continue;
+
+				float depth = b0 * z0 + b1 * z1 + b2 * z2;
+				int pixel = y * width + x;
+				if (depth < 0 || depth > 1 || depth >= depthBuffer.get(pixel))
+					continue;
+				depthBuffer.put(pixel, depth);
+
+				/* perspective correct weights */
+				float p0 = b0 * w0, p1 = b1 * w1, p2 = b2 * w2;
+				float norm = 1f / (p0 + p1 + p2);
+				p0 *= norm;
+				p1 *= norm;
+				p2 *= norm;
+
+				float r = p0 * shade[v0 * 3] + p1 * shade[v1 * 3] + p2 * shade[v2 * 3];
+				float g = p0 * shade[v0 * 3 + 1] + p1 * shade[v1 * 3 + 1] + p2 * shade[v2 * 3 + 1];
+				float bl = p0 * shade[v0 * 3 + 2] + p1 * shade[v1 * 3 + 2] + p2 * shade[v2 * 3 + 2];
+
+				colourBuffer.putInt(pixel * 4, 0xff000000 | toByte(bl) << 16 | toByte(g) << 8 | toByte(r));
+			}
+		}
+	}
+
+	private static int toByte(float f) {
+		return f <= 0 ? 0 : f >= 1 ? 255 : (int) (f * 255 + 0.5f);
+	}
+
+	/**
+	 * Renders a model file to a png with ObjLoader's default camera, without
+	 * opening a window.
+	 *
+	 * usage: SoftwareRasterizer model.obj out.png [width height]
+	 */
+	public static void main(String[] args) {
+		int width = args.length > 3 ? Integer.parseInt(args[2]) : 1024;
+		int height = args.length > 3 ? Integer.parseInt(args[3]) : 768;
+
+		AIScene scene = aiImportFile(new File(args[0]).getAbsolutePath(),
+				aiProcess_JoinIdenticalVertices | aiProcess_Triangulate);
+		if (scene == null)
+			throw new IllegalStateException(aiGetErrorString());
+		Model model = new Model(scene, false);
+
+		Matrix4f modelMatrix = new Matrix4f().rotateY(0.5f * (float) Math.PI).scale(1.5f, 1.5f, 1.5f);
+		Matrix4f projectionMatrix = new Matrix4f().setPerspective((float) Math.toRadians(60), (float) width / height,
+				0.01f, 100.0f);
+		Matrix4f viewMatrix = new Matrix4f().setLookAt(10f, 2f, 0f, 0f, 0f, 0f, 0f, 1f, 0f);
+
+		SoftwareRasterizer rasterizer = new SoftwareRasterizer(width, height);
+		long start = System.nanoTime();
+		rasterizer.render(model, modelMatrix, viewMatrix, projectionMatrix, new Vector3f(10f, 5f, 10f));
+		System.out.println("rendered in " + (System.nanoTime() - start) / 1000000 + "ms");
+
+		stbi_write_png(args[1], width, height, 4, rasterizer.colourBuffer, width * 4);
+		model.free();
+	}
+}
@@ -0,0 +1,206 @@
+package org.twak.gouraud;
+
+import static org.lwjgl.opengl.ARBVertexBufferObject.*;
+
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Moves meshes prepared on other threads onto the GPU a few megabytes at a
+ * time, so a large model streams in over several frames instead of
+ * stalling one. Buffers are allocated empty and filled with
+ * glBufferSubData in chunks; a mesh is handed to the scene only once it
+ * and all its levels of detail are complete. A loader can submit each mesh
+ * as soon as it is prepared, rather than waiting for the whole model.
+ */
+public class StagedUploader {
+
+	/* per level: positions, normals, colours, elements */
+	static final int STAGES = 4;
+
+	public long bytesPerFrame;
+	/* totals, for reporting */
+	public long uploadedBytes;
+	public int uploadedMeshes;
+
+	/* a model, and the one mesh of it that arrived or null for all of them */
+	private static class Arrival {
+		Model model;
+		Model.Mesh mesh;
+	}
+
+	private final ConcurrentLinkedQueue<Arrival> arrived = new ConcurrentLinkedQueue<>();
+	/* loaders that may still submit meshes */
+	private final AtomicInteger streams = new AtomicInteger();
+
+	/* render thread only */
+	private final ArrayDeque<Model.Mesh> waiting = new ArrayDeque<>();
+	/* the model whose materials were last added to the scene */
+	private Model absorbed;
+	private Model.Mesh current;
+	private int level, stage;
+	private long offset;
+
+	public StagedUploader(long bytesPerFrame) {
+		this.bytesPerFrame = bytesPerFrame;
+	}
+
+	/**
+	 * Queues a model's meshes for upload; may be called from any thread. The
+	 * meshes must not have been uploaded.
+	 */
+	public void submit(Model model) {
+		submit(model, null);
+	}
+
+	/**
+	 * Queues one mesh of model, with its levels of detail; may be called
+	 * from any thread, in any order. model's materials must be complete, and
+	 * the mesh's data must be in model's arena, which the scene takes over as
+	 * meshes arrive. Call between {@link #open} and {@link #close}.
+	 */
+	public void submit(Model model, Model.Mesh mesh) {
+		Arrival arrival = new Arrival();
+		arrival.model = model;
+		arrival.mesh = mesh;
+		arrived.add(arrival);
+	}
+
+	/**
+	 * Marks the start of a load that submits meshes one at a time; the
+	 * uploader is not {@link #idle} until the matching {@link #close}.
+	 */
+	public void open() {
+		streams.incrementAndGet();
+	}
+
+	public void close() {
+		streams.decrementAndGet();
+	}
+
+	public boolean idle() {
+		return streams.get() == 0 && arrived.isEmpty() && waiting.isEmpty() && current == null;
+	}
+
+	/**
+	 * Uploads up to {@link #bytesPerFrame}. Call once a frame on the GL thread.
+	 *
+	 * @param scene
+	 *            receives the materials and mesh storage of arriving models,
+	 *            and each mesh once it is fully uploaded
+	 * @return whether any mesh was added to the scene
+	 */
+	public boolean update(Model scene) {
+
+		Arrival arrival;
+		while ((arrival = arrived.poll()) != null) {
+			if (arrival.model != absorbed) {
+				scene.materials.addAll(arrival.model.materials);
+				absorbed = arrival.model;
+			}
+			/* takes whatever the model has allocated so far, including this mesh */
+			scene.arena.absorb(arrival.model.arena);
+			if (arrival.mesh == null)
+				waiting.addAll(arrival.model.meshes);
+			else
+				waiting.add(arrival.mesh);
+		}
+
+		boolean added = false;
+		long budget = bytesPerFrame;
+
+		while (budget > 0) {
+			if (current == null) {
+				current = waiting.poll();
+				if (current == null)
+					break;
+				level = stage = 0;
+				offset = 0;
+			}
+
+			budget -= step(current.lods[level], budget);
+
+			if (stage == STAGES) {
+				stage = 0;
+				if (++level == current.lods.length) {
+					scene.meshes.add(current);
+					uploadedMeshes++;
+					added = true;
+					current = null;
+				}
+			}
+		}
+
+		return added;
+	}
+
+	/**
+	 * Uploads the next chunk of the current stage of mesh.
+	 *
+	 * @return the number of bytes uploaded
+	 */
+	private long step(Model.Mesh mesh, long budget) {
+
+		int target = stage == 3 ? GL_ELEMENT_ARRAY_BUFFER_ARB : GL_ARRAY_BUFFER_ARB;
+		Buffer data = stage == 0 ? mesh.vertices : stage == 1 ? mesh.normals : stage == 2 ? mesh.colours : mesh.elements;
+		long size = (stage == 3 ? mesh.elementCount : mesh.vertexCount * 3) * 4L;
+
+		if (offset == 0) {
+			int buffer = glGenBuffersARB();
+			switch (stage) {
+			case 0:
+				mesh.vertexArrayBuffer = buffer;
+				break;
+			case 1:
+				mesh.normalArrayBuffer = buffer;
+				break;
+			case 2:
+				mesh.colourArrayBuffer = buffer;
+				break;
+			default:
+				mesh.elementArrayBuffer = buffer;
+			}
+			glBindBufferARB(target, buffer);
+			glBufferDataARB(target, size, GL_STATIC_DRAW_ARB);
+		} else {
+			glBindBufferARB(target, buffer(mesh));
+		}
+
+		long bytes = Math.min(size - offset, Math.max(4, budget & ~3L));
+		int first = (int) (offset / 4), count = (int) (bytes / 4);
+		if (data instanceof FloatBuffer) {
+			FloatBuffer chunk = ((FloatBuffer) data).duplicate();
+			chunk.limit(first + count).position(first);
+			glBufferSubDataARB(target, offset, chunk);
+		} else {
+			IntBuffer chunk = ((IntBuffer) data).duplicate();
+			chunk.limit(first + count).position(first);
+			glBufferSubDataARB(target, offset, chunk);
+		}
+
+		offset += bytes;
+		uploadedBytes += bytes;
+		if (offset == size) {
+			stage++;
+			offset = 0;
+		}
+		return Math.max(bytes, 1);
+	}
+
+	private int buffer(Model.Mesh mesh) {
+		switch (stage) {
+		case 0:
+			return mesh.vertexArrayBuffer;
+		case 1:
+			return mesh.normalArrayBuffer;
+		case 2:
+			return mesh.colourArrayBuffer;
+		default:
+			return mesh.elementArrayBuffer;
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package org.twak.gouraud;
+
+import static org.lwjgl.assimp.Assimp.*;
+import static org.lwjgl.stb.STBImageWrite.stbi_write_jpg;
+import static org.lwjgl.stb.STBImageWrite.stbi_write_png;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.joml.Vector3f;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.assimp.AIScene;
+
+/**
+ * Renders preview images for every model in a directory, as three
+ * pipelined stages:
+ * <ol>
+ * <li>a pool of threads imports models with Assimp and prepares them for
+ * upload,</li>
+ * <li>the GL thread uploads each model as soon as it is ready and renders it
+ * headless from each orbit angle through ObjLoader's update() and
+ * render(),</li>
+ * <li>a second pool compresses and writes the frames copied out of the
+ * readback ring.</li>
+ * </ol>
+ * Imports in flight and frames waiting to be encoded are both bounded, so a
+ * slow stage holds back the others instead of filling memory.
+ *
+ * usage: ThumbnailRenderer models/ thumbnails/ [size [angle,angle,... [png|jpg]]]
+ */
+public class ThumbnailRenderer extends ObjLoader {
+
+	File[] sources;
+	File outputDirectory;
+	float[] angles;
+	String format;
+
+	ExecutorService importPool;
+	ExecutorService encodePool;
+	BlockingQueue<ByteBuffer> freeImages;
+	/* output name of each frame, by frame number */
+	List<String> frameNames = new ArrayList<>();
+
+	int rendered, failed;
+
+	/**
+	 * @param angles
+	 *            orbit angles in degrees, one image each
+	 * @param format
+	 *            png or jpg
+	 */
+	public ThumbnailRenderer(File[] sources, File outputDirectory, int size, float[] angles, String format) {
+		super("gouraud_lit");
+		this.sources = sources;
+		this.outputDirectory = outputDirectory;
+		this.angles = angles;
+		this.format = format;
+		headless = true;
+		width = height = size;
+	}
+
+	/* models are imported by the pipeline, so start with an empty one */
+	@Override
+	void loadModel() {
+		model = new Model(new ArrayList<Model.Mesh>(), new ArrayList<Model.Material>());
+		bvh = new MeshBvh(model.meshes);
+	}
+
+	@Override
+	void run() {
+		int threads = Runtime.getRuntime().availableProcessors();
+		importPool = Executors.newFixedThreadPool(Math.max(1, threads / 2));
+		encodePool = Executors.newFixedThreadPool(Math.max(1, threads / 2));
+		freeImages = new ArrayBlockingQueue<>(threads + 2);
+		super.run();
+		importPool.shutdownNow();
+		encodePool.shutdownNow();
+	}
+
+	@Override
+	void loopHeadless() {
+
+		while (freeImages.remainingCapacity() > 0)
+			freeImages.add(BufferUtils.createByteBuffer(fbWidth * fbHeight * 4));
+
+		long start = System.nanoTime();
+		CompletionService<Imported> imports = new ExecutorCompletionService<>(importPool);
+		/* the source of each import, which a failed one does not carry */
+		Map<Future<Imported>, File> inFlight = new HashMap<>();
+		int submitted = 0, maxInFlight = 2 * Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		for (; submitted < Math.min(maxInFlight, sources.length); submitted++)
+			inFlight.put(imports.submit(importTask(sources[submitted])), sources[submitted]);
+
+		for (int done = 0; done < sources.length; done++) {
+			Imported imported;
+			try {
+				Future<Imported> future = imports.take();
+				File source = inFlight.remove(future);
+				if (submitted < sources.length) {
+					inFlight.put(imports.submit(importTask(sources[submitted])), sources[submitted]);
+					submitted++;
+				}
+				try {
+					imported = future.get();
+				} catch (ExecutionException e) {
+					System.err.println(source + ": " + e.getCause());
+					failed++;
+					continue;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+
+			render(imported);
+		}
+		frameReader.finish(encoder);
+
+		encodePool.shutdown();
+		try {
+			encodePool.awaitTermination(1, TimeUnit.HOURS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		System.out.println(String.format("%d models, %d images in %.1fs, %d failed", sources.length - failed,
+				rendered, (System.nanoTime() - start) / 1e9, failed));
+	}
+
+	static class Imported {
+		File source;
+		Model model;
+		Vector3f centre = new Vector3f();
+		float radius;
+	}
+
+	static Callable<Imported> importTask(final File source) {
+		return new Callable<Imported>() {
+			@Override
+			public Imported call() {
+				AIScene scene = aiImportFile(source.getAbsolutePath(),
+						aiProcess_JoinIdenticalVertices | aiProcess_Triangulate);
+				if (scene == null)
+					throw new IllegalStateException(aiGetErrorString());
+
+				Imported imported = new Imported();
+				imported.source = source;
+				imported.model = new Model(scene, false);
+				bounds(imported);
+				return imported;
+			}
+		};
+	}
+
+	/* a sphere around all meshes' spheres, so the model can be scaled to fill the frame */
+	static void bounds(Imported imported) {
+		Vector3f min = new Vector3f(Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
+		Vector3f max = new Vector3f(-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE);
+		for (Model.Mesh mesh : imported.model.meshes) {
+			if (mesh.vertexCount == 0)
+				continue;
+			min.set(Math.min(min.x, mesh.min.x), Math.min(min.y, mesh.min.y), Math.min(min.z, mesh.min.z));
+			max.set(Math.max(max.x, mesh.max.x), Math.max(max.y, mesh.max.y), Math.max(max.z, mesh.max.z));
+		}
+		if (min.x > max.x)
+			return;
+		imported.centre.set((min.x + max.x) / 2, (min.y + max.y) / 2, (min.z + max.z) / 2);
+		for (Model.Mesh mesh : imported.model.meshes) {
+			float dx = mesh.centre.x - imported.centre.x, dy = mesh.centre.y - imported.centre.y,
+					dz = mesh.centre.z - imported.centre.z;
+			imported.radius = Math.max(imported.radius, (float) Math.sqrt(dx * dx + dy * dy + dz * dz) + mesh.radius);
+		}
+	}
+
+	void render(Imported imported) {
+
+		model = imported.model;
+		bvh = new MeshBvh(model.meshes);
+		uploadModel();
+
+		/* the orbit camera is 10 away and sees about 5.7 either side of the centre at 60 degrees */
+		float scale = imported.radius > 0 ? 4f / imported.radius : 1;
+		modelMatrix.identity().scale(scale, scale, scale).translate(-imported.centre.x, -imported.centre.y,
+				-imported.centre.z);
+
+		String base = imported.source.getName();
+		if (base.lastIndexOf('.') > 0)
+			base = base.substring(0, base.lastIndexOf('.'));
+
+		for (int a = 0; a < angles.length; a++) {
+			rotation = (float) Math.toRadians(angles[a]);
+			update();
+			frameReader.bind();
+			render();
+			frameNames.add(angles.length == 1 ? base : base + "_" + Math.round(angles[a]));
+			frameReader.readback(rendered++, encoder);
+		}
+
+		/* the frames are in the PBO ring now, so the model can go */
+		model.free();
+	}
+
+	FrameReader.Consumer encoder = new FrameReader.Consumer() {
+		@Override
+		public void frame(long frame, ByteBuffer pixels, int width, int height) {
+			final ByteBuffer image;
+			try {
+				image = freeImages.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+
+			FrameReader.flip(pixels, image, width, height);
+
+			final File file = new File(outputDirectory, frameNames.set((int) frame, null) + "." + format);
+			final int w = width, h = height;
+			encodePool.execute(new Runnable() {
+				@Override
+				public void run() {
+					boolean written = format.equals("jpg") ? stbi_write_jpg(file.getPath(), w, h, 4, image, 90)
+							: stbi_write_png(file.getPath(), w, h, 4, image, w * 4);
+					if (!written)
+						System.err.println("Could not write " + file);
+					image.clear();
+					freeImages.add(image);
+				}
+			});
+		}
+	};
+
+	public static void main(String[] args) {
+		File directory = new File(args[0]);
+		File output = new File(args[1]);
+		int size = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+		float[] angles = { 45 };
+		if (args.length > 3) {
+			String[] split = args[3].split(",");
+			angles = new float[split.length];
+			for (int i = 0; i < split.length; i++)
+				angles[i] = Float.parseFloat(split[i]);
+		}
+		String format = args.length > 4 ? args[4] : "png";
+
+		File[] sources = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().toLowerCase().endsWith(".obj");
+			}
+		});
+		if (sources == null)
+			throw new IllegalStateException("Not a directory: " + directory);
+		output.mkdirs();
+
+		new ThumbnailRenderer(sources, output, size, angles, format).run();
+	}
+}
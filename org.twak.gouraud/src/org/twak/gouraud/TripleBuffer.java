@@ -0,0 +1,63 @@
+package org.twak.gouraud;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands the latest of a stream of values from one writer thread to one
+ * reader thread without locks or waiting. There are three slots: the
+ * writer fills its back slot and {@link #publish}es it by swapping it with
+ * the middle one; the reader {@link #take}s the middle one, if there is
+ * something new there, by swapping it with its front slot. Each side only
+ * ever touches the slot it holds, so a value is never changed while the
+ * other side can see it, and the reader always gets the newest value,
+ * skipping any it was too slow for.
+ */
+public class TripleBuffer<T> {
+
+	/* set in middle when it holds a value the reader has not taken */
+	private static final int FRESH = 4;
+
+	private final Object[] slots;
+	private final AtomicInteger middle = new AtomicInteger(1);
+	/* owned by the writer and the reader */
+	private int back = 0;
+	private int front = 2;
+
+	public TripleBuffer(T a, T b, T c) {
+		slots = new Object[] { a, b, c };
+	}
+
+	/** The slot to fill next; writer only. */
+	@SuppressWarnings("unchecked")
+	public T back() {
+		return (T) slots[back];
+	}
+
+	/**
+	 * Makes the back slot the latest value and takes another to fill;
+	 * writer only.
+	 *
+	 * @return true if the reader never took the previous value, which is
+	 *         now the back slot again
+	 */
+	public boolean publish() {
+		int old = middle.getAndSet(back | FRESH);
+		back = old & ~FRESH;
+		return (old & FRESH) != 0;
+	}
+
+	/**
+	 * The latest value, if one was published since the last call; reader
+	 * only.
+	 *
+	 * @return null if there is nothing new
+	 */
+	@SuppressWarnings("unchecked")
+	public T take() {
+		if ((middle.get() & FRESH) == 0)
+			return null;
+		int old = middle.getAndSet(front);
+		front = old & ~FRESH;
+		return (T) slots[front];
+	}
+}
@@ -0,0 +1,188 @@
+package org.twak.gouraud;
+
+import static org.lwjgl.opengl.ARBShaderObjects.*;
+import static org.lwjgl.opengl.ARBUniformBufferObject.*;
+import static org.lwjgl.opengl.ARBVertexBufferObject.*;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.joml.Matrix3f;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.lwjgl.BufferUtils;
+
+/**
+ * Remembers what was last sent to GL and drops uploads that would not
+ * change anything.
+ * <p>
+ * Values that are the same for every draw in a frame live in one uniform
+ * buffer, declared in the shaders as
+ *
+ * <pre>
+ * layout (std140) uniform Frame {
+ *     mat4 uViewMatrix;
+ *     mat4 uProjectionMatrix;
+ *     vec3 uLightPosition;
+ *     vec3 uViewPosition;
+ * };
+ * </pre>
+ *
+ * and bound at {@link #FRAME_BINDING} for every program, so it is written
+ * at most once per frame however many programs and meshes use it. Other
+ * uniforms are cached per program and location.
+ */
+public class UniformState {
+
+	public static final int FRAME_BINDING = 0;
+	public static final int FRAME_SIZE = 16 * 4 + 16 * 4 + 4 * 4 + 4 * 4;
+
+	/* uniform and buffer updates sent to GL, and those dropped as redundant */
+	public int issued;
+	public int skipped;
+
+	int frameBuffer;
+	private ByteBuffer frame = BufferUtils.createByteBuffer(FRAME_SIZE);
+	private ByteBuffer lastFrame = BufferUtils.createByteBuffer(FRAME_SIZE);
+	private boolean frameUploaded;
+
+	private Set<Integer> boundPrograms = new HashSet<>();
+	private int program = -1;
+
+	/* the current program's last value per uniform location */
+	private FloatBuffer[] values = new FloatBuffer[0];
+	private FloatBuffer[][] programValues = new FloatBuffer[0][];
+	private FloatBuffer scratch = BufferUtils.createFloatBuffer(16);
+
+	public UniformState() {
+		frameBuffer = glGenBuffersARB();
+		glBindBufferARB(GL_UNIFORM_BUFFER, frameBuffer);
+		glBufferDataARB(GL_UNIFORM_BUFFER, FRAME_SIZE, GL_DYNAMIC_DRAW_ARB);
+		glBindBufferBase(GL_UNIFORM_BUFFER, FRAME_BINDING, frameBuffer);
+	}
+
+	/**
+	 * Writes the per-frame block, if any of it changed since the last frame.
+	 */
+	public void frame(Matrix4f viewMatrix, Matrix4f projectionMatrix, Vector3f lightPosition, Vector3f viewPosition) {
+		viewMatrix.get(0, frame);
+		projectionMatrix.get(64, frame);
+		frame.putFloat(128, lightPosition.x).putFloat(132, lightPosition.y).putFloat(136, lightPosition.z);
+		frame.putFloat(144, viewPosition.x).putFloat(148, viewPosition.y).putFloat(152, viewPosition.z);
+
+		if (frameUploaded && frame.equals(lastFrame)) {
+			skipped++;
+			return;
+		}
+
+		glBindBufferARB(GL_UNIFORM_BUFFER, frameBuffer);
+		glBufferSubDataARB(GL_UNIFORM_BUFFER, 0, frame);
+		lastFrame.put(frame).clear();
+		frame.clear();
+		frameUploaded = true;
+		issued++;
+	}
+
+	/**
+	 * Makes program current, if it is not already, and connects its Frame
+	 * block to the shared buffer the first time it is seen.
+	 */
+	public void use(int program) {
+		if (this.program == program) {
+			skipped++;
+			return;
+		}
+
+		glUseProgramObjectARB(program);
+		issued++;
+		this.program = program;
+
+		if (boundPrograms.add(program)) {
+			int block = glGetUniformBlockIndex(program, "Frame");
+			if (block != GL_INVALID_INDEX)
+				glUniformBlockBinding(program, block, FRAME_BINDING);
+		}
+
+		if (program >= programValues.length)
+			programValues = Arrays.copyOf(programValues, program + 1);
+		if (programValues[program] == null)
+			programValues[program] = new FloatBuffer[0];
+		values = programValues[program];
+	}
+
+	public void uniformMatrix4(int location, Matrix4f value) {
+		if (location == -1)
+			return;
+		scratch.clear();
+		value.get(scratch).limit(16);
+		if (changed(location))
+			glUniformMatrix4fvARB(location, false, scratch);
+	}
+
+	public void uniformMatrix3(int location, Matrix3f value) {
+		if (location == -1)
+			return;
+		scratch.clear();
+		value.get(scratch).limit(9);
+		if (changed(location))
+			glUniformMatrix3fvARB(location, false, scratch);
+	}
+
+	public void uniform3(int location, Vector3f value) {
+		if (location == -1)
+			return;
+		scratch.clear();
+		scratch.put(0, value.x).put(1, value.y).put(2, value.z).limit(3);
+		if (changed(location))
+			glUniform3fvARB(location, scratch);
+	}
+
+	/**
+	 * Compares the scratch buffer with the cached value at location, and
+	 * caches it if different.
+	 */
+	private boolean changed(int location) {
+		if (location >= values.length) {
+			values = Arrays.copyOf(values, location + 1);
+			programValues[program] = values;
+		}
+
+		FloatBuffer last = values[location];
+		if (last != null && last.equals(scratch)) {
+			skipped++;
+			return false;
+		}
+
+		if (last == null || last.capacity() != scratch.remaining())
+			last = values[location] = BufferUtils.createFloatBuffer(scratch.remaining());
+		last.put(scratch).clear();
+		scratch.rewind();
+		issued++;
+		return true;
+	}
+
+	/**
+	 * Drops everything cached for a program that is about to be deleted, as
+	 * GL may hand its name to the next program created.
+	 */
+	public void forget(int program) {
+		boundPrograms.remove(program);
+		if (program < programValues.length)
+			programValues[program] = null;
+		if (this.program == program) {
+			this.program = -1;
+			values = new FloatBuffer[0];
+		}
+	}
+
+	public void resetCounts() {
+		issued = skipped = 0;
+	}
+
+	public void free() {
+		glDeleteBuffersARB(frameBuffer);
+	}
+}
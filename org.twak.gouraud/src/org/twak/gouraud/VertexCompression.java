@@ -0,0 +1,209 @@
+package org.twak.gouraud;
+
+import static org.lwjgl.assimp.Assimp.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.joml.Vector3f;
+import org.lwjgl.assimp.AIScene;
+
+/**
+ * The compressed vertex format of {@link Model.Mesh#uploadCompressed}, 16
+ * bytes a vertex instead of 36:
+ * <ul>
+ * <li>position as three unsigned shorts spanning the mesh's bounding box,
+ * plus padding; the shader maps them back with uPositionOffset +
+ * aVertex.xyz * uPositionScale,</li>
+ * <li>normal as two signed normalised shorts, octahedral encoded,</li>
+ * <li>colour as four unsigned normalised bytes.</li>
+ * </ul>
+ * Meshes of up to 65536 vertices also get 16-bit indices.
+ *
+ * The shaders decode this when compiled with {@link #DEFINE}.
+ */
+public class VertexCompression {
+
+	public static final int STRIDE = 16;
+	public static final String DEFINE = "#define COMPRESSED_VERTICES\n";
+
+	/**
+	 * Writes mesh's vertices into data in the compressed format.
+	 *
+	 * @param offset
+	 *            receives the position decode offset
+	 * @param scale
+	 *            receives the position decode scale
+	 */
+	public static void pack(Model.Mesh mesh, ByteBuffer data, Vector3f offset, Vector3f scale) {
+
+		quantisation(mesh, offset, scale);
+
+		short[] octahedral = new short[2];
+		for (int i = 0; i < mesh.vertexCount; i++) {
+			int v = i * 3;
+			data.putShort(unorm16((mesh.vertices.get(v) - offset.x) / scale.x))
+					.putShort(unorm16((mesh.vertices.get(v + 1) - offset.y) / scale.y))
+					.putShort(unorm16((mesh.vertices.get(v + 2) - offset.z) / scale.z)).putShort((short) 0);
+			octEncode(mesh.normals.get(v), mesh.normals.get(v + 1), mesh.normals.get(v + 2), octahedral);
+			data.putShort(octahedral[0]).putShort(octahedral[1]);
+			data.put(unorm8(mesh.colours.get(v))).put(unorm8(mesh.colours.get(v + 1))).put(unorm8(mesh.colours.get(v + 2)))
+					.put((byte) 255);
+		}
+	}
+
+	/**
+	 * The box quantised positions span: the vertices' own bounds rather than
+	 * {@link Model.Mesh#min}, as simplified levels may move vertices slightly
+	 * outside the full mesh's box.
+	 */
+	static void quantisation(Model.Mesh mesh, Vector3f offset, Vector3f scale) {
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+		for (int i = 0; i < mesh.vertexCount * 3; i += 3) {
+			minX = Math.min(minX, mesh.vertices.get(i));
+			minY = Math.min(minY, mesh.vertices.get(i + 1));
+			minZ = Math.min(minZ, mesh.vertices.get(i + 2));
+			maxX = Math.max(maxX, mesh.vertices.get(i));
+			maxY = Math.max(maxY, mesh.vertices.get(i + 1));
+			maxZ = Math.max(maxZ, mesh.vertices.get(i + 2));
+		}
+		if (mesh.vertexCount == 0) {
+			offset.set(0);
+			scale.set(1);
+			return;
+		}
+		offset.set(minX, minY, minZ);
+		/* flat axes still need a non-zero scale */
+		scale.set(Math.max(maxX - minX, Float.MIN_NORMAL), Math.max(maxY - minY, Float.MIN_NORMAL),
+				Math.max(maxZ - minZ, Float.MIN_NORMAL));
+	}
+
+	public static boolean shortIndices(Model.Mesh mesh) {
+		return mesh.vertexCount <= 65536;
+	}
+
+	/**
+	 * Octahedral encoding: the unit sphere is projected onto the octahedron
+	 * |x|+|y|+|z| = 1 and the lower half folded over the upper, giving a
+	 * square with no wasted codes.
+	 */
+	static void octEncode(float x, float y, float z, short[] out) {
+		float l1 = Math.abs(x) + Math.abs(y) + Math.abs(z);
+		if (l1 == 0) {
+			out[0] = out[1] = 0;
+			return;
+		}
+		float u = x / l1, v = y / l1;
+		if (z < 0) {
+			float fu = (1 - Math.abs(v)) * (u >= 0 ? 1 : -1);
+			float fv = (1 - Math.abs(u)) * (v >= 0 ? 1 : -1);
+			u = fu;
+			v = fv;
+		}
+		out[0] = snorm16(u);
+		out[1] = snorm16(v);
+	}
+
+	/** As the shaders' octDecode. */
+	static void octDecode(short eu, short ev, float[] out) {
+		float u = Math.max(eu / 32767f, -1), v = Math.max(ev / 32767f, -1);
+		float x = u, y = v, z = 1 - Math.abs(u) - Math.abs(v);
+		if (z < 0) {
+			x = (1 - Math.abs(v)) * (u >= 0 ? 1 : -1);
+			y = (1 - Math.abs(u)) * (v >= 0 ? 1 : -1);
+		}
+		float length = (float) Math.sqrt(x * x + y * y + z * z);
+		out[0] = x / length;
+		out[1] = y / length;
+		out[2] = z / length;
+	}
+
+	static short unorm16(float f) {
+		return (short) Math.round(Math.max(0f, Math.min(1f, f)) * 65535f);
+	}
+
+	static short snorm16(float f) {
+		return (short) Math.round(Math.max(-1f, Math.min(1f, f)) * 32767f);
+	}
+
+	static byte unorm8(float f) {
+		return (byte) Math.round(Math.max(0f, Math.min(1f, f)) * 255f);
+	}
+
+	/**
+	 * Compresses every mesh and level of detail, decodes it again as the
+	 * shaders would and compares with the original data.
+	 *
+	 * @return a summary of the worst and mean errors and the memory saved
+	 */
+	public static String report(Model model) {
+
+		Vector3f offset = new Vector3f(), scale = new Vector3f();
+		float[] normal = new float[3];
+		double positionMax = 0, positionSum = 0, angleMax = 0, angleSum = 0, colourMax = 0;
+		long vertices = 0, before = 0, after = 0;
+		ByteBuffer data = null;
+
+		for (Model.Mesh full : model.meshes)
+			for (Model.Mesh mesh : full.lods) {
+				if (data == null || data.capacity() < mesh.vertexCount * STRIDE)
+					data = ByteBuffer.allocate(mesh.vertexCount * STRIDE);
+				data.clear();
+				pack(mesh, data, offset, scale);
+
+				/* relative to the bounding box diagonal, so meshes of any size compare */
+				double diagonal = Math.max(scale.length(), Float.MIN_NORMAL);
+
+				for (int i = 0; i < mesh.vertexCount; i++) {
+					int v = i * 3, b = i * STRIDE;
+
+					double dx = offset.x + (data.getShort(b) & 0xFFFF) / 65535f * scale.x - mesh.vertices.get(v);
+					double dy = offset.y + (data.getShort(b + 2) & 0xFFFF) / 65535f * scale.y - mesh.vertices.get(v + 1);
+					double dz = offset.z + (data.getShort(b + 4) & 0xFFFF) / 65535f * scale.z - mesh.vertices.get(v + 2);
+					double position = Math.sqrt(dx * dx + dy * dy + dz * dz) / diagonal;
+					positionMax = Math.max(positionMax, position);
+					positionSum += position;
+
+					float nx = mesh.normals.get(v), ny = mesh.normals.get(v + 1), nz = mesh.normals.get(v + 2);
+					float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+					if (length > 0) {
+						octDecode(data.getShort(b + 8), data.getShort(b + 10), normal);
+						double cos = (nx * normal[0] + ny * normal[1] + nz * normal[2]) / length;
+						double angle = Math.toDegrees(Math.acos(Math.max(-1, Math.min(1, cos))));
+						angleMax = Math.max(angleMax, angle);
+						angleSum += angle;
+					}
+
+					for (int c = 0; c < 3; c++)
+						colourMax = Math.max(colourMax, Math.abs((data.get(b + 12 + c) & 0xFF) / 255f
+								- Math.max(0f, Math.min(1f, mesh.colours.get(v + c)))));
+				}
+
+				vertices += mesh.vertexCount;
+				before += mesh.vertexCount * 36L + mesh.elementCount * 4L;
+				after += mesh.vertexCount * (long) STRIDE + mesh.elementCount * (shortIndices(mesh) ? 2L : 4L);
+			}
+
+		return String.format(
+				"compressed %d vertices, %.1fMB to %.1fMB (%.0f%%): position error max %.2e mean %.2e of the bounding box diagonal, normal error max %.3f mean %.3f degrees, colour error max %.4f",
+				vertices, before / 1048576.0, after / 1048576.0, 100.0 * after / Math.max(before, 1), positionMax,
+				positionSum / Math.max(vertices, 1), angleMax, angleSum / Math.max(vertices, 1), colourMax);
+	}
+
+	/**
+	 * Reports the compression error for a model without a GL context.
+	 *
+	 * usage: VertexCompression model.obj [levels]
+	 */
+	public static void main(String[] args) {
+		AIScene scene = aiImportFile(new File(args[0]).getAbsolutePath(),
+				aiProcess_JoinIdenticalVertices | aiProcess_Triangulate);
+		if (scene == null)
+			throw new IllegalStateException(aiGetErrorString());
+		Model model = new Model(scene, false);
+		model.buildLods(args.length > 1 ? Integer.parseInt(args[1]) : 1);
+		System.out.println(report(model));
+		model.free();
+	}
+}
@@ -0,0 +1,320 @@
+package org.twak.gouraud;
+
+import static org.lwjgl.assimp.Assimp.*;
+
+import java.io.File;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.joml.Matrix3f;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.lwjgl.assimp.AIScene;
+
+/**
+ * gouraud_lit.vs on the CPU for whole vertex arrays: the model, view and
+ * projection transform to clip space and the per-vertex diffuse term, for
+ * pre-lighting meshes or feeding a software rasterizer without a GPU.
+ * <p>
+ * Data is held as a structure of arrays, one float[] per component, and
+ * each stage is a separate counted loop over those arrays with no branches.
+ * On JDK 16 or later run with --add-modules jdk.incubator.vector the stages
+ * are the Vector API kernels of VectorLighting, see {@link #VECTOR}, which
+ * process several vertices per instruction; elsewhere they are the scalar
+ * loops here, which the JIT may or may not vectorise. The arrays are split
+ * between the threads of a fork-join pool in blocks of {@link #BLOCK}.
+ * With {@link #perVertex} each vertex goes through the whole shader before
+ * the next, as in SoftwareRasterizer. All three give the same results.
+ */
+public class VertexLighting {
+
+	/* below this many vertices a range is not split between threads */
+	public static final int BLOCK = 8192;
+
+	/**
+	 * The Vector API kernels, or null when they were not compiled (see the
+	 * vector-api profile) or the JVM is older than 16 or lacks the
+	 * jdk.incubator.vector module.
+	 */
+	public static final Kernel VECTOR = vectorKernel();
+
+	/** The array stages, as the static scalar methods below. */
+	interface Kernel {
+		void transform(float[] x, float[] y, float[] z, float[] cx, float[] cy, float[] cz, float[] cw, Matrix4f m,
+				int from, int to);
+
+		void diffuse(float[] x, float[] y, float[] z, float[] nx, float[] ny, float[] nz, float[] diffuse, Matrix4f m,
+				Matrix3f n, Vector3f light, int from, int to);
+	}
+
+	private static Kernel vectorKernel() {
+		try {
+			return (Kernel) Class.forName("org.twak.gouraud.VectorLighting")
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+	/** Vertex positions and normals, one array per component. */
+	public static class Vertices {
+		public float[] x, y, z;
+		public float[] nx, ny, nz;
+		public int count;
+
+		public Vertices(int count) {
+			this.count = count;
+			x = new float[count];
+			y = new float[count];
+			z = new float[count];
+			nx = new float[count];
+			ny = new float[count];
+			nz = new float[count];
+		}
+
+		/** Splits a mesh's interleaved xyz buffers into components. */
+		public static Vertices of(Model.Mesh mesh) {
+			Vertices vertices = new Vertices(mesh.vertexCount);
+			for (int i = 0; i < mesh.vertexCount; i++) {
+				vertices.x[i] = mesh.vertices.get(i * 3);
+				vertices.y[i] = mesh.vertices.get(i * 3 + 1);
+				vertices.z[i] = mesh.vertices.get(i * 3 + 2);
+				vertices.nx[i] = mesh.normals.get(i * 3);
+				vertices.ny[i] = mesh.normals.get(i * 3 + 1);
+				vertices.nz[i] = mesh.normals.get(i * 3 + 2);
+			}
+			return vertices;
+		}
+	}
+
+	/** Clip space positions and the diffuse term, gl_Position and vColour.r. */
+	public static class Lit {
+		public float[] x = new float[0], y = x, z = x, w = x;
+		public float[] diffuse = x;
+		public int count;
+
+		public void resize(int count) {
+			if (x.length < count) {
+				x = new float[count];
+				y = new float[count];
+				z = new float[count];
+				w = new float[count];
+				diffuse = new float[count];
+			}
+			this.count = count;
+		}
+	}
+
+	public boolean perVertex;
+	/* the array stages use VECTOR when it is available */
+	public boolean vector = true;
+	ForkJoinPool pool;
+
+	private Matrix4f mvp = new Matrix4f();
+	private Matrix3f normalMatrix = new Matrix3f();
+	private Vector3f light = new Vector3f();
+
+	public VertexLighting() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param pool
+	 *            the threads to split vertices between; a pool of
+	 *            parallelism 1 runs on one core
+	 */
+	public VertexLighting(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Transforms and lights every vertex into out, resized to fit.
+	 */
+	public void light(Vertices in, Lit out, Matrix4f modelMatrix, Matrix4f viewMatrix, Matrix4f projectionMatrix,
+			Vector3f lightPosition) {
+		out.resize(in.count);
+		mvp.set(projectionMatrix).mul(viewMatrix).mul(modelMatrix);
+		normalMatrix.set(modelMatrix).invert().transpose();
+		/* as gouraud_lit.vs, the light position is transformed by the model matrix */
+		modelMatrix.transformPosition(lightPosition, light);
+
+		pool.invoke(new Task(in, out, modelMatrix, 0, in.count));
+	}
+
+	/**
+	 * Bakes the lighting into a mesh's colours, in the shader's (diffuse, 0,
+	 * 0).
+	 */
+	public void prelight(Model.Mesh mesh, Matrix4f modelMatrix, Vector3f lightPosition) {
+		Lit lit = new Lit();
+		light(Vertices.of(mesh), lit, modelMatrix, new Matrix4f(), new Matrix4f(), lightPosition);
+		for (int i = 0; i < mesh.vertexCount; i++)
+			mesh.colours.put(i * 3, lit.diffuse[i]).put(i * 3 + 1, 0).put(i * 3 + 2, 0);
+	}
+
+	private class Task extends RecursiveAction {
+
+		Vertices in;
+		Lit out;
+		Matrix4f modelMatrix;
+		int from, to;
+
+		Task(Vertices in, Lit out, Matrix4f modelMatrix, int from, int to) {
+			this.in = in;
+			this.out = out;
+			this.modelMatrix = modelMatrix;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > BLOCK) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Task(in, out, modelMatrix, from, mid), new Task(in, out, modelMatrix, mid, to));
+				return;
+			}
+
+			if (perVertex)
+				perVertex(in, out, mvp, modelMatrix, normalMatrix, light, from, to);
+			else if (vector && VECTOR != null) {
+				VECTOR.transform(in.x, in.y, in.z, out.x, out.y, out.z, out.w, mvp, from, to);
+				VECTOR.diffuse(in.x, in.y, in.z, in.nx, in.ny, in.nz, out.diffuse, modelMatrix, normalMatrix, light, from, to);
+			} else {
+				transform(in.x, in.y, in.z, out.x, out.y, out.z, out.w, mvp, from, to);
+				diffuse(in.x, in.y, in.z, in.nx, in.ny, in.nz, out.diffuse, modelMatrix, normalMatrix, light, from, to);
+			}
+		}
+	}
+
+	/**
+	 * Clip space positions. The matrix is read into locals so the loop body
+	 * is plain arithmetic on the arrays.
+	 */
+	static void transform(float[] x, float[] y, float[] z, float[] cx, float[] cy, float[] cz, float[] cw, Matrix4f m,
+			int from, int to) {
+		final float m00 = m.m00(), m01 = m.m01(), m02 = m.m02(), m03 = m.m03();
+		final float m10 = m.m10(), m11 = m.m11(), m12 = m.m12(), m13 = m.m13();
+		final float m20 = m.m20(), m21 = m.m21(), m22 = m.m22(), m23 = m.m23();
+		final float m30 = m.m30(), m31 = m.m31(), m32 = m.m32(), m33 = m.m33();
+
+		for (int i = from; i < to; i++) {
+			float px = x[i], py = y[i], pz = z[i];
+			cx[i] = m00 * px + m10 * py + m20 * pz + m30;
+			cy[i] = m01 * px + m11 * py + m21 * pz + m31;
+			cz[i] = m02 * px + m12 * py + m22 * pz + m32;
+			cw[i] = m03 * px + m13 * py + m23 * pz + m33;
+		}
+	}
+
+	/**
+	 * dot(normalize(light - M p), N n) per vertex. A zero length light
+	 * direction gives 0 rather than a branch.
+	 */
+	static void diffuse(float[] x, float[] y, float[] z, float[] nx, float[] ny, float[] nz, float[] diffuse,
+			Matrix4f m, Matrix3f n, Vector3f light, int from, int to) {
+		final float m00 = m.m00(), m01 = m.m01(), m02 = m.m02();
+		final float m10 = m.m10(), m11 = m.m11(), m12 = m.m12();
+		final float m20 = m.m20(), m21 = m.m21(), m22 = m.m22();
+		final float m30 = m.m30(), m31 = m.m31(), m32 = m.m32();
+		final float n00 = n.m00(), n01 = n.m01(), n02 = n.m02();
+		final float n10 = n.m10(), n11 = n.m11(), n12 = n.m12();
+		final float n20 = n.m20(), n21 = n.m21(), n22 = n.m22();
+		final float lightX = light.x, lightY = light.y, lightZ = light.z;
+
+		for (int i = from; i < to; i++) {
+			float px = x[i], py = y[i], pz = z[i];
+			float lx = lightX - (m00 * px + m10 * py + m20 * pz + m30);
+			float ly = lightY - (m01 * px + m11 * py + m21 * pz + m31);
+			float lz = lightZ - (m02 * px + m12 * py + m22 * pz + m32);
+
+			float qx = nx[i], qy = ny[i], qz = nz[i];
+			float tx = n00 * qx + n10 * qy + n20 * qz;
+			float ty = n01 * qx + n11 * qy + n21 * qz;
+			float tz = n02 * qx + n12 * qy + n22 * qz;
+
+			float inverseLength = 1f / (float) Math.sqrt(Math.max(lx * lx + ly * ly + lz * lz, Float.MIN_NORMAL));
+			diffuse[i] = (lx * tx + ly * ty + lz * tz) * inverseLength;
+		}
+	}
+
+	static void perVertex(Vertices in, Lit out, Matrix4f mvp, Matrix4f m, Matrix3f n, Vector3f light, int from, int to) {
+		for (int i = from; i < to; i++) {
+			float x = in.x[i], y = in.y[i], z = in.z[i];
+
+			out.x[i] = mvp.m00() * x + mvp.m10() * y + mvp.m20() * z + mvp.m30();
+			out.y[i] = mvp.m01() * x + mvp.m11() * y + mvp.m21() * z + mvp.m31();
+			out.z[i] = mvp.m02() * x + mvp.m12() * y + mvp.m22() * z + mvp.m32();
+			out.w[i] = mvp.m03() * x + mvp.m13() * y + mvp.m23() * z + mvp.m33();
+
+			float lx = light.x - (m.m00() * x + m.m10() * y + m.m20() * z + m.m30());
+			float ly = light.y - (m.m01() * x + m.m11() * y + m.m21() * z + m.m31());
+			float lz = light.z - (m.m02() * x + m.m12() * y + m.m22() * z + m.m32());
+			float length = (float) Math.sqrt(lx * lx + ly * ly + lz * lz);
+			if (length == 0) {
+				out.diffuse[i] = 0;
+				continue;
+			}
+
+			float nx = in.nx[i], ny = in.ny[i], nz = in.nz[i];
+			float tx = n.m00() * nx + n.m10() * ny + n.m20() * nz;
+			float ty = n.m01() * nx + n.m11() * ny + n.m21() * nz;
+			float tz = n.m02() * nx + n.m12() * ny + n.m22() * nz;
+			out.diffuse[i] = (lx * tx + ly * ty + lz * tz) / length;
+		}
+	}
+
+	/**
+	 * Times the kernels on a model's vertices, on one thread and on all
+	 * cores, with ObjLoader's default camera. Run on JDK 16+ with
+	 * --add-modules jdk.incubator.vector to include the Vector API ones.
+	 *
+	 * usage: VertexLighting model.obj [repeats]
+	 */
+	public static void main(String[] args) {
+		AIScene scene = aiImportFile(new File(args[0]).getAbsolutePath(),
+				aiProcess_JoinIdenticalVertices | aiProcess_Triangulate);
+		if (scene == null)
+			throw new IllegalStateException(aiGetErrorString());
+		Model model = new Model(scene, false);
+		int repeats = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+		Vertices[] vertices = new Vertices[model.meshes.size()];
+		long count = 0;
+		for (int i = 0; i < vertices.length; i++) {
+			vertices[i] = Vertices.of(model.meshes.get(i));
+			count += vertices[i].count;
+		}
+
+		Matrix4f modelMatrix = new Matrix4f().rotateY(0.5f * (float) Math.PI).scale(1.5f, 1.5f, 1.5f);
+		Matrix4f projectionMatrix = new Matrix4f().setPerspective((float) Math.toRadians(60), 4f / 3, 0.01f, 100.0f);
+		Matrix4f viewMatrix = new Matrix4f().setLookAt(10f, 2f, 0f, 0f, 0f, 0f, 0f, 1f, 0f);
+		Vector3f lightPosition = new Vector3f(10f, 5f, 10f);
+		Lit lit = new Lit();
+
+		System.out.println(VECTOR == null ? "Vector API kernels not available" : "using " + VECTOR);
+		String[] kernels = { "per vertex", "arrays", "vector" };
+
+		ForkJoinPool single = new ForkJoinPool(1);
+		for (ForkJoinPool pool : new ForkJoinPool[] { single, ForkJoinPool.commonPool() })
+			for (int kernel = 0; kernel < (VECTOR == null ? 2 : 3); kernel++) {
+				VertexLighting lighting = new VertexLighting(pool);
+				lighting.perVertex = kernel == 0;
+				lighting.vector = kernel == 2;
+				long start = 0;
+				/* the first half warms up the JIT */
+				for (int r = 0; r < repeats * 2; r++) {
+					if (r == repeats)
+						start = System.nanoTime();
+					for (Vertices v : vertices)
+						lighting.light(v, lit, modelMatrix, viewMatrix, projectionMatrix, lightPosition);
+				}
+				double seconds = (System.nanoTime() - start) / 1e9;
+				System.out.println(String.format("%s, %d threads: %.1f million vertices/s",
+						kernels[kernel], pool.getParallelism(), count * repeats / seconds / 1e6));
+			}
+
+		single.shutdown();
+		model.free();
+	}
+}